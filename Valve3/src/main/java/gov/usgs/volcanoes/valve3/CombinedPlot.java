@@ -34,8 +34,7 @@ import org.slf4j.LoggerFactory;
 public class CombinedPlot extends Plot {
   public static final double fillValue = Double.NEGATIVE_INFINITY;
   private static final Logger logger = LoggerFactory.getLogger(CombinedPlot.class);
-  private int componentCount;
-  private int callCount;
+  private boolean combined = false;
   private int leftTicks;
   private int graphX = Integer.MAX_VALUE;
   private int graphY = Integer.MAX_VALUE;
@@ -55,32 +54,30 @@ public class CombinedPlot extends Plot {
    * Default constructor.
    */
   public CombinedPlot() {
-    this(0, 0, 1);
+    this(0, 0);
   }
 
   /**
    * Constructor.
    *
-   * @param w              plot width
-   * @param h              plot height
-   * @param componentCount count of components
+   * @param w plot width
+   * @param h plot height
    */
-  public CombinedPlot(int w, int h, int componentCount) {
+  public CombinedPlot(int w, int h) {
     super(w, h);
-    this.componentCount = componentCount;
-    callCount = 0;
     waveRenderers = new ArrayList<SliceWaveRenderer>();
   }
 
   /**
    * Renders the plot. Paints the background color, process
-   * renderers to combine and render resulting renderer.
+   * renderers to combine and render resulting renderer. Renderers of all components are
+   * combined on the first call, so the plot should be rendered after all components were added.
    *
    * @param g the Graphics2D object to plot upon
    */
   public void render(Graphics2D g) throws PlotException {
-    callCount++;
-    if (callCount == componentCount) {
+    if (!combined) {
+      combined = true;
       cc = new ColorCycler();
       for (Renderer renderer : renderers) {
         if (renderer instanceof MatrixRenderer) {
@@ -169,8 +166,8 @@ public class CombinedPlot extends Plot {
           addRenderer(rightRenderer);
         }
       }
-      super.render(g);
     }
+    super.render(g);
   }
 
   private String getUnit(MatrixRenderer renderer) {
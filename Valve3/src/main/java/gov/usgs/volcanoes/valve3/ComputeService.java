@@ -0,0 +1,214 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.util.StringUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Runs computations of a plot, e.g. binning the points of density plots, on a shared fork-join
+ * pool. Large inputs are split into chunks of consecutive elements which are computed in
+ * parallel. The requesting thread works on the first task itself. Also handles the request for
+ * statistics.
+ */
+public class ComputeService implements HttpHandler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ComputeService.class);
+
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+  // smaller chunks aren't worth a task
+  public static final int MIN_CHUNK = 32768;
+
+  private final String name;
+  private volatile ForkJoinPool pool;
+  private volatile int threads = DEFAULT_THREADS;
+
+  private long batches = 0;
+  private long tasks = 0;
+  private long parallelTasks = 0;
+  private long computeTime = 0;
+
+  /**
+   * Default constructor, for general computations configured by "compute" settings.
+   */
+  public ComputeService() {
+    this("compute");
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param name prefix of configuration settings, also used in log messages
+   */
+  protected ComputeService(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Read number of threads from configuration and start pool.
+   *
+   * @param config valve3 configuration
+   */
+  public synchronized void configure(ConfigFile config) {
+    threads = Math.max(1, StringUtils.stringToInt(config.getString(name + ".threads"),
+        DEFAULT_THREADS));
+    LOGGER.info("Computation threads ({}): {}", name, threads);
+    ForkJoinPool old = pool;
+    pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    if (old != null) {
+      old.shutdown();
+    }
+  }
+
+  /**
+   * Run tasks, in parallel if there is more than one and the pool is enabled.
+   *
+   * @param work tasks to run
+   * @return results in task order
+   * @throws Valve3Exception if a task fails
+   */
+  public <T> List<T> compute(List<? extends Callable<T>> work) throws Valve3Exception {
+    List<T> results = new ArrayList<T>(work.size());
+    if (work.isEmpty()) {
+      return results;
+    }
+    long start = System.nanoTime();
+    ForkJoinPool p = pool;
+    List<ForkJoinTask<T>> forked = new ArrayList<ForkJoinTask<T>>();
+    if (p != null && work.size() > 1) {
+      try {
+        for (Callable<T> task : work.subList(1, work.size())) {
+          forked.add(p.submit(task));
+        }
+      } catch (RejectedExecutionException e) {
+        // pool shut down by reconfiguration; run what's left here
+        LOGGER.debug("Pool ({}) rejected task, computing in request thread", name);
+      }
+    }
+    try {
+      results.add(work.get(0).call());
+      for (ForkJoinTask<T> task : forked) {
+        try {
+          results.add(task.get());
+        } catch (ExecutionException e) {
+          throw e.getCause();
+        }
+      }
+      for (Callable<T> task : work.subList(forked.size() + 1, work.size())) {
+        results.add(task.call());
+      }
+    } catch (Valve3Exception e) {
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new Valve3Exception("Interrupted computing " + name);
+    } catch (Throwable e) {
+      LOGGER.error("Computation ({}) failed", name, e);
+      throw new Valve3Exception(e.getMessage());
+    } finally {
+      for (ForkJoinTask<T> task : forked) {
+        task.cancel(false);
+      }
+    }
+    synchronized (this) {
+      batches++;
+      tasks += work.size();
+      parallelTasks += forked.size();
+      computeTime += System.nanoTime() - start;
+    }
+    return results;
+  }
+
+  /**
+   * Split elements into chunks of at least {@link #MIN_CHUNK}, at most one per thread, and run
+   * them.
+   *
+   * @param size  number of elements
+   * @param chunk computation of a range of elements
+   * @return results in chunk order, at least one
+   * @throws Valve3Exception if a chunk fails
+   */
+  public <T> List<T> computeChunks(int size, Chunk<T> chunk) throws Valve3Exception {
+    return computeChunks(size, MIN_CHUNK, chunk);
+  }
+
+  /**
+   * Split elements into chunks of at least minChunk, at most one per thread, and run them.
+   *
+   * @param size     number of elements
+   * @param minChunk minimum number of elements of a chunk
+   * @param chunk    computation of a range of elements
+   * @return results in chunk order, at least one
+   * @throws Valve3Exception if a chunk fails
+   */
+  public <T> List<T> computeChunks(int size, int minChunk, final Chunk<T> chunk)
+      throws Valve3Exception {
+    int chunks = Math.max(1, Math.min(pool == null ? 1 : threads, size / Math.max(1, minChunk)));
+    List<Callable<T>> work = new ArrayList<Callable<T>>(chunks);
+    for (int c = 0; c < chunks; c++) {
+      final int from = (int) ((long) size * c / chunks);
+      final int to = (int) ((long) size * (c + 1) / chunks);
+      work.add(new Callable<T>() {
+        public T call() throws Exception {
+          return chunk.compute(from, to);
+        }
+      });
+    }
+    return compute(work);
+  }
+
+  /**
+   * Stop pool threads.
+   */
+  public synchronized void shutdown() {
+    if (pool != null) {
+      pool.shutdownNow();
+      pool = null;
+    }
+  }
+
+  /**
+   * Handle the request for computation statistics.
+   *
+   * @see HttpHandler#handle
+   */
+  public synchronized Object handle(HttpServletRequest request) {
+    List<String> ls = new ArrayList<String>();
+    ls.add("threads=" + threads);
+    ls.add("batches=" + batches);
+    ls.add("tasks=" + tasks);
+    ls.add("parallelTasks=" + parallelTasks);
+    ls.add("computeTime=" + computeTime / 1000000 + "ms");
+    ForkJoinPool p = pool;
+    if (p != null) {
+      ls.add("active=" + p.getActiveThreadCount());
+      ls.add("steals=" + p.getStealCount());
+    }
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+
+  /**
+   * Computation of a chunk of elements.
+   */
+  public interface Chunk<T> {
+    /**
+     * Compute elements of a range.
+     *
+     * @param from index of first element
+     * @param to   index after last element
+     * @return result of the chunk
+     * @throws Exception if computation fails
+     */
+    T compute(int from, int to) throws Exception;
+  }
+}
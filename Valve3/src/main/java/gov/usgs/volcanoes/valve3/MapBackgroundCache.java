@@ -0,0 +1,227 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.core.legacy.plot.map.GeoImageSet;
+import gov.usgs.volcanoes.core.math.proj.GeoRange;
+import gov.usgs.volcanoes.core.math.proj.TransverseMercator;
+
+import java.awt.geom.Point2D;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps map backgrounds projected from the geo image set, so map plots of the same area of
+ * interest and width don't reproject the imagery each time. Least recently used images are
+ * dropped when the total size exceeds the limit. Concurrent requests for the same background
+ * share one projection. Also handles the request for cache statistics.
+ */
+public class MapBackgroundCache implements HttpHandler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MapBackgroundCache.class);
+  public static final int DEFAULT_MAX_SIZE = 64;
+
+  private final GeoImageSet imageSet;
+  private final long maxBytes;
+  private final LinkedHashMap<Key, Entry> entries;
+  private long bytes = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param imageSet image set to project backgrounds from
+   * @param maxSize  maximum total size of cached images, in megabytes; 0 disables caching
+   */
+  public MapBackgroundCache(GeoImageSet imageSet, int maxSize) {
+    this.imageSet = imageSet;
+    maxBytes = maxSize * 1024L * 1024L;
+    entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  }
+
+  /**
+   * Yield map background, projecting it if it isn't cached.
+   *
+   * @param proj   projection set up with origin
+   * @param origin projection origin
+   * @param range  area of interest
+   * @param width  width of map, in pixels
+   * @return projected image
+   */
+  public RenderedImage getMapBackground(TransverseMercator proj, Point2D.Double origin,
+      GeoRange range, int width) {
+    if (maxBytes <= 0) {
+      return imageSet.getMapBackground(proj, range, width);
+    }
+
+    Key key = new Key(origin, range, width);
+    Entry entry;
+    boolean owner = false;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry(proj, range, width);
+        entries.put(key, entry);
+        owner = true;
+        misses++;
+      } else {
+        hits++;
+      }
+    }
+
+    if (owner) {
+      entry.task.run();
+    }
+    RenderedImage ri = entry.await();
+    if (owner) {
+      synchronized (this) {
+        if (ri == null) {
+          entries.remove(key);
+        } else if (entries.get(key) == entry) {
+          entry.bytes = getSize(ri);
+          bytes += entry.bytes;
+          trim();
+        }
+      }
+    }
+    return ri;
+  }
+
+  /**
+   * Project backgrounds of configured areas in a background thread, so first requests for them
+   * are served from the cache.
+   *
+   * @param regions list of "west,east,south,north,width" strings
+   */
+  public void warm(final List<String> regions) {
+    if (regions == null || regions.isEmpty() || maxBytes <= 0) {
+      return;
+    }
+    Thread t = new Thread("map-cache-warmer") {
+      public void run() {
+        for (String region : regions) {
+          try {
+            String[] ss = region.split(",");
+            GeoRange range = new GeoRange(Double.parseDouble(ss[0].trim()),
+                Double.parseDouble(ss[1].trim()), Double.parseDouble(ss[2].trim()),
+                Double.parseDouble(ss[3].trim()));
+            int width = Integer.parseInt(ss[4].trim());
+            TransverseMercator proj = new TransverseMercator();
+            Point2D.Double origin = range.getCenter();
+            proj.setup(origin, 0, 0);
+            getMapBackground(proj, origin, range, width);
+          } catch (Exception e) {
+            LOGGER.warn("Can't warm map cache for region {}: {}", region, e.getMessage());
+          }
+        }
+        LOGGER.info("Warmed map cache for {} regions", regions.size());
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Handle the request for cache statistics.
+   *
+   * @see HttpHandler#handle
+   */
+  public synchronized Object handle(HttpServletRequest request) {
+    List<String> ls = new ArrayList<String>();
+    ls.add("size=" + entries.size());
+    ls.add("bytes=" + bytes);
+    ls.add("maxBytes=" + maxBytes);
+    ls.add("hits=" + hits);
+    ls.add("misses=" + misses);
+    ls.add("hitRate=" + (hits + misses == 0 ? 0 : (double) hits / (hits + misses)));
+    ls.add("evictions=" + evictions);
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+
+  /**
+   * Drop least recently used images while over the size limit. Must be called with lock held.
+   */
+  private void trim() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Entry e = it.next();
+      if (e.task.isDone()) {
+        bytes -= e.bytes;
+        it.remove();
+        evictions++;
+      }
+    }
+  }
+
+  /**
+   * Estimate memory taken by image.
+   */
+  private static long getSize(RenderedImage ri) {
+    SampleModel sm = ri.getSampleModel();
+    long bitsPerPixel = (long) sm.getNumBands() * DataBuffer.getDataTypeSize(sm.getDataType());
+    return (long) ri.getWidth() * ri.getHeight() * bitsPerPixel / 8;
+  }
+
+  /**
+   * Supporting class, identifies projected background.
+   */
+  private static class Key {
+    private final double[] values;
+
+    public Key(Point2D.Double origin, GeoRange range, int width) {
+      values = new double[] {origin.x, origin.y, range.getWest(), range.getEast(),
+          range.getSouth(), range.getNorth(), width};
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(values, ((Key) o).values);
+    }
+
+    public int hashCode() {
+      return Arrays.hashCode(values);
+    }
+  }
+
+  /**
+   * Supporting class, cache entry. Keeps the projection task, which is run by the first
+   * requesting thread and awaited by the others.
+   */
+  private class Entry {
+    public final FutureTask<RenderedImage> task;
+    public long bytes = 0;
+
+    public Entry(final TransverseMercator proj, final GeoRange range, final int width) {
+      task = new FutureTask<RenderedImage>(new Callable<RenderedImage>() {
+        public RenderedImage call() {
+          return imageSet.getMapBackground(proj, range, width);
+        }
+      });
+    }
+
+    public RenderedImage await() {
+      try {
+        return task.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException e) {
+        LOGGER.error("Map background projection failed: {}", e.getMessage());
+        return null;
+      }
+    }
+  }
+}
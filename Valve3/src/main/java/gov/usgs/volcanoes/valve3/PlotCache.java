@@ -0,0 +1,241 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.core.time.J2kSec;
+import gov.usgs.volcanoes.valve3.result.Valve3Plot;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Keeps rendered plots, so repeated requests for the same plot reuse the image and the
+ * {@link Valve3Plot} of the first one. Plots whose end time is relative to now are kept only for
+ * one time bucket; plots of settled, historical data are kept much longer. The cache holds images
+ * kept in memory while it keeps their plots, and each hit holds it for the request. Also handles
+ * the request for cache statistics.
+ */
+public class PlotCache implements HttpHandler {
+  public static final int DEFAULT_MAX_SIZE = 200;
+  public static final int DEFAULT_BUCKET = 60;
+  public static final int DEFAULT_SETTLE_TIME = 3600;
+  public static final int DEFAULT_HISTORICAL_TTL = 6 * 3600;
+
+  // request parameters which affect the plot besides the components' ones
+  private static final String[] PLOT_PARAMETERS = {"w", "h", "o", "combine", "tz"};
+
+  private final int maxSize;
+  private final long bucket;
+  private final long settleTime;
+  private final long historicalTtl;
+  private final LinkedHashMap<String, Entry> entries;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize       maximum count of cached plots, 0 disables caching
+   * @param bucket        length of time bucket relative times are quantized to, in seconds
+   * @param settleTime    plots ending less than this many seconds ago are treated as relative
+   * @param historicalTtl time to keep plots of settled data, in seconds
+   */
+  public PlotCache(int maxSize, int bucket, int settleTime, int historicalTtl) {
+    this.maxSize = maxSize;
+    this.bucket = Math.max(1, bucket) * 1000L;
+    this.settleTime = settleTime;
+    this.historicalTtl = historicalTtl * 1000L;
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  }
+
+  /**
+   * Build cache key for a plot request: plot parameters and sorted parameters of each component.
+   * Requests with a relative or recent end time get the current time bucket appended. The key is
+   * built even if caching is disabled, as it also names and tags the result.
+   *
+   * @param request    http request
+   * @param components components parsed from the request
+   * @return key, null if the request has an illegal time
+   */
+  public Key getKey(HttpServletRequest request, List<PlotComponent> components) {
+    StringBuilder sb = new StringBuilder();
+    for (String p : PLOT_PARAMETERS) {
+      sb.append(p).append('=').append(request.getParameter(p)).append('&');
+    }
+
+    boolean live = false;
+    for (PlotComponent comp : components) {
+      sb.append('|').append(comp.getSource()).append(comp.getParameters());
+      try {
+        if (!isSettled(comp)) {
+          live = true;
+        }
+      } catch (Valve3Exception e) {
+        return null;
+      }
+    }
+
+    long ttl = historicalTtl;
+    if (live) {
+      long time = System.currentTimeMillis();
+      sb.append("|@").append(time / bucket);
+      ttl = bucket - time % bucket;
+    }
+    return new Key(sb.toString(), ttl, live);
+  }
+
+  /**
+   * Check if the time window of a component is settled, i.e. its end time is absolute and at
+   * least the settle time ago, so its data won't change anymore.
+   *
+   * @param comp plot component
+   * @return true if data of the component are settled
+   * @throws Valve3Exception if the component has an illegal end time
+   */
+  public boolean isSettled(PlotComponent comp) throws Valve3Exception {
+    String et = comp.get("et");
+    if (et == null || et.equals("N") || et.startsWith("-")) {
+      return false;
+    }
+    return comp.getEndTime() <= J2kSec.now() - settleTime;
+  }
+
+  /**
+   * Yield cached plot. An image kept in memory is held for the caller, who must give it up by
+   * {@link Valve3Plot#releaseMemory} once it's sent.
+   *
+   * @param key key from {@link #getKey}, may be null
+   * @return plot, null if not cached
+   */
+  public synchronized Valve3Plot get(Key key) {
+    if (key == null || maxSize <= 0) {
+      return null;
+    }
+    Entry entry = entries.get(key.key);
+    if (entry != null && (entry.expires < System.currentTimeMillis()
+        || !entry.plot.isAvailable())) {
+      // expired, or image deleted early to keep results within disk quota
+      entries.remove(key.key);
+      entry.plot.releaseMemory();
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    entry.plot.retainMemory();
+    return entry.plot;
+  }
+
+  /**
+   * Put plot to cache.
+   *
+   * @param key  key from {@link #getKey}, may be null
+   * @param plot rendered plot
+   * @return time the plot is cached for, ms; 0 if it isn't cached
+   */
+  public synchronized long put(Key key, Valve3Plot plot) {
+    if (key == null || maxSize <= 0) {
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    plot.retainMemory();
+    Entry old = entries.put(key.key, new Entry(plot, now + key.ttl));
+    if (old != null) {
+      old.plot.releaseMemory();
+    }
+
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.expires < now) {
+        it.remove();
+        entry.plot.releaseMemory();
+      }
+    }
+    it = entries.values().iterator();
+    while (entries.size() > maxSize && it.hasNext()) {
+      Entry entry = it.next();
+      it.remove();
+      entry.plot.releaseMemory();
+      evictions++;
+    }
+    return key.ttl;
+  }
+
+  /**
+   * Handle the request for cache statistics.
+   *
+   * @see HttpHandler#handle
+   */
+  public synchronized Object handle(HttpServletRequest request) {
+    List<String> ls = new ArrayList<String>();
+    ls.add("size=" + entries.size());
+    ls.add("maxSize=" + maxSize);
+    ls.add("hits=" + hits);
+    ls.add("misses=" + misses);
+    ls.add("evictions=" + evictions);
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+
+  /**
+   * Supporting class, cache key, time to keep the plot for and whether the plot shows only
+   * settled data.
+   */
+  public static class Key {
+    private final String key;
+    private final long ttl;
+    private final boolean live;
+
+    private Key(String key, long ttl, boolean live) {
+      this.key = key;
+      this.ttl = ttl;
+      this.live = live;
+    }
+
+    /**
+     * Getter for canonical description of the plot request.
+     *
+     * @return key string
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Getter for entity tag of the plot, derived from the key.
+     *
+     * @return quoted entity tag
+     */
+    public String getETag() {
+      return "\"" + ResultFiles.hash(key) + "\"";
+    }
+
+    /**
+     * Check if the plot can't change, as its whole time window is settled.
+     *
+     * @return true if plot shows only historical data
+     */
+    public boolean isImmutable() {
+      return !live;
+    }
+  }
+
+  /**
+   * Supporting class, cached plot.
+   */
+  private static class Entry {
+    public final Valve3Plot plot;
+    public final long expires;
+
+    public Entry(Valve3Plot p, long e) {
+      plot = p;
+      expires = e;
+    }
+  }
+}
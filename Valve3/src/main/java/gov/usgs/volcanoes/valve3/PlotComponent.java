@@ -9,6 +9,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.TreeMap;
 
 /**
  * Keeps set of parameters to generate valve plot component. A plot can contain several components.
@@ -33,6 +34,9 @@ public class PlotComponent {
 
   private boolean exportable = false;
 
+  private long fetchTime = -1;
+  private long renderTime = -1;
+
   /**
    * Constructor.
    *
@@ -87,6 +91,15 @@ public class PlotComponent {
     return params.get(key);
   }
 
+  /**
+   * Yield all parameters, sorted by name.
+   *
+   * @return copy of parameters map
+   */
+  public Map<String, String> getParameters() {
+    return new TreeMap<String, String>(params);
+  }
+
   /**
    * Get parameter value as integer.
    *
@@ -408,10 +421,34 @@ public class PlotComponent {
       }
     }
     sb.append("\t\t\t<plotter>" + (plotter == null ? "" : plotter) + "</plotter>\n");
+    if (fetchTime >= 0) {
+      sb.append("\t\t\t<fetch-time>" + fetchTime + "</fetch-time>\n");
+    }
+    if (renderTime >= 0) {
+      sb.append("\t\t\t<render-time>" + renderTime + "</render-time>\n");
+    }
     sb.append("\t\t</component>\n");
     return sb.toString();
   }
 
+  /**
+   * Setter for time spent retrieving component's data.
+   *
+   * @param ms time in milliseconds
+   */
+  public void setFetchTime(long ms) {
+    fetchTime = ms;
+  }
+
+  /**
+   * Setter for time spent rendering component.
+   *
+   * @param ms time in milliseconds
+   */
+  public void setRenderTime(long ms) {
+    renderTime = ms;
+  }
+
   /**
    * Setter for graph's exportability.
    *
@@ -1,26 +1,39 @@
 package gov.usgs.volcanoes.valve3;
 
-import gov.usgs.volcanoes.core.legacy.util.Pool;
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.legacy.plot.PlotException;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.data.DataHandler;
 import gov.usgs.volcanoes.valve3.data.DataSourceDescriptor;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.plotter.ChannelMapPlotter;
 import gov.usgs.volcanoes.valve3.result.ErrorMessage;
+import gov.usgs.volcanoes.valve3.result.NotModified;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.vdx.ExportConfig;
 import gov.usgs.volcanoes.vdx.client.VDXClient;
 
-import java.io.File;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -44,8 +57,11 @@ public class PlotHandler implements HttpHandler {
   public static final int DEFAULT_COMPONENT_MAPHEIGHT = 900;
   public static final int MAX_PLOT_WIDTH = 6000;
   public static final int MAX_PLOT_HEIGHT = 50000;
+  public static final int DEFAULT_FETCH_THREADS = 8;
 
   private DataHandler dataHandler;
+  private ExecutorService fetchExecutor;
+  private PlotCache plotCache;
 
   /**
    * Constructor.
@@ -54,6 +70,51 @@ public class PlotHandler implements HttpHandler {
    */
   public PlotHandler(DataHandler dh) {
     dataHandler = dh;
+    int threads = DEFAULT_FETCH_THREADS;
+    if (dh.getConfig() != null) {
+      threads = StringUtils.stringToInt(dh.getConfig().getString("plot.fetchThreads"),
+                                        DEFAULT_FETCH_THREADS);
+    }
+    threads = Math.max(1, threads);
+    LOGGER.info("Plot data fetch threads: {}", threads);
+
+    // when all threads are busy and the queue is full the requesting thread fetches itself
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * 4), new FetchThreadFactory(),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    fetchExecutor = executor;
+
+    ConfigFile config = dh.getConfig();
+    if (config == null) {
+      plotCache = new PlotCache(0, PlotCache.DEFAULT_BUCKET, PlotCache.DEFAULT_SETTLE_TIME,
+                                PlotCache.DEFAULT_HISTORICAL_TTL);
+    } else {
+      plotCache = new PlotCache(
+          StringUtils.stringToInt(config.getString("plotCache.maxSize"),
+                                  PlotCache.DEFAULT_MAX_SIZE),
+          StringUtils.stringToInt(config.getString("plotCache.bucket"), PlotCache.DEFAULT_BUCKET),
+          StringUtils.stringToInt(config.getString("plotCache.settleTime"),
+                                  PlotCache.DEFAULT_SETTLE_TIME),
+          StringUtils.stringToInt(config.getString("plotCache.historicalTtl"),
+                                  PlotCache.DEFAULT_HISTORICAL_TTL));
+    }
+  }
+
+  /**
+   * Getter for plot cache.
+   *
+   * @return cache of rendered plots
+   */
+  public PlotCache getPlotCache() {
+    return plotCache;
+  }
+
+  /**
+   * Stop data fetch threads.
+   */
+  public void shutdown() {
+    fetchExecutor.shutdownNow();
   }
 
   /**
@@ -90,7 +151,7 @@ public class PlotHandler implements HttpHandler {
           }
           ec = v3.getExportConfig("");
           ec.parameterize(params);
-          Pool<VDXClient> pool = v3.getDataHandler().getVDXClient(dsd.getVDXClientName());
+          VDXClientPool pool = v3.getDataHandler().getVDXClient(dsd.getVDXClientName());
 
           if (pool == null) {
             throw new Valve3Exception("Unknown VDX server " + dsd.getVDXClientName()
@@ -103,6 +164,9 @@ public class PlotHandler implements HttpHandler {
             ecs = cl.getTextData(params);
           } catch (UtilException e) {
             ecs = new ArrayList<String>();
+          } catch (RuntimeException e) {
+            pool.invalidate(cl);
+            throw e;
           } finally {
             pool.checkin(cl);
           }
@@ -224,7 +288,28 @@ public class PlotHandler implements HttpHandler {
         return null;
       }
 
-      Valve3Plot plot = new Valve3Plot(request, components.size());
+      // repeated requests reuse the plot rendered for the first one
+      PlotCache.Key cacheKey = plotCache.getKey(request, components);
+      Valve3Plot cached = plotCache.get(cacheKey);
+      if (cached != null) {
+        return cached;
+      }
+      if (cacheKey != null
+          && ResultServer.matches(request.getHeader("If-None-Match"), cacheKey.getETag())) {
+        // the client has the plot; skip rendering unless its document refers to an image file,
+        // which may have been deleted since
+        String o = request.getParameter("o");
+        if (o == null || o.equals("png") || o.equals("ps")) {
+          return new NotModified(cacheKey.getETag(), cacheKey.isImmutable());
+        }
+      }
+
+      Valve3Plot plot = new Valve3Plot(request);
+      if (cacheKey != null) {
+        plot.setContentKey(cacheKey.getKey());
+        plot.setETag(cacheKey.getETag(), cacheKey.isImmutable());
+      }
+      List<Plotter> plotters = new ArrayList<Plotter>(components.size());
       for (PlotComponent component : components) {
         String source = component.getSource();
         Plotter plotter = null;
@@ -242,15 +327,37 @@ public class PlotHandler implements HttpHandler {
         } else {
           plotter = dataHandler.getDataSourceDescriptor(component.getSource()).getPlotter();
         }
+        plotters.add(plotter);
+      }
+
+      // retrieve data for all components first, then render them in request order
+      fetchData(components, plotters);
+      for (int i = 0; i < components.size(); i++) {
+        Plotter plotter = plotters.get(i);
         if (plotter != null) {
+          PlotComponent component = components.get(i);
+          long start = System.currentTimeMillis();
           try {
             plotter.plot(plot, component);
           } catch (Exception e) {
             throw new Valve3Exception(e.getMessage());
           }
+          component.setRenderTime(System.currentTimeMillis() - start);
         }
       }
-      Valve3.getInstance().getResultDeleter().addResult(plot);
+
+      // all components are in place, render and encode the plot once
+      try {
+        plot.writeFile();
+      } catch (PlotException e) {
+        throw new Valve3Exception(e.getMessage());
+      }
+      long cacheTime = plotCache.put(cacheKey, plot);
+      if (!plot.isInMemory()) {
+        // images in memory are released by their holders, files by the deleter
+        ResultDeleter deleter = Valve3.getInstance().getResultDeleter();
+        deleter.addResult(plot, cacheTime + deleter.getLifetime(plot));
+      }
       return plot;
     } catch (Valve3Exception e) {
       LOGGER.error("{}", e.getMessage());
@@ -259,12 +366,131 @@ public class PlotHandler implements HttpHandler {
   }
 
   /**
-   * Yield a random file name.
+   * Retrieve data for all components. Components are fetched concurrently, but no more components
+   * of one vdx at a time than there are clients in its pool.
+   *
+   * @param components plot components
+   * @param plotters   plotters for components, in the same order
+   * @throws Valve3Exception if data for some component couldn't be retrieved
+   */
+  protected void fetchData(List<PlotComponent> components, List<Plotter> plotters)
+      throws Valve3Exception {
+    if (components.size() == 1) {
+      if (plotters.get(0) != null) {
+        new FetchWorker(components, plotters, null).fetch(0);
+      }
+      return;
+    }
+
+    // group components by vdx
+    Map<String, Queue<Integer>> queues = new LinkedHashMap<String, Queue<Integer>>();
+    for (int i = 0; i < components.size(); i++) {
+      Plotter plotter = plotters.get(i);
+      if (plotter == null) {
+        continue;
+      }
+      String vdx = String.valueOf(plotter.vdxClient);
+      Queue<Integer> queue = queues.get(vdx);
+      if (queue == null) {
+        queue = new ConcurrentLinkedQueue<Integer>();
+        queues.put(vdx, queue);
+      }
+      queue.add(i);
+    }
+
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (Map.Entry<String, Queue<Integer>> me : queues.entrySet()) {
+      int workers = Math.min(me.getValue().size(),
+                             Math.max(1, dataHandler.getVDXClientCount(me.getKey())));
+      for (int i = 0; i < workers; i++) {
+        futures.add(fetchExecutor.submit(new FetchWorker(components, plotters, me.getValue())));
+      }
+    }
+
+    Valve3Exception error = null;
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (error == null) {
+          error = new Valve3Exception("Data request interrupted");
+        }
+      } catch (ExecutionException e) {
+        if (error == null) {
+          Throwable cause = e.getCause();
+          error = cause instanceof Valve3Exception ? (Valve3Exception) cause
+                  : new Valve3Exception(cause.getMessage());
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * Yield a unique file name.
    *
    * @param extension filename extension
-   * @return random file name in the img/ directory with .png extension
+   * @return unique file name in a shard directory below the img/ directory
    */
   public static String getRandomFilename(String extension) {
-    return "img" + File.separator + "tmp" + Math.round(Math.random() * 100000) + "." + extension;
+    return ResultFiles.getUniqueName("img", extension);
+  }
+
+  /**
+   * Fetches data for queued components one by one until the queue is empty.
+   */
+  private static class FetchWorker implements Callable<Void> {
+    private final List<PlotComponent> components;
+    private final List<Plotter> plotters;
+    private final Queue<Integer> queue;
+
+    public FetchWorker(List<PlotComponent> c, List<Plotter> p, Queue<Integer> q) {
+      components = c;
+      plotters = p;
+      queue = q;
+    }
+
+    public Void call() throws Valve3Exception {
+      Integer i;
+      while ((i = queue.poll()) != null) {
+        try {
+          fetch(i);
+        } catch (Valve3Exception e) {
+          // the plot fails anyway, spare the vdx the remaining requests
+          queue.clear();
+          throw e;
+        }
+      }
+      return null;
+    }
+
+    public void fetch(int i) throws Valve3Exception {
+      PlotComponent component = components.get(i);
+      long start = System.currentTimeMillis();
+      try {
+        plotters.get(i).fetchData(component);
+      } catch (Valve3Exception e) {
+        throw e;
+      } catch (Exception e) {
+        throw new Valve3Exception(e.getMessage());
+      }
+      component.setFetchTime(System.currentTimeMillis() - start);
+    }
+  }
+
+  /**
+   * Creates named daemon threads for data fetching.
+   */
+  private static class FetchThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "plot-fetch-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
   }
 }
@@ -1,17 +1,18 @@
 package gov.usgs.volcanoes.valve3;
 
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
-import gov.usgs.volcanoes.core.legacy.plot.Plot;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
+import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.vdx.ExportConfig;
 import gov.usgs.volcanoes.vdx.client.VDXClient;
 
-import java.awt.Color;
 import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -72,6 +73,22 @@ public abstract class Plotter {
    */
   public String toExport(PlotComponent comp, Map<String, String> cmt, OutputStream seedOut)
       throws Valve3Exception {
+    StringWriter out = new StringWriter();
+    toExport(comp, cmt, seedOut, out);
+    return out.toString();
+  }
+
+  /**
+   * Exports PlotComponent to export format, writing text as it is generated.
+   *
+   * @param comp PlotComponent
+   * @param cmt  comment
+   * @param seedOut stream to write seed data to
+   * @param out  writer for exported text
+   * @throws Valve3Exception when export is not available for this datasource
+   */
+  public void toExport(PlotComponent comp, Map<String, String> cmt, OutputStream seedOut,
+      Writer out) throws Valve3Exception {
     throw new Valve3Exception("Data export not available for this data source.");
   }
 
@@ -109,7 +126,19 @@ public abstract class Plotter {
   }
 
   /**
-   * renders PlotComponent in given plot.
+   * Retrieves the data needed to render PlotComponent. Plot handler calls it for all components
+   * before rendering any of them, so plotters that override it can be fetched concurrently. Does
+   * nothing by default, the plotter then retrieves its data in {@link #plot}.
+   *
+   * @param comp PlotComponent
+   * @throws Valve3Exception exception
+   */
+  public void fetchData(PlotComponent comp) throws Valve3Exception {
+  }
+
+  /**
+   * renders PlotComponent in given plot. The plot file itself is written once by
+   * {@link Valve3Plot#writeFile()} after all components have been added.
    *
    * @param v3p  Valve3Plot
    * @param comp PlotComponent
@@ -129,7 +158,7 @@ public abstract class Plotter {
 
     // declare variables
     List<String> stringList = null;
-    Pool<VDXClient> pool = null;
+    VDXClientPool pool = null;
     VDXClient client = null;
 
     Map<String, String> params = new LinkedHashMap<String, String>();
@@ -147,10 +176,14 @@ public abstract class Plotter {
       // Fold in overrides from VDX for this source
       pool = v3.getDataHandler().getVDXClient(vdxClient);
       if (pool != null) {
-        client = pool.checkout();
         try {
+          client = pool.checkout();
           stringList = client.getTextData(params);
+        } catch (UtilException e) {
+          stringList = new ArrayList<String>();
         } catch (Exception e) {
+          // client is null if checkout failed, invalidating it does nothing then
+          pool.invalidate(client);
           stringList = new ArrayList<String>();
         } finally {
           pool.checkin(client);
@@ -179,22 +212,4 @@ public abstract class Plotter {
   public String getDataType() {
     return null;
   }
-
-  protected void writeFile(Valve3Plot v3p) throws PlotException, Valve3Exception {
-    Plot plot = v3p.getPlot();
-    plot.setBackgroundColor(Color.white);
-
-    switch (v3p.getOutputType()) {
-      case XML:
-      case PNG:
-        plot.writePNG(v3p.getLocalFilename());
-        break;
-      case PS:
-        plot.writePS(v3p.getLocalFilename());
-        break;
-      default:
-        throw new Valve3Exception("Unknown output type " + v3p.getOutputType());
-    }
-
-  }
 }
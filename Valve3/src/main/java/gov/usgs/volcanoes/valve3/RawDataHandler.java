@@ -10,9 +10,12 @@ import gov.usgs.volcanoes.valve3.result.RawData;
 import gov.usgs.volcanoes.vdx.data.Rank;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -45,6 +48,8 @@ public class RawDataHandler implements HttpHandler {
   public static final int DEFAULT_COMPONENT_MAPHEIGHT = 900;
   public static final int MAX_PLOT_WIDTH = 6000;
   public static final int MAX_PLOT_HEIGHT = 50000;
+  // size of buffer export files are written through
+  public static final int EXPORT_BUFFER_SIZE = 64 * 1024;
 
   private DataHandler dataHandler;
 
@@ -176,6 +181,9 @@ public class RawDataHandler implements HttpHandler {
    */
   public Object handle(HttpServletRequest request) {
     String ext = "";
+    Writer out = null;
+    String outFilePath = null;
+    File tempFile = null;
     try {
       List<PlotComponent> components = parseRequest(request);
       if (components == null || components.size() <= 0) {
@@ -198,9 +206,7 @@ public class RawDataHandler implements HttpHandler {
       Map<Integer, Rank> ranksMap = null;
       boolean miniseed = false;
       String fn = null;
-      String filePath = null;
       String outFileName = null;
-      String outFilePath = null;
 
       cmtBits.put("URL", request.getRequestURL().toString() + "?" + request.getQueryString());
 
@@ -291,8 +297,6 @@ public class RawDataHandler implements HttpHandler {
         fn = df.format(now) + "_"
             + fnSource.replaceAll("-", "_") + "_"
             + (fnRank == null ? "_NoRank" : fnRank.replaceAll("-", "_"));
-        filePath = Valve3.getInstance().getApplicationPath() + File.separatorChar + "data"
-                   + File.separatorChar + fn;
         if (!miniseed && outputType.equals("seed")) {
           miniseed = true;
         } else {
@@ -301,9 +305,12 @@ public class RawDataHandler implements HttpHandler {
         if (plotter != null) {
           if (miniseed) {
             try {
-              outFilePath = filePath + ".zip";
-              outFileName = fn + ".zip";
-              FileOutputStream zipdest = new FileOutputStream(outFilePath);
+              if (outFilePath == null) {
+                outFileName = ResultFiles.getUniqueName("data", fn, "zip");
+                outFilePath = getLocalPath(outFileName);
+              }
+              tempFile = ResultFiles.createTempFile(new File(outFilePath));
+              FileOutputStream zipdest = new FileOutputStream(tempFile);
               ZipOutputStream zipout = new ZipOutputStream(new BufferedOutputStream(zipdest));
               ZipEntry zipentry = new ZipEntry(fn + ".msi");
               zipout.putNextEntry(zipentry);
@@ -312,6 +319,8 @@ public class RawDataHandler implements HttpHandler {
               zipout.putNextEntry(zipentry);
               zipout.write(sb.toString().getBytes());
               zipout.close();
+              ResultFiles.commit(tempFile, new File(outFilePath));
+              tempFile = null;
             } catch (ZipException ez) {
               LOGGER.info("RawDataHandler zipfile error");
               throw new Valve3Exception(ez.getMessage());
@@ -320,24 +329,35 @@ public class RawDataHandler implements HttpHandler {
               throw new Valve3Exception(eio.getMessage());
             }
           } else {
-            sb.append(plotter.toExport(component, cmtBits, null));
+            if (out == null) {
+              outFileName = ResultFiles.getUniqueName("data", fn, ext);
+              outFilePath = getLocalPath(outFileName);
+              tempFile = createTempFile(outFilePath);
+              out = openExport(tempFile);
+            }
+            plotter.toExport(component, cmtBits, null, out);
           }
         }
       }
 
       if (outFilePath == null) {
+        outFileName = ResultFiles.getUniqueName("data", fn, ext);
+        outFilePath = getLocalPath(outFileName);
+        tempFile = createTempFile(outFilePath);
+        out = openExport(tempFile);
+      }
+      if (out != null) {
         try {
-          outFilePath = filePath + "." + ext;
-          outFileName = fn + "." + ext;
-          FileOutputStream out = new FileOutputStream(outFilePath);
-          out.write(sb.toString().getBytes());
           out.close();
+          out = null;
+          ResultFiles.commit(tempFile, new File(outFilePath));
+          tempFile = null;
         } catch (IOException e) {
           LOGGER.info("RawDataHandler file error");
           throw new Valve3Exception(e.getMessage());
         }
       }
-      String fileUrl = "data/" + outFileName;
+      String fileUrl = outFileName.replace(File.separatorChar, '/');
       RawData rd = new RawData(fileUrl, outFilePath);
 
       Valve3.getInstance().getResultDeleter().addResult(rd);
@@ -345,6 +365,61 @@ public class RawDataHandler implements HttpHandler {
     } catch (Valve3Exception e) {
       LOGGER.info("RawDataHandler error: {}", e.getMessage());
       return new ErrorMessage(e.getMessage());
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          LOGGER.debug("Error closing export file: {}", e.getMessage());
+        }
+      }
+      if (tempFile != null) {
+        // export failed, drop the partial file
+        tempFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Yield full path of export file.
+   *
+   * @param name file name relative to application path
+   * @return full file path
+   */
+  private String getLocalPath(String name) {
+    return Valve3.getInstance().getApplicationPath() + File.separatorChar + name;
+  }
+
+  /**
+   * Create temporary file the export is written to before it's moved into place.
+   *
+   * @param path full path of export file
+   * @return temporary file
+   * @throws Valve3Exception if shard directory can't be created
+   */
+  private File createTempFile(String path) throws Valve3Exception {
+    try {
+      return ResultFiles.createTempFile(new File(path));
+    } catch (IOException e) {
+      LOGGER.info("RawDataHandler file error");
+      throw new Valve3Exception(e.getMessage());
+    }
+  }
+
+  /**
+   * Open buffered writer for export file.
+   *
+   * @param file file to write
+   * @return writer
+   * @throws Valve3Exception if file can't be created
+   */
+  private Writer openExport(File file) throws Valve3Exception {
+    try {
+      return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)),
+          EXPORT_BUFFER_SIZE);
+    } catch (IOException e) {
+      LOGGER.info("RawDataHandler file error");
+      throw new Valve3Exception(e.getMessage());
     }
   }
 }
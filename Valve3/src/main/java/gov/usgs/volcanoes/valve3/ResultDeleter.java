@@ -1,26 +1,99 @@
 package gov.usgs.volcanoes.valve3;
 
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.valve3.result.RawData;
 import gov.usgs.volcanoes.valve3.result.Result;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Keeps list of {@link Entry}s to manage result set.
+ * Keeps generated results in a queue ordered by expiration time and deletes them when they
+ * expire, or earlier if their files take more disk space than the quota allows. Results younger
+ * than the minimum lifetime are never deleted early, as clients may not have fetched them yet.
+ * Deletion is done by a small executor. Also handles the request for result statistics.
  *
  * @author Dan Cervelli
  */
-public class ResultDeleter extends Thread {
-  private static final int DELETE_DELAY = 60 * 1000;
-  private static final int DELETE_THRESHOLD = 10 * 60 * 1000;
-  private List<Entry> results;
-  private boolean kill = false;
+public class ResultDeleter extends Thread implements HttpHandler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResultDeleter.class);
+  public static final int DEFAULT_LIFETIME = 10 * 60;
+  public static final int DEFAULT_DELETE_THREADS = 2;
+  public static final int DEFAULT_MIN_LIFETIME = 60;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final PriorityQueue<Entry> results;
+  private final ThreadPoolExecutor executor;
+  private long plotLifetime = DEFAULT_LIFETIME * 1000L;
+  private long exportLifetime = DEFAULT_LIFETIME * 1000L;
+  private long quota = 0;
+  private long minLifetime = DEFAULT_MIN_LIFETIME * 1000L;
+  // time the quota can be enforced again, when only young results were left to delete
+  private long quotaRetry = 0;
+  private boolean quotaUnmet = false;
+  private long sequence = 0;
+  private long bytes = 0;
+  private long deleted = 0;
+  private long evicted = 0;
+  private volatile boolean kill = false;
 
   /**
    * Default constructor.
    */
   public ResultDeleter() {
-    results = new ArrayList<Entry>(100);
+    super("result-deleter");
+    setDaemon(true);
+    results = new PriorityQueue<Entry>(100);
+    executor = new ThreadPoolExecutor(DEFAULT_DELETE_THREADS, DEFAULT_DELETE_THREADS, 60,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DeleteThreadFactory());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Read lifetimes of plots and exports, disk quota, minimum lifetime and count of delete threads
+   * from configuration.
+   *
+   * @param config valve3 configuration
+   */
+  public void configure(ConfigFile config) {
+    lock.lock();
+    try {
+      plotLifetime = 1000L * StringUtils.stringToInt(config.getString("results.plotLifetime"),
+          DEFAULT_LIFETIME);
+      exportLifetime = 1000L * StringUtils.stringToInt(
+          config.getString("results.exportLifetime"), DEFAULT_LIFETIME);
+      quota = 1024L * 1024L * StringUtils.stringToInt(config.getString("results.quota"), 0);
+      minLifetime = 1000L * StringUtils.stringToInt(config.getString("results.minLifetime"),
+          DEFAULT_MIN_LIFETIME);
+      quotaRetry = 0;
+      changed.signal();
+    } finally {
+      lock.unlock();
+    }
+    int threads = Math.max(1, StringUtils.stringToInt(config.getString("results.deleteThreads"),
+        DEFAULT_DELETE_THREADS));
+    if (threads > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(threads);
+      executor.setCorePoolSize(threads);
+    } else {
+      executor.setCorePoolSize(threads);
+      executor.setMaximumPoolSize(threads);
+    }
   }
 
   /**
@@ -32,65 +105,213 @@ public class ResultDeleter extends Thread {
   }
 
   /**
-   * Adds new entry to managed list.
+   * Adds new result, which is kept for the lifetime of its type.
+   *
+   * @param result {@link Result} to manage
+   */
+  public void addResult(Result result) {
+    addResult(result, 0);
+  }
+
+  /**
+   * Adds new result, which is kept at least given time and at least the lifetime of its type.
    *
-   * @param result {@link Result} contained in the entry
+   * @param result   {@link Result} to manage
+   * @param lifetime time before the result is deleted, ms
    */
-  public synchronized void addResult(Result result) {
-    results.add(new Entry(result));
+  public void addResult(Result result, long lifetime) {
+    long size = result.getSize();
+    lock.lock();
+    try {
+      Entry e = new Entry(result, Math.max(lifetime, getLifetime(result)), size, sequence++);
+      results.add(e);
+      bytes += size;
+      if (results.peek() == e || (quota > 0 && bytes > quota)) {
+        changed.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
-   * Delete entry from managed list.
+   * Getter for time results of given type are kept.
    *
-   * @param i Serial number of entry to delete
+   * @param result result
+   * @return time, ms
    */
-  private synchronized void deleteResult(int i) {
-    results.remove(i);
+  public long getLifetime(Result result) {
+    return result instanceof RawData ? exportLifetime : plotLifetime;
   }
 
   /**
-   * Deletes entries from managed list.
+   * Deletes results.
    *
-   * @param force if true, deletes all entries. If false, deletes only old ones,
-   *              older then DELETE_THRESHOLD ms.
+   * @param force if true, deletes all results, in the calling thread. If false, deletes only
+   *              expired ones, and the ones closest to expiring while over quota, unless younger
+   *              than the minimum lifetime.
    */
   public void deleteResults(boolean force) {
-    long now = System.currentTimeMillis();
-    for (int i = 0; i < results.size(); i++) {
-      Entry e = results.get(i);
-      if (force || (now - e.time > DELETE_THRESHOLD)) {
-        e.result.delete();
-        deleteResult(i);
-        i--;
+    List<Entry> expired = new ArrayList<Entry>();
+    lock.lock();
+    try {
+      long now = System.currentTimeMillis();
+      List<Entry> spared = new ArrayList<Entry>();
+      while (!results.isEmpty()
+          && (force || results.peek().expires <= now || (quota > 0 && bytes > quota))) {
+        Entry e = results.poll();
+        if (!force && e.expires > now && now - e.created < minLifetime) {
+          spared.add(e);
+          continue;
+        }
+        bytes -= e.size;
+        if (!force && e.expires > now) {
+          evicted++;
+        }
+        deleted++;
+        expired.add(e);
+      }
+      results.addAll(spared);
+      quotaRetry = 0;
+      if (quota > 0 && bytes > quota && !spared.isEmpty()) {
+        quotaRetry = Long.MAX_VALUE;
+        for (Entry e : spared) {
+          quotaRetry = Math.min(quotaRetry, e.created + minLifetime);
+        }
+        if (!quotaUnmet) {
+          LOGGER.warn("Result quota of {} bytes not met, {} bytes live, held by {} results "
+              + "younger than {} s", quota, bytes, spared.size(), minLifetime / 1000);
+        }
+        quotaUnmet = true;
+      } else {
+        quotaUnmet = false;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (expired.isEmpty()) {
+      return;
+    }
+    if (force) {
+      for (Entry e : expired) {
+        e.run();
+      }
+      executor.shutdown();
+    } else {
+      for (Entry e : expired) {
+        executor.execute(e);
       }
     }
   }
 
   /**
-   * Main execution thread. Call deleteResults() in non-force manner every DELETE_DELAY ms
+   * Main execution thread. Waits until the earliest result expires or the quota is exceeded and
+   * deletes results.
    */
   public void run() {
     while (!kill) {
       try {
-        Thread.sleep(DELETE_DELAY);
-        deleteResults(false);
+        lock.lock();
+        try {
+          while (!kill && !hasWork()) {
+            if (results.isEmpty()) {
+              changed.await();
+            } else {
+              long wake = results.peek().expires;
+              if (quota > 0 && bytes > quota) {
+                wake = Math.min(wake, quotaRetry);
+              }
+              changed.await(wake - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            }
+          }
+        } finally {
+          lock.unlock();
+        }
+        if (!kill) {
+          deleteResults(false);
+        }
+      } catch (InterruptedException e) {
+        // killed
       } catch (Exception e) {
-        e.printStackTrace();
+        LOGGER.error("Error deleting results", e);
       }
     }
   }
 
   /**
-   * Supporting class, entry in managed list, keeps result and it's time.
+   * Handle the request for result statistics.
+   *
+   * @see HttpHandler#handle
+   */
+  public Object handle(HttpServletRequest request) {
+    List<String> ls = new ArrayList<String>();
+    lock.lock();
+    try {
+      ls.add("liveResults=" + results.size());
+      ls.add("liveBytes=" + bytes);
+      ls.add("quota=" + quota);
+      ls.add("deleted=" + deleted);
+      ls.add("evicted=" + evicted);
+    } finally {
+      lock.unlock();
+    }
+    ls.add("pendingDeletes=" + executor.getQueue().size());
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+
+  /**
+   * Check if a result is due for deletion. Must be called with lock held.
+   */
+  private boolean hasWork() {
+    long now = System.currentTimeMillis();
+    return !results.isEmpty() && (results.peek().expires <= now
+        || (quota > 0 && bytes > quota && quotaRetry <= now));
+  }
+
+  /**
+   * Supporting class, managed result and it's expiration time. Deletes the result when run.
    */
-  private class Entry {
-    public long time;
-    public Result result;
+  private static class Entry implements Comparable<Entry>, Runnable {
+    public final long created;
+    public final long expires;
+    public final long size;
+    public final long sequence;
+    public final Result result;
 
-    public Entry(Result r) {
-      time = System.currentTimeMillis();
+    public Entry(Result r, long lifetime, long s, long seq) {
+      created = System.currentTimeMillis();
+      expires = created + lifetime;
       result = r;
+      size = s;
+      sequence = seq;
+    }
+
+    public int compareTo(Entry o) {
+      if (expires != o.expires) {
+        return expires < o.expires ? -1 : 1;
+      }
+      return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+    }
+
+    public void run() {
+      try {
+        result.delete();
+      } catch (Exception e) {
+        LOGGER.warn("Couldn't delete result {}: {}", result.getUrl(), e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Supporting class, creates daemon threads for deleting results.
+   */
+  private static class DeleteThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "result-delete-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
     }
   }
 }
@@ -0,0 +1,166 @@
+package gov.usgs.volcanoes.valve3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Names and writes result files. Names are either unique, built from a counter which keeps
+ * increasing across restarts, or derived from a hash of the canonical request, so identical
+ * requests map to one file. Files are spread over 256 shard directories below the result
+ * directory. Results are written to a temporary file in the shard directory and renamed into
+ * place, so readers never see a partial file. Results holding a file are counted, so a file shared
+ * by identical results is deleted only when the last of them releases it.
+ */
+public final class ResultFiles {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final String TEMP_SUFFIX = ".part";
+
+  // seeded with the clock so names of a restarted instance don't repeat earlier ones
+  private static final AtomicLong counter = new AtomicLong(System.currentTimeMillis() * 1000L);
+
+  // count of results holding each file, by absolute path
+  private static final Map<String, int[]> holders = new HashMap<String, int[]>();
+
+  private ResultFiles() {}
+
+  /**
+   * Yield unique file name.
+   *
+   * @param dir       result directory, relative to application path
+   * @param extension filename extension
+   * @return file name relative to application path
+   */
+  public static String getUniqueName(String dir, String extension) {
+    return getUniqueName(dir, null, extension);
+  }
+
+  /**
+   * Yield unique file name with readable prefix.
+   *
+   * @param dir       result directory, relative to application path
+   * @param prefix    start of file name, may be null
+   * @param extension filename extension
+   * @return file name relative to application path
+   */
+  public static String getUniqueName(String dir, String prefix, String extension) {
+    long id = counter.incrementAndGet();
+    String name = Long.toString(id, 36);
+    if (prefix != null) {
+      name = prefix + "_" + name;
+    }
+    return dir + File.separator + HEX[(int) (id >> 4) & 0xf] + HEX[(int) id & 0xf]
+        + File.separator + name + "." + extension;
+  }
+
+  /**
+   * Yield file name derived from content key. Equal keys yield equal names.
+   *
+   * @param dir       result directory, relative to application path
+   * @param key       canonical description of the result
+   * @param extension filename extension
+   * @return file name relative to application path
+   */
+  public static String getContentName(String dir, String key, String extension) {
+    String name = hash(key);
+    return dir + File.separator + name.substring(0, 2) + File.separator + name + "." + extension;
+  }
+
+  /**
+   * Yield hash of content key.
+   *
+   * @param key canonical description of the result
+   * @return SHA-1 of key in hex digits
+   */
+  public static String hash(String key) {
+    byte[] hash;
+    try {
+      hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has SHA-1
+      throw new IllegalStateException(e);
+    }
+    char[] name = new char[hash.length * 2];
+    for (int i = 0; i < hash.length; i++) {
+      name[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+      name[2 * i + 1] = HEX[hash[i] & 0xf];
+    }
+    return new String(name);
+  }
+
+  /**
+   * Create shard directory of the target and yield temporary file to write the result to.
+   *
+   * @param target final result file
+   * @return temporary file in the same directory
+   * @throws IOException if directory can't be created
+   */
+  public static File createTempFile(File target) throws IOException {
+    File parent = target.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      throw new IOException("Can't create directory " + parent);
+    }
+    return new File(parent, target.getName() + "." + Long.toString(counter.incrementAndGet(), 36)
+        + TEMP_SUFFIX);
+  }
+
+  /**
+   * Register a result as holder of a file, before it writes the file.
+   *
+   * @param file result file
+   * @return true if the result is the only holder, i.e. it owns the file and counts its size
+   */
+  public static boolean retain(File file) {
+    String path = file.getAbsolutePath();
+    synchronized (holders) {
+      int[] count = holders.get(path);
+      if (count == null) {
+        holders.put(path, new int[]{1});
+        return true;
+      }
+      count[0]++;
+      return false;
+    }
+  }
+
+  /**
+   * Release a file held by a result, deleting it if no other result holds it.
+   *
+   * @param file result file registered by {@link #retain}
+   */
+  public static void release(File file) {
+    String path = file.getAbsolutePath();
+    synchronized (holders) {
+      int[] count = holders.get(path);
+      if (count != null && --count[0] > 0) {
+        return;
+      }
+      holders.remove(path);
+      file.delete();
+    }
+  }
+
+  /**
+   * Move completely written temporary file into place, replacing existing target.
+   *
+   * @param temp   temporary file from {@link #createTempFile}
+   * @param target final result file
+   * @throws IOException if file can't be moved
+   */
+  public static void commit(File temp, File target) throws IOException {
+    try {
+      Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
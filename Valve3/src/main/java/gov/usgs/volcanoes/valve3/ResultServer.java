@@ -0,0 +1,403 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.valve3.result.Result;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends result files to the client. Files are handed to the container's sendfile support when it
+ * has one, so their content never enters the JVM. Otherwise {@link FileChannel#transferTo} copies
+ * them to the response stream in chunks, through small buffers reused for the whole file: the
+ * stream's channel still passes every chunk through a heap array, but whole files are never held
+ * in memory. Single byte ranges are honored, so large exports can be resumed.
+ * Text results are gzip compressed for clients accepting it. Sets cache headers of tagged results
+ * and answers conditional requests for them. Also handles the request for download statistics.
+ */
+public class ResultServer implements HttpHandler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResultServer.class);
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+  private static final String GZIP_SUFFIX = "-gzip";
+  // smaller bodies aren't worth compressing
+  private static final int GZIP_MIN_SIZE = 1024;
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+  private static final String[] TEXT_EXTENSIONS = {"csv", "csvnots", "xml", "json", "html"};
+  public static final int DEFAULT_MAX_AGE = 24 * 3600;
+
+  private int maxAge = DEFAULT_MAX_AGE;
+
+  private final AtomicLong served = new AtomicLong();
+  private final AtomicLong ranges = new AtomicLong();
+  private final AtomicLong sendfiles = new AtomicLong();
+  private final AtomicLong aborted = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong gzipped = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  // bytes copied by this class rather than the container, and time spent copying them
+  private final AtomicLong copied = new AtomicLong();
+  private final AtomicLong transferTime = new AtomicLong();
+
+  /**
+   * Read time clients may keep immutable results from configuration.
+   *
+   * @param config valve3 configuration
+   */
+  public void configure(ConfigFile config) {
+    maxAge = StringUtils.stringToInt(config.getString("results.cacheMaxAge"), DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * Set cache headers for the result and answer conditional request. Tagged results get their
+   * entity tag, immutable ones may be kept by clients and proxies, other tagged ones must be
+   * revalidated, everything else must not be cached.
+   *
+   * @param result   handler's result
+   * @param request  http request, may carry If-None-Match header
+   * @param response http response
+   * @return true if the client holds the result already and Not Modified was sent
+   */
+  public boolean checkCache(Object result, HttpServletRequest request,
+      HttpServletResponse response) {
+    String etag = result instanceof Result ? ((Result) result).getETag() : null;
+    if (etag == null) {
+      response.setHeader("Cache-Control", "no-cache");
+      response.setHeader("Pragma", "no-cache");
+      response.setDateHeader("Expires", 0);
+      return false;
+    }
+    response.setHeader("ETag", etag);
+    if (((Result) result).isImmutable()) {
+      response.setHeader("Cache-Control", "public, max-age=" + maxAge);
+    } else {
+      response.setHeader("Cache-Control", "no-cache");
+    }
+    if (matches(request.getHeader("If-None-Match"), etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      notModified.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check If-None-Match header against entity tag. Tags of compressed representations match the
+   * tag of the result.
+   *
+   * @param header If-None-Match header, may be null
+   * @param etag   quoted entity tag
+   * @return true if header lists the tag
+   */
+  public static boolean matches(String header, String etag) {
+    if (header == null || etag == null) {
+      return false;
+    }
+    for (String tag : header.split(",")) {
+      tag = tag.trim();
+      if (tag.equals("*")) {
+        return true;
+      }
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.endsWith(GZIP_SUFFIX + "\"")) {
+        tag = tag.substring(0, tag.length() - GZIP_SUFFIX.length() - 1) + "\"";
+      }
+      if (tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Send text result, gzip compressed if the client accepts it.
+   *
+   * @param text        text to send
+   * @param contentType content type, null to keep the one already set
+   * @param request     http request
+   * @param response    http response
+   * @throws IOException if writing fails
+   */
+  public void sendText(String text, String contentType, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    if (contentType != null) {
+      response.setContentType(contentType);
+    }
+    byte[] body = text.getBytes(response.getCharacterEncoding());
+    OutputStream os;
+    if (body.length >= GZIP_MIN_SIZE && startGzip(request, response)) {
+      os = new GZIPOutputStream(response.getOutputStream(), COPY_BUFFER_SIZE);
+    } else {
+      response.setContentLength(body.length);
+      os = response.getOutputStream();
+    }
+    os.write(body);
+    os.close();
+  }
+
+  /**
+   * Send file, or the byte range requested from it.
+   *
+   * @param file        file to send
+   * @param contentType content type, null to keep the one already set
+   * @param request     http request, may carry Range header
+   * @param response    http response
+   * @throws IOException if file can't be read, or writing fails for other reason than the client
+   *                     going away
+   */
+  public void serve(File file, String contentType, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    if (!file.isFile()) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    long length = file.length();
+    long lastModified = file.lastModified();
+    if (contentType != null) {
+      response.setContentType(contentType);
+    }
+    response.setHeader("Accept-Ranges", "bytes");
+    response.setDateHeader("Last-Modified", lastModified);
+
+    long start = 0;
+    long end = length - 1;
+    long[] range = isRangeCurrent(request, lastModified)
+        ? parseRange(request.getHeader("Range"), length) : null;
+    if (range != null) {
+      if (range[0] < 0) {
+        response.setHeader("Content-Range", "bytes */" + length);
+        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+      start = range[0];
+      end = range[1];
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+      ranges.incrementAndGet();
+    }
+    long count = end - start + 1;
+    served.incrementAndGet();
+    boolean gzip = false;
+    if (isText(file)) {
+      // ranges refer to the uncompressed file, so resumed downloads aren't compressed
+      gzip = range == null && count >= GZIP_MIN_SIZE && startGzip(request, response);
+      response.setHeader("Vary", "Accept-Encoding");
+    }
+    if (!gzip) {
+      response.setContentLengthLong(count);
+    }
+    if ("HEAD".equals(request.getMethod())) {
+      return;
+    }
+
+    if (!gzip && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+      // the container writes the file after the request is processed
+      request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+      request.setAttribute(SENDFILE_START, start);
+      request.setAttribute(SENDFILE_END, end + 1);
+      sendfiles.incrementAndGet();
+      bytes.addAndGet(count);
+      return;
+    }
+
+    long begin = System.currentTimeMillis();
+    long sent = 0;
+    FileInputStream in = new FileInputStream(file);
+    try {
+      OutputStream os = response.getOutputStream();
+      if (gzip) {
+        os = new GZIPOutputStream(os, COPY_BUFFER_SIZE);
+      }
+      WritableByteChannel out = Channels.newChannel(os);
+      FileChannel channel = in.getChannel();
+      while (sent < count) {
+        long n = channel.transferTo(start + sent, count - sent, out);
+        if (n <= 0) {
+          break;
+        }
+        sent += n;
+      }
+      if (gzip) {
+        ((GZIPOutputStream) os).finish();
+      }
+      os.flush();
+    } catch (IOException e) {
+      // most likely the client went away, it may resume the download later
+      aborted.incrementAndGet();
+      LOGGER.debug("Sending {} aborted after {} bytes: {}", file, sent, e.getMessage());
+    } finally {
+      in.close();
+      bytes.addAndGet(sent);
+      copied.addAndGet(sent);
+      transferTime.addAndGet(System.currentTimeMillis() - begin);
+    }
+  }
+
+  /**
+   * Handle the request for download statistics.
+   *
+   * @see HttpHandler#handle
+   */
+  public Object handle(HttpServletRequest request) {
+    long t = transferTime.get();
+    List<String> ls = new ArrayList<String>();
+    ls.add("served=" + served.get());
+    ls.add("ranges=" + ranges.get());
+    ls.add("sendfiles=" + sendfiles.get());
+    ls.add("aborted=" + aborted.get());
+    ls.add("notModified=" + notModified.get());
+    ls.add("gzipped=" + gzipped.get());
+    ls.add("bytesServed=" + bytes.get());
+    ls.add("transferTime=" + t);
+    // bytes per second of copied transfers, sendfile transfers are done by the container
+    ls.add("throughput=" + (t == 0 ? 0 : copied.get() * 1000 / t));
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+
+  /**
+   * Check if client accepts gzip encoding, and if so set headers of compressed response.
+   *
+   * @return true if the body should be compressed
+   */
+  private boolean startGzip(HttpServletRequest request, HttpServletResponse response) {
+    if (!acceptsGzip(request.getHeader("Accept-Encoding"))) {
+      return false;
+    }
+    response.setHeader("Content-Encoding", "gzip");
+    response.setHeader("Vary", "Accept-Encoding");
+    String etag = response.getHeader("ETag");
+    if (etag != null && etag.endsWith("\"")) {
+      response.setHeader("ETag", etag.substring(0, etag.length() - 1) + GZIP_SUFFIX + "\"");
+    }
+    gzipped.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Check Accept-Encoding header for gzip with nonzero quality.
+   */
+  static boolean acceptsGzip(String header) {
+    if (header == null) {
+      return false;
+    }
+    for (String coding : header.split(",")) {
+      String[] parts = coding.split(";");
+      if (!parts[0].trim().equalsIgnoreCase("gzip")) {
+        continue;
+      }
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            return Double.parseDouble(param.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check if file holds text worth compressing, by its extension.
+   */
+  private static boolean isText(File file) {
+    String name = file.getName();
+    String ext = name.substring(name.lastIndexOf('.') + 1);
+    for (String e : TEXT_EXTENSIONS) {
+      if (e.equals(ext)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check If-Range condition. Only dates are honored, as results carry no entity tags.
+   *
+   * @return true if there's no If-Range or the file wasn't modified since the given date
+   */
+  private static boolean isRangeCurrent(HttpServletRequest request, long lastModified) {
+    if (request.getHeader("If-Range") == null) {
+      return true;
+    }
+    try {
+      long date = request.getDateHeader("If-Range");
+      return lastModified / 1000 <= date / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Parse Range header. Only single ranges are honored, the whole file is sent for others.
+   *
+   * @param header Range header, may be null
+   * @param length file length
+   * @return first and last byte of range; {-1, -1} if range can't be satisfied; null to send
+   *         whole file
+   */
+  static long[] parseRange(String header, long length) {
+    if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = header.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    long start;
+    long end;
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      if (first.isEmpty()) {
+        // suffix range, last n bytes
+        long n = Long.parseLong(last);
+        if (n <= 0) {
+          return new long[] {-1, -1};
+        }
+        start = Math.max(0, length - n);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(first);
+        end = length - 1;
+        if (!last.isEmpty()) {
+          long n = Long.parseLong(last);
+          if (n < start) {
+            return null;
+          }
+          end = Math.min(n, end);
+        }
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (start < 0 || start >= length) {
+      return new long[] {-1, -1};
+    }
+    return new long[] {start, end};
+  }
+}
@@ -0,0 +1,49 @@
+package gov.usgs.volcanoes.valve3;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves result files from the img/ and data/ directories through {@link ResultServer}.
+ */
+public class ResultServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Send the requested result file.
+   *
+   * @see HttpServlet#doGet
+   */
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String path = request.getServletPath()
+        + (request.getPathInfo() == null ? "" : request.getPathInfo());
+    if (path.contains("..") || path.endsWith(".part")) {
+      // no escaping the result directories, nor peeking at files being written
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    File file = new File(Valve3.getInstance().getApplicationPath(),
+        path.replace('/', File.separatorChar));
+    if (path.startsWith("/data/")) {
+      response.setHeader("Content-disposition", "attachment; filename=" + file.getName());
+    }
+    String type = getServletContext().getMimeType(file.getName());
+    Valve3.getInstance().getResultServer().serve(file,
+        type == null ? "application/octet-stream" : type, request, response);
+  }
+
+  /**
+   * Send headers of the requested result file.
+   *
+   * @see HttpServlet#doHead
+   */
+  protected void doHead(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    doGet(request, response);
+  }
+}
@@ -0,0 +1,92 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Accounts memory taken by results kept as encoded bytes instead of files, so images requested
+ * directly can be streamed to the response without a round trip through the disk. A result is
+ * admitted only while the total stays within the limit and the heap isn't short of free memory;
+ * otherwise it's spilled to a file. Memory is released as soon as neither the plot cache nor a
+ * request streaming the result holds it. Also handles the request for store statistics.
+ */
+public class ResultStore implements HttpHandler {
+  public static final int DEFAULT_MAX_SIZE = 32;
+  public static final int DEFAULT_MIN_FREE_HEAP = 10;
+
+  private long maxBytes = DEFAULT_MAX_SIZE * 1024L * 1024L;
+  private int minFreeHeap = DEFAULT_MIN_FREE_HEAP;
+  private long bytes = 0;
+
+  private long stored = 0;
+  private long spilled = 0;
+  private long released = 0;
+
+  /**
+   * Read memory limit and minimal free heap from configuration.
+   *
+   * @param config valve3 configuration
+   */
+  public synchronized void configure(ConfigFile config) {
+    maxBytes = 1024L * 1024L * StringUtils.stringToInt(config.getString("results.memoryMax"),
+        DEFAULT_MAX_SIZE);
+    minFreeHeap = StringUtils.stringToInt(config.getString("results.memoryMinFreeHeap"),
+        DEFAULT_MIN_FREE_HEAP);
+  }
+
+  /**
+   * Reserve memory for a result.
+   *
+   * @param size size of encoded result, in bytes
+   * @return true if the result may be kept in memory, false if it should be written to a file
+   */
+  public synchronized boolean reserve(long size) {
+    if (size > maxBytes - bytes || isLowOnMemory()) {
+      spilled++;
+      return false;
+    }
+    bytes += size;
+    stored++;
+    return true;
+  }
+
+  /**
+   * Release memory of a result reserved by {@link #reserve}.
+   *
+   * @param size size of encoded result, in bytes
+   */
+  public synchronized void release(long size) {
+    bytes -= size;
+    released++;
+  }
+
+  /**
+   * Handle the request for store statistics.
+   *
+   * @see HttpHandler#handle
+   */
+  public synchronized Object handle(HttpServletRequest request) {
+    List<String> ls = new ArrayList<String>();
+    ls.add("liveResults=" + (stored - released));
+    ls.add("bytes=" + bytes);
+    ls.add("maxBytes=" + maxBytes);
+    ls.add("stored=" + stored);
+    ls.add("spilled=" + spilled);
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+
+  /**
+   * Check if free heap, counting memory the heap may still grow by, is below the configured
+   * percentage of maximum heap.
+   */
+  private boolean isLowOnMemory() {
+    Runtime rt = Runtime.getRuntime();
+    long free = rt.maxMemory() - rt.totalMemory() + rt.freeMemory();
+    return free * 100 < rt.maxMemory() * minFreeHeap;
+  }
+}
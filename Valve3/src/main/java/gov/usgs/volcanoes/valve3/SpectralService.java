@@ -0,0 +1,198 @@
+package gov.usgs.volcanoes.valve3;
+
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+import gov.usgs.volcanoes.core.data.Wave;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Runs spectral computations on a shared fork-join pool, configured by "spectra" settings apart
+ * from the general computation pool. Spectrograms are computed here as a short-time Fourier
+ * transform: the windows of a channel are split into ranges of plot columns transformed in
+ * parallel, and the transforms and tapers are cached by length and shared by all requests. The
+ * spectra of several channels are computed in parallel by updating their renderers through
+ * {@link #compute}. Also handles the request for statistics.
+ */
+public class SpectralService extends ComputeService {
+
+  // windows of a chunk below which splitting a spectrogram isn't worth a task
+  private static final int MIN_WINDOWS = 64;
+
+  private final ConcurrentMap<Integer, DoubleFFT_1D> transforms =
+      new ConcurrentHashMap<Integer, DoubleFFT_1D>();
+  private final ConcurrentMap<Integer, double[]> tapers =
+      new ConcurrentHashMap<Integer, double[]>();
+
+  /**
+   * Default constructor.
+   */
+  public SpectralService() {
+    super("spectra");
+  }
+
+  /**
+   * Compute the spectrogram of a wave at the resolution of the plot. Windows of binSize samples,
+   * advanced by binSize * (1 - overlap), are demeaned, Hann tapered and zero padded to nfft. Each
+   * column averages the amplitude of the windows centered in its time span, each row takes the
+   * transform bin nearest to its frequency.
+   *
+   * @param wave      wave
+   * @param viewStart start time of the plot, j2ksec
+   * @param viewEnd   end time of the plot, j2ksec
+   * @param columns   number of time columns
+   * @param minFreq   frequency of the bottom row, Hz
+   * @param maxFreq   frequency of the top row, Hz
+   * @param rows      number of frequency rows
+   * @param binSize   window length, samples
+   * @param nfft      transform length, samples; shorter than binSize means binSize
+   * @param overlap   overlap of consecutive windows, 0 to less than 1
+   * @param logPower  whether to give power in dB rather than amplitude
+   * @return power by column and row from the bottom, NaN in columns without windows
+   * @throws Valve3Exception if the computation fails
+   */
+  public double[][] spectrogram(Wave wave, double viewStart, double viewEnd, int columns,
+      double minFreq, double maxFreq, int rows, final int binSize, int nfft, double overlap,
+      final boolean logPower) throws Valve3Exception {
+    final double[][] power = new double[columns][rows];
+    for (double[] column : power) {
+      Arrays.fill(column, Double.NaN);
+    }
+    final int[] samples = wave.buffer;
+    final double samplingRate = wave.getSamplingRate();
+    if (columns < 1 || rows < 1 || binSize < 2 || samples == null || samples.length < binSize) {
+      return power;
+    }
+
+    final int size = Math.max(nfft, binSize) + Math.max(nfft, binSize) % 2;
+    final int step = Math.max(1, (int) Math.round(binSize * (1 - overlap)));
+    final int count = (samples.length - binSize) / step + 1;
+    final int[] bins = new int[rows];
+    for (int r = 0; r < rows; r++) {
+      double freq = minFreq + (r + 0.5) * (maxFreq - minFreq) / rows;
+      bins[r] = (int) Math.max(0, Math.min(size / 2, Math.round(freq * size / samplingRate)));
+    }
+    final DoubleFFT_1D fft = getTransform(size);
+    final double[] taper = getTaper(binSize);
+
+    // first window centered at or after the start of each column, and after the last column
+    final int[] firstWindows = new int[columns + 1];
+    double columnSeconds = (viewEnd - viewStart) / columns;
+    for (int c = 0; c <= columns; c++) {
+      double offset = (viewStart + c * columnSeconds - wave.getStartTime()) * samplingRate;
+      double first = Math.ceil((offset - binSize / 2.0) / step);
+      firstWindows[c] = (int) Math.max(0, Math.min(count, first));
+    }
+
+    int windows = firstWindows[columns] - firstWindows[0];
+    int minChunk = windows == 0 ? columns : (int) ((long) columns * MIN_WINDOWS / windows);
+    computeChunks(columns, Math.max(1, minChunk), new Chunk<Object>() {
+      public Object compute(int from, int to) {
+        double[] buffer = new double[size];
+        double[] sums = new double[bins.length];
+        for (int c = from; c < to; c++) {
+          int first = firstWindows[c];
+          int last = firstWindows[c + 1];
+          if (last <= first) {
+            continue;
+          }
+          Arrays.fill(sums, 0);
+          for (int w = first; w < last; w++) {
+            transform(samples, w * step, binSize, taper, fft, buffer);
+            for (int r = 0; r < bins.length; r++) {
+              sums[r] += amplitude(buffer, bins[r]);
+            }
+          }
+          for (int r = 0; r < bins.length; r++) {
+            double amplitude = sums[r] / (last - first);
+            power[c][r] = logPower ? 20 * Math.log10(amplitude) : amplitude;
+          }
+        }
+        return null;
+      }
+    });
+    return power;
+  }
+
+  /**
+   * Get the cached transform of a length.
+   *
+   * @param size transform length
+   * @return transform, safe to share between threads
+   */
+  private DoubleFFT_1D getTransform(int size) {
+    DoubleFFT_1D fft = transforms.get(size);
+    if (fft == null) {
+      transforms.putIfAbsent(size, new DoubleFFT_1D(size));
+      fft = transforms.get(size);
+    }
+    return fft;
+  }
+
+  /**
+   * Get the cached Hann taper of a length.
+   *
+   * @param size taper length
+   * @return taper, not to be modified
+   */
+  private double[] getTaper(int size) {
+    double[] taper = tapers.get(size);
+    if (taper == null) {
+      taper = new double[size];
+      for (int i = 0; i < size; i++) {
+        taper[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (size - 1));
+      }
+      tapers.putIfAbsent(size, taper);
+      taper = tapers.get(size);
+    }
+    return taper;
+  }
+
+  /**
+   * Demean, taper and transform a window of samples. Missing samples count as the mean.
+   *
+   * @param samples samples
+   * @param start   index of first sample of the window
+   * @param length  window length
+   * @param taper   taper of the window length
+   * @param fft     transform of the buffer length
+   * @param buffer  buffer receiving the transform, in JTransforms real layout
+   */
+  private static void transform(int[] samples, int start, int length, double[] taper,
+      DoubleFFT_1D fft, double[] buffer) {
+    double sum = 0;
+    int valid = 0;
+    for (int i = start; i < start + length; i++) {
+      if (samples[i] != Wave.NO_DATA) {
+        sum += samples[i];
+        valid++;
+      }
+    }
+    double mean = valid == 0 ? 0 : sum / valid;
+    for (int i = 0; i < length; i++) {
+      int sample = samples[start + i];
+      buffer[i] = sample == Wave.NO_DATA ? 0 : (sample - mean) * taper[i];
+    }
+    Arrays.fill(buffer, length, buffer.length, 0);
+    fft.realForward(buffer);
+  }
+
+  /**
+   * Get the amplitude of a bin of a transform.
+   *
+   * @param buffer transform of even length, in JTransforms real layout
+   * @param bin    bin, 0 to half the length
+   * @return amplitude
+   */
+  private static double amplitude(double[] buffer, int bin) {
+    if (bin == 0) {
+      return Math.abs(buffer[0]);
+    } else if (bin == buffer.length / 2) {
+      return Math.abs(buffer[1]);
+    }
+    double re = buffer[2 * bin];
+    double im = buffer[2 * bin + 1];
+    return Math.sqrt(re * re + im * im);
+  }
+}
@@ -3,7 +3,9 @@ package gov.usgs.volcanoes.valve3;
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoImageSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoLabelSet;
+import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.valve3.data.DataHandler;
+import gov.usgs.volcanoes.valve3.data.VDXStatusHandler;
 import gov.usgs.volcanoes.vdx.ExportConfig;
 
 import java.io.File;
@@ -46,10 +48,16 @@ public class Valve3 implements ServletContextListener {
   private String openDataUrl = "";
 
   private GeoImageSet imageSet;
+  private MapBackgroundCache mapBackgroundCache;
   private GeoLabelSet labelSet;
   private ConfigFile defaults;
 
   private ResultDeleter resultDeleter;
+  private ResultStore resultStore;
+  private ResultServer resultServer;
+  private SpectralService spectralService;
+  private ComputeService computeService;
+  private PlotHandler plotHandler;
 
   private HashMap<String, ExportConfig> exportConfigs;
 
@@ -62,6 +70,10 @@ public class Valve3 implements ServletContextListener {
     org.apache.log4j.Logger.getLogger("gov.usgs.volcanoes.core.legacy.net").setLevel(Level.ERROR);
     resultDeleter = new ResultDeleter();
     resultDeleter.start();
+    resultStore = new ResultStore();
+    resultServer = new ResultServer();
+    spectralService = new SpectralService();
+    computeService = new ComputeService();
     exportConfigs = new HashMap<String, ExportConfig>();
   }
 
@@ -96,7 +108,15 @@ public class Valve3 implements ServletContextListener {
     if (ics != null) {
       imageSet.setMaxLoadedImagesSize(Integer.parseInt(ics));
     }
+    mapBackgroundCache = new MapBackgroundCache(imageSet, StringUtils.stringToInt(
+        config.getString("mapCache.maxSize"), MapBackgroundCache.DEFAULT_MAX_SIZE));
+    mapBackgroundCache.warm(config.getList("mapCache.warm"));
     labelSet = new GeoLabelSet(config.getString("labelIndex"));
+    resultDeleter.configure(config);
+    resultStore.configure(config);
+    resultServer.configure(config);
+    spectralService.configure(config);
+    computeService.configure(config);
     defaults = config.getSubConfig("defaults");
   }
 
@@ -109,6 +129,42 @@ public class Valve3 implements ServletContextListener {
     return resultDeleter;
   }
 
+  /**
+   * Getter for store of results kept in memory.
+   *
+   * @return result store
+   */
+  public ResultStore getResultStore() {
+    return resultStore;
+  }
+
+  /**
+   * Getter for sender of result files.
+   *
+   * @return result server
+   */
+  public ResultServer getResultServer() {
+    return resultServer;
+  }
+
+  /**
+   * Getter for spectral computation service.
+   *
+   * @return spectral service
+   */
+  public SpectralService getSpectralService() {
+    return spectralService;
+  }
+
+  /**
+   * Getter for general computation service.
+   *
+   * @return compute service
+   */
+  public ComputeService getComputeService() {
+    return computeService;
+  }
+
   /**
    * Implementation of Singleton pattern.
    *
@@ -153,6 +209,16 @@ public class Valve3 implements ServletContextListener {
     return dataHandler;
   }
 
+  /**
+   * Getter for cache of rendered plots, which also tells settled time windows from live ones.
+   *
+   * @return plot cache
+   */
+  public PlotCache getPlotCache() {
+    getActionHandler();
+    return plotHandler.getPlotCache();
+  }
+
   /**
    * Getter for action handler.
    *
@@ -164,7 +230,21 @@ public class Valve3 implements ServletContextListener {
       DataHandler dh = getDataHandler();
       actionHandler.getHandlers().put("data", dh);
       actionHandler.getHandlers().put("rawData", new RawDataHandler(dh));
-      actionHandler.getHandlers().put("plot", new PlotHandler(dh));
+      plotHandler = new PlotHandler(dh);
+      actionHandler.getHandlers().put("plot", plotHandler);
+      actionHandler.getHandlers().put("plotCache", plotHandler.getPlotCache());
+      actionHandler.getHandlers().put("invalidateMetadata", dh.getMetadataCache());
+      actionHandler.getHandlers().put("helicorderCache", dh.getHelicorderCache());
+      actionHandler.getHandlers().put("waveCache", dh.getWaveCache());
+      actionHandler.getHandlers().put("waveDecimation", dh.getWaveDecimationCache());
+      actionHandler.getHandlers().put("hypocenterCatalog", dh.getHypocenterCatalog());
+      actionHandler.getHandlers().put("vdxStatus", new VDXStatusHandler(dh));
+      actionHandler.getHandlers().put("mapCache", getMapBackgroundCache());
+      actionHandler.getHandlers().put("results", resultDeleter);
+      actionHandler.getHandlers().put("resultStore", resultStore);
+      actionHandler.getHandlers().put("downloads", resultServer);
+      actionHandler.getHandlers().put("spectra", spectralService);
+      actionHandler.getHandlers().put("compute", computeService);
       MenuHandler mh = getMenuHandler();
       actionHandler.getHandlers().put("menu", mh);
     }
@@ -246,6 +326,15 @@ public class Valve3 implements ServletContextListener {
     return imageSet;
   }
 
+  /**
+   * Getter for projected map backgrounds cache.
+   *
+   * @return map background cache
+   */
+  public MapBackgroundCache getMapBackgroundCache() {
+    return mapBackgroundCache;
+  }
+
   /**
    * Getter for geo labels set.
    *
@@ -301,5 +390,13 @@ public class Valve3 implements ServletContextListener {
   public void contextDestroyed(ServletContextEvent sce) {
     resultDeleter.kill();
     resultDeleter.deleteResults(true);
+    spectralService.shutdown();
+    computeService.shutdown();
+    if (plotHandler != null) {
+      plotHandler.shutdown();
+    }
+    if (dataHandler != null) {
+      dataHandler.shutdown();
+    }
   }
 }
@@ -1,7 +1,6 @@
 package gov.usgs.volcanoes.valve3.data;
 
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.HttpHandler;
@@ -14,9 +13,17 @@ import gov.usgs.volcanoes.vdx.client.VDXClient;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -30,10 +37,17 @@ import org.slf4j.LoggerFactory;
  */
 public class DataHandler implements HttpHandler {
   private static final String CONFIG_FILE = "data.config";
-  private static final int DEFAULT_VDX_CLIENT_TIMEOUT = 60000;
+  public static final int DEFAULT_CHANNEL_CONCURRENCY = 4;
   private static final Logger LOGGER = LoggerFactory.getLogger(DataHandler.class);
   protected Map<String, DataSourceDescriptor> dataSources;
-  protected Map<String, Pool<VDXClient>> vdxClients;
+  protected Map<String, VDXClientPool> vdxClients;
+  protected MetadataCache metadataCache;
+  protected HelicorderCache helicorderCache;
+  protected WaveCache waveCache;
+  protected WaveDecimationCache waveDecimationCache;
+  protected HypocenterCatalog hypocenterCatalog;
+  protected int channelConcurrency;
+  protected ExecutorService requestExecutor;
   protected ConfigFile config;
 
   /**
@@ -41,7 +55,7 @@ public class DataHandler implements HttpHandler {
    */
   public DataHandler() {
     dataSources = new HashMap<String, DataSourceDescriptor>();
-    vdxClients = new HashMap<String, Pool<VDXClient>>();
+    vdxClients = new HashMap<String, VDXClientPool>();
     processConfigFile();
   }
 
@@ -55,15 +69,21 @@ public class DataHandler implements HttpHandler {
     for (String vdx : vdxs) {
       LOGGER.info("VDX: {}", vdx);
       ConfigFile sub = config.getSubConfig(vdx);
-      int num = StringUtils.stringToInt(sub.getString("clients"), 4);
-      Pool<VDXClient> pool = new Pool<VDXClient>();
-      for (int i = 0; i < num; i++) {
-        VDXClient client = new VDXClient(sub.getString("host"),
-                                         Integer.parseInt(sub.getString("port")));
-        int timeout = StringUtils.stringToInt(sub.getString("timeout"), DEFAULT_VDX_CLIENT_TIMEOUT);
-        client.setTimeout(timeout);
-        pool.checkin(client);
-      }
+      int max = StringUtils.stringToInt(sub.getString("clients"), VDXClientPool.DEFAULT_MAX_SIZE);
+      int min = StringUtils.stringToInt(sub.getString("minClients"),
+                                        VDXClientPool.DEFAULT_MIN_SIZE);
+      int timeout = StringUtils.stringToInt(sub.getString("timeout"),
+                                            VDXClientPool.DEFAULT_CLIENT_TIMEOUT);
+      int checkoutTimeout = StringUtils.stringToInt(sub.getString("checkoutTimeout"),
+                                                    VDXClientPool.DEFAULT_CHECKOUT_TIMEOUT);
+      int idleTimeout = StringUtils.stringToInt(sub.getString("idleTimeout"),
+                                                VDXClientPool.DEFAULT_IDLE_TIMEOUT);
+      int leakThreshold = StringUtils.stringToInt(sub.getString("leakThreshold"),
+                                                  VDXClientPool.DEFAULT_LEAK_THRESHOLD);
+      VDXClientPool pool = new VDXClientPool(vdx, sub.getString("host"),
+                                             Integer.parseInt(sub.getString("port")), timeout,
+                                             min, max, checkoutTimeout, idleTimeout,
+                                             leakThreshold);
       vdxClients.put(vdx, pool);
     }
 
@@ -76,6 +96,64 @@ public class DataHandler implements HttpHandler {
                                                           sub.getString("plotter"), sub);
       dataSources.put(source, dsd);
     }
+
+    int ttl = StringUtils.stringToInt(config.getString("metadataCache.ttl"),
+                                      MetadataCache.DEFAULT_TTL);
+    int maxSize = StringUtils.stringToInt(config.getString("metadataCache.maxSize"),
+                                          MetadataCache.DEFAULT_MAX_SIZE);
+    LOGGER.info("Metadata cache: ttl {}s, max size {}", ttl, maxSize);
+    metadataCache = new MetadataCache(this, ttl, maxSize);
+
+    int heliMaxSize = StringUtils.stringToInt(config.getString("helicorderCache.maxSize"),
+                                              HelicorderCache.DEFAULT_MAX_SIZE);
+    int heliRefetch = StringUtils.stringToInt(config.getString("helicorderCache.refetch"),
+                                              HelicorderCache.DEFAULT_REFETCH);
+    LOGGER.info("Helicorder cache: max size {}MB, refetch {}s", heliMaxSize, heliRefetch);
+    helicorderCache = new HelicorderCache(heliMaxSize, heliRefetch);
+
+    int waveMaxSamples = StringUtils.stringToInt(config.getString("waveCache.maxSamples"),
+                                                 WaveCache.DEFAULT_MAX_SAMPLES);
+    int waveRefetch = StringUtils.stringToInt(config.getString("waveCache.refetch"),
+                                              WaveCache.DEFAULT_REFETCH);
+    LOGGER.info("Wave cache: max samples {}M, refetch {}s", waveMaxSamples, waveRefetch);
+    waveCache = new WaveCache(waveMaxSamples, waveRefetch);
+
+    int decimatedMaxSamples = StringUtils.stringToInt(
+        config.getString("waveDecimation.maxSamples"), WaveDecimationCache.DEFAULT_MAX_SAMPLES);
+    LOGGER.info("Wave decimation cache: max samples {}M", decimatedMaxSamples);
+    waveDecimationCache = new WaveDecimationCache(decimatedMaxSamples);
+
+    int hypoMaxEvents = StringUtils.stringToInt(config.getString("hypoCatalog.maxEvents"),
+                                                HypocenterCatalog.DEFAULT_MAX_EVENTS);
+    int hypoRefetch = StringUtils.stringToInt(config.getString("hypoCatalog.refetch"),
+                                              HypocenterCatalog.DEFAULT_REFETCH);
+    int hypoMaxAge = StringUtils.stringToInt(config.getString("hypoCatalog.maxAge"),
+                                             HypocenterCatalog.DEFAULT_MAX_AGE);
+    LOGGER.info("Hypocenter catalog: max events {}, refetch {}s, max age {}s", hypoMaxEvents,
+        hypoRefetch, hypoMaxAge);
+    hypocenterCatalog = new HypocenterCatalog(this, hypoMaxEvents, hypoRefetch, hypoMaxAge);
+
+    channelConcurrency = Math.max(1, StringUtils.stringToInt(
+        config.getString("channelFetch.concurrency"), DEFAULT_CHANNEL_CONCURRENCY));
+    int threads = 0;
+    for (VDXClientPool pool : vdxClients.values()) {
+      threads += pool.getMaxSize();
+    }
+    LOGGER.info("Channel fetch: concurrency {}, threads {}", channelConcurrency, threads);
+
+    // there is no point in more threads than vdx clients; if all are busy, submissions are
+    // rejected and the caller, already working on the shared fetch, carries on alone
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Math.max(1, threads), 60,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "vdx-request-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    requestExecutor = executor;
   }
 
   /**
@@ -91,12 +169,103 @@ public class DataHandler implements HttpHandler {
    * Yield VDXClient pool.
    *
    * @param key vdx parameter string in config file
-   * @return Pool of initialized VDXClients configured in data.config file
+   * @return Pool of VDXClients configured in data.config file
    */
-  public Pool<VDXClient> getVDXClient(String key) {
+  public VDXClientPool getVDXClient(String key) {
     return vdxClients.get(key);
   }
 
+  /**
+   * Yield all VDXClient pools.
+   *
+   * @return pools of VDXClients configured in data.config file
+   */
+  public Collection<VDXClientPool> getVDXClientPools() {
+    return Collections.unmodifiableCollection(vdxClients.values());
+  }
+
+  /**
+   * Yield count of clients in VDXClient pool.
+   *
+   * @param key vdx parameter string in config file
+   * @return count of clients configured for this vdx, 0 if vdx is unknown
+   */
+  public int getVDXClientCount(String key) {
+    VDXClientPool pool = vdxClients.get(key);
+    return pool == null ? 0 : pool.getMaxSize();
+  }
+
+  /**
+   * Getter for count of requests one plotter may run concurrently against vdx.
+   *
+   * @return maximum count of channels fetched in parallel for one component
+   */
+  public int getChannelConcurrency() {
+    return channelConcurrency;
+  }
+
+  /**
+   * Getter for executor running parallel vdx requests. Submissions are rejected while all its
+   * threads are busy.
+   *
+   * @return executor shared by all plotters
+   */
+  public ExecutorService getRequestExecutor() {
+    return requestExecutor;
+  }
+
+  /**
+   * Stop threads running vdx requests.
+   */
+  public void shutdown() {
+    requestExecutor.shutdownNow();
+  }
+
+  /**
+   * Getter for metadata cache.
+   *
+   * @return cache of channels, columns, ranks and azimuths lists for vdx sources
+   */
+  public MetadataCache getMetadataCache() {
+    return metadataCache;
+  }
+
+  /**
+   * Getter for helicorder cache.
+   *
+   * @return cache of the last helicorder window of each channel
+   */
+  public HelicorderCache getHelicorderCache() {
+    return helicorderCache;
+  }
+
+  /**
+   * Getter for wave cache.
+   *
+   * @return cache of recent raw samples of each waveform channel
+   */
+  public WaveCache getWaveCache() {
+    return waveCache;
+  }
+
+  /**
+   * Getter for wave decimation cache.
+   *
+   * @return cache of waveforms decimated to plot width
+   */
+  public WaveDecimationCache getWaveDecimationCache() {
+    return waveDecimationCache;
+  }
+
+  /**
+   * Getter for hypocenter catalog.
+   *
+   * @return in-memory catalog of hypocenters of each vdx source and rank
+   */
+  public HypocenterCatalog getHypocenterCatalog() {
+    return hypocenterCatalog;
+  }
+
   /**
    * Yield named data source descriptor.
    *
@@ -144,89 +313,84 @@ public class DataHandler implements HttpHandler {
       params.put("source", dsd.getVDXSource());
       params.put("action", action);
 
-      Pool<VDXClient> pool = Valve3.getInstance().getDataHandler()
-                              .getVDXClient(dsd.getVDXClientName());
-
-
+      VDXClientPool pool = getVDXClient(dsd.getVDXClientName());
       if (pool == null) {
         throw new Valve3Exception("Unknown VDX server " + dsd.getVDXClientName()
                                   + " check .vdx line in data.config");
       }
 
-      VDXClient client = pool.checkout();
-
-      if (client != null) {
-        List<String> ls = null;
-        if (action.equals("metadata") || action.equals("suppdata")) {
-          // Add the parameters needed for meta or supp data
-          // Also validate for required and duplicated parameters
-          String arg;
-          LOGGER.info("Processing {}", action);
-          char[] metaKind = {'?', '!', '?', '?', 'x', 'x', 'x', 'x'};
-          char[] suppKind = {'?', '?', '?', '?', '!', '?', '?', '?'};
-          char[] kind;
-          int reqCnt = 1;
-          if (action.equals("metadata")) {
-            kind = metaKind;
-          } else {
-            kind = suppKind;
+      List<String> ls = null;
+      if (action.equals("metadata") || action.equals("suppdata")) {
+        // Add the parameters needed for meta or supp data
+        // Also validate for required and duplicated parameters
+        String arg;
+        LOGGER.info("Processing {}", action);
+        char[] metaKind = {'?', '!', '?', '?', 'x', 'x', 'x', 'x'};
+        char[] suppKind = {'?', '?', '?', '?', '!', '?', '?', '?'};
+        char[] kind;
+        int reqCnt = 1;
+        if (action.equals("metadata")) {
+          kind = metaKind;
+        } else {
+          kind = suppKind;
+        }
+        String[] args = {"byID", "ch", "col", "rk", "st", "et", "tz", "type"};
+        for (int i = 0; i < 8; i++) {
+          arg = request.getParameter(args[i]);
+          if (arg == null || arg.equals("")) {
+            continue;
           }
-          String[] args = {"byID", "ch", "col", "rk", "st", "et", "tz", "type"};
-          for (int i = 0; i < 8; i++) {
-            arg = request.getParameter(args[i]);
-            if (arg == null || arg.equals("")) {
-              continue;
-            }
-            LOGGER.info("{} = {}", args[i], arg);
-            switch (kind[i]) {
-              case 'x':
-                throw new Valve3Exception("Illegal parameter: " + args[i]);
-              case 'r':
-                throw new Valve3Exception("Duplicated paramneter: " + args[i]);
-              case '!':
-                reqCnt--;
-                // fallthru
-              case '?':
-                kind[i] = 'r';
-                params.put(args[i], arg);
-                break;
-              default:
-                break;
-            }
+          LOGGER.info("{} = {}", args[i], arg);
+          switch (kind[i]) {
+            case 'x':
+              throw new Valve3Exception("Illegal parameter: " + args[i]);
+            case 'r':
+              throw new Valve3Exception("Duplicated paramneter: " + args[i]);
+            case '!':
+              reqCnt--;
+              // fallthru
+            case '?':
+              kind[i] = 'r';
+              params.put(args[i], arg);
+              break;
+            default:
+              break;
           }
         }
-        try {
-          ls = client.getTextData(params);
-        } catch (UtilException e) {
-          throw new Valve3Exception(e.getMessage());
-        } finally {
-          pool.checkin(client);
-        }
-        if (ls != null) {
-          if (action.equals("genericMenu")) {
-            GenericMenu result = new GenericMenu(ls);
-            return result;
-          } else if (action.equals("ewRsamMenu")) {
-            ewRsamMenu result = new ewRsamMenu(ls);
-            return result;
-          } else {
-            List<String> lsx;
-            if (action.equals("suppdata")) {
-              lsx = new ArrayList<String>();
-              for (String s : ls) {
-                lsx.add(protectSpecialCharacters(s));
-              }
-            } else {
-              lsx = ls;
+      }
+      VDXClient client = pool.checkout();
+      try {
+        ls = client.getTextData(params);
+      } catch (UtilException e) {
+        throw new Valve3Exception(e.getMessage());
+      } catch (RuntimeException e) {
+        pool.invalidate(client);
+        throw e;
+      } finally {
+        pool.checkin(client);
+      }
+      if (ls != null) {
+        if (action.equals("genericMenu")) {
+          GenericMenu result = new GenericMenu(ls);
+          return result;
+        } else if (action.equals("ewRsamMenu")) {
+          ewRsamMenu result = new ewRsamMenu(ls);
+          return result;
+        } else {
+          List<String> lsx;
+          if (action.equals("suppdata")) {
+            lsx = new ArrayList<String>();
+            for (String s : ls) {
+              lsx.add(protectSpecialCharacters(s));
             }
-            gov.usgs.volcanoes.valve3.result.List result
-                = new gov.usgs.volcanoes.valve3.result.List(lsx);
-            return result;
+          } else {
+            lsx = ls;
           }
+          gov.usgs.volcanoes.valve3.result.List result
+              = new gov.usgs.volcanoes.valve3.result.List(lsx);
+          return result;
         }
       }
-      // this should not be necessary, as the pool was already checked back in if it wasn't null.
-      // pool.checkin(client);
       return null;
     } catch (Valve3Exception e) {
       return new ErrorMessage(e.getMessage());
@@ -0,0 +1,231 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import cern.colt.matrix.DoubleMatrix2D;
+
+import gov.usgs.volcanoes.core.data.HelicorderData;
+import gov.usgs.volcanoes.valve3.HttpHandler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Keeps the rows of the last helicorder window of each channel, so refreshes of relative
+ * helicorders ("et=N") only request the rows after the cached end from vdx. The last few minutes
+ * are requested again, as vdx may have received more data for them since. Appending new rows
+ * slides the cached window forward, trimming its head. Rows are kept flat in one array per
+ * channel; the least recently used channels are dropped while over the size limit. Also handles
+ * the request for cache statistics.
+ */
+public class HelicorderCache implements HttpHandler {
+  public static final int DEFAULT_MAX_SIZE = 64;
+  public static final int DEFAULT_REFETCH = 120;
+
+  private final LinkedHashMap<String, Entry> entries;
+  private final long maxBytes;
+  private final double refetch;
+  private long bytes = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long rowsFetched = 0;
+  private long rowsCached = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize maximum memory for cached rows, in megabytes. 0 disables caching.
+   * @param refetch seconds before the cached end which are requested again
+   */
+  public HelicorderCache(int maxSize, int refetch) {
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    maxBytes = maxSize * 1024L * 1024L;
+    this.refetch = refetch;
+  }
+
+  /**
+   * Check if caching is enabled.
+   *
+   * @return true if maximum size is positive
+   */
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Yield cached window usable for a request.
+   *
+   * @param key       channel key, vdx name, vdx source and channel id
+   * @param startTime request start time
+   * @param endTime   request end time
+   * @return cached window holding the start of the requested one, null if there is none
+   */
+  public synchronized Entry get(String key, double startTime, double endTime) {
+    Entry entry = entries.get(key);
+    if (entry == null || entry.startTime > startTime || entry.endTime <= startTime
+        || entry.endTime > endTime) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry;
+  }
+
+  /**
+   * Yield time rows must be requested from vdx from.
+   *
+   * @param entry     cached window from {@link #get}, may be null
+   * @param startTime request start time
+   * @return start time of the vdx request
+   */
+  public double getFetchStart(Entry entry, double startTime) {
+    if (entry == null) {
+      return startTime;
+    }
+    return Math.max(startTime, entry.endTime - refetch);
+  }
+
+  /**
+   * Combine cached and newly fetched rows and cache the result.
+   *
+   * @param key        channel key, vdx name, vdx source and channel id
+   * @param entry      cached window from {@link #get}, null if all rows were fetched
+   * @param startTime  request start time
+   * @param endTime    request end time
+   * @param fetchStart start time rows were requested from vdx from
+   * @param data       rows returned by vdx, may be null
+   * @return rows of the requested window, null if there are none
+   */
+  public HelicorderData put(String key, Entry entry, double startTime, double endTime,
+      double fetchStart, HelicorderData data) {
+    int columns = 0;
+    int fetched = data == null ? 0 : data.rows();
+    DoubleMatrix2D matrix = null;
+    if (fetched > 0) {
+      matrix = data.getData();
+      columns = matrix.columns();
+    } else if (entry != null) {
+      columns = entry.columns;
+    }
+    if (columns == 0) {
+      return data;
+    }
+
+    // the cached window keeps its length, or grows to the requested one
+    double keepStart = startTime;
+    if (entry != null) {
+      keepStart = Math.min(startTime, entry.startTime + (endTime - entry.endTime));
+    }
+
+    double[] rows = new double[((entry == null ? 0 : entry.rows.length / columns) + fetched)
+        * columns];
+    int n = 0;
+    int returnedFrom = -1;
+    if (entry != null && entry.columns == columns) {
+      for (int i = 0; i < entry.rows.length; i += columns) {
+        double t = entry.rows[i];
+        if (t >= keepStart && t < fetchStart) {
+          if (returnedFrom < 0 && t >= startTime) {
+            returnedFrom = n;
+          }
+          System.arraycopy(entry.rows, i, rows, n, columns);
+          n += columns;
+        }
+      }
+    }
+    int cached = returnedFrom < 0 ? 0 : (n - returnedFrom) / columns;
+    for (int i = 0; i < fetched; i++) {
+      double t = matrix.getQuick(i, 0);
+      if (t < fetchStart) {
+        continue;
+      }
+      if (returnedFrom < 0 && t >= startTime) {
+        returnedFrom = n;
+      }
+      for (int c = 0; c < columns; c++) {
+        rows[n + c] = matrix.getQuick(i, c);
+      }
+      n += columns;
+    }
+    if (n < rows.length) {
+      double[] trimmed = new double[n];
+      System.arraycopy(rows, 0, trimmed, 0, n);
+      rows = trimmed;
+    }
+
+    Entry updated = new Entry(keepStart, endTime, columns, rows);
+    synchronized (this) {
+      rowsFetched += fetched;
+      rowsCached += cached;
+      // a concurrent request may have cached a later window already
+      Entry old = entries.get(key);
+      if (old == null || old.endTime <= endTime) {
+        entries.put(key, updated);
+        if (old != null) {
+          bytes -= old.getSize();
+        }
+        bytes += updated.getSize();
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+          bytes -= it.next().getSize();
+          it.remove();
+        }
+      }
+    }
+
+    if (returnedFrom < 0) {
+      return null;
+    }
+    List<double[]> list = new ArrayList<double[]>((n - returnedFrom) / columns);
+    for (int i = returnedFrom; i < n; i += columns) {
+      double[] row = new double[columns];
+      System.arraycopy(rows, i, row, 0, columns);
+      list.add(row);
+    }
+    return new HelicorderData(list);
+  }
+
+  /**
+   * Handle the request for cache statistics.
+   *
+   * @see HttpHandler#handle
+   */
+  public synchronized Object handle(HttpServletRequest request) {
+    List<String> ls = new ArrayList<String>();
+    ls.add("channels=" + entries.size());
+    ls.add("bytes=" + bytes);
+    ls.add("maxBytes=" + maxBytes);
+    ls.add("hits=" + hits);
+    ls.add("misses=" + misses);
+    ls.add("rowsFetched=" + rowsFetched);
+    ls.add("rowsCached=" + rowsCached);
+    long total = rowsFetched + rowsCached;
+    ls.add("cachedRatio=" + (total == 0 ? 0 : Math.round(rowsCached * 1000.0 / total) / 10.0)
+        + "%");
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+
+  /**
+   * Supporting class, cached helicorder window of one channel. Immutable.
+   */
+  public static class Entry {
+    private final double startTime;
+    private final double endTime;
+    private final int columns;
+    private final double[] rows;
+
+    private Entry(double startTime, double endTime, int columns, double[] rows) {
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.columns = columns;
+      this.rows = rows;
+    }
+
+    private long getSize() {
+      return rows.length * 8L;
+    }
+  }
+}
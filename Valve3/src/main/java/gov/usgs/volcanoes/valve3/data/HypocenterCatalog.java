@@ -0,0 +1,741 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.valve3.HttpHandler;
+import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.vdx.client.VDXClient;
+import gov.usgs.volcanoes.vdx.data.hypo.Hypocenter;
+import gov.usgs.volcanoes.vdx.data.hypo.HypocenterList;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the hypocenters of each vdx source and rank in memory, in columns sorted by time with a
+ * spatial grid index, so plots filtering the same period by magnitude, region or quality again
+ * are answered without a vdx request. A catalog holds the events vdx returns for the default
+ * filters; the filters of a request are evaluated here, a missing value failing any filter which
+ * isn't at its default, as in SQL. Catalogs are extended by requesting only the missing period:
+ * older events before the cached start, and newer events from refetch seconds before the cached
+ * end on, as recent events may still be revised. Catalogs are reloaded after maxAge seconds; the
+ * least recently used ones are dropped while over the events limit. Plotters get copies, as they
+ * adjust times and project coordinates in place. Also handles the request for statistics.
+ */
+public class HypocenterCatalog implements HttpHandler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(HypocenterCatalog.class);
+  public static final int DEFAULT_MAX_EVENTS = 250000;
+  public static final int DEFAULT_REFETCH = 3600;
+  public static final int DEFAULT_MAX_AGE = 1800;
+  private static final int GRID_SIZE = 64;
+
+  private final DataHandler dataHandler;
+  private final LinkedHashMap<String, Catalog> catalogs;
+  private final int maxEvents;
+  private final double refetch;
+  private final long maxAge;
+  private long events = 0;
+
+  private long queries = 0;
+  private long hits = 0;
+  private long fetches = 0;
+  private long eventsFetched = 0;
+  private long fallbacks = 0;
+  private long queryTime = 0;
+  private long countQueries = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param dh        data handler which provides vdx client pools
+   * @param maxEvents maximum count of events in all catalogs. 0 disables the catalogs.
+   * @param refetch   seconds before the cached end which are requested again
+   * @param maxAge    seconds after which a catalog is loaded again
+   */
+  public HypocenterCatalog(DataHandler dh, int maxEvents, int refetch, int maxAge) {
+    dataHandler = dh;
+    catalogs = new LinkedHashMap<String, Catalog>(16, 0.75f, true);
+    this.maxEvents = maxEvents;
+    this.refetch = refetch;
+    this.maxAge = maxAge * 1000L;
+  }
+
+  /**
+   * Check if catalogs are enabled.
+   *
+   * @return true if maximum count of events is positive
+   */
+  public boolean isEnabled() {
+    return maxEvents > 0;
+  }
+
+  /**
+   * Yield hypocenters matching a request, extending the catalog from vdx as needed.
+   *
+   * @param vdxClient vdx name
+   * @param vdxSource vdx source name
+   * @param rank      rank id
+   * @param filter    request filters
+   * @return copy of matching hypocenters in time order, null if the catalog couldn't be loaded;
+   *         the request should go to vdx then
+   */
+  public HypocenterList get(String vdxClient, String vdxSource, int rank, Filter filter) {
+    Snapshot snapshot = getSnapshot(vdxClient, vdxSource, rank, filter);
+    if (snapshot == null) {
+      return null;
+    }
+    long start = System.nanoTime();
+    HypocenterList result = snapshot.query(filter);
+    synchronized (this) {
+      queryTime += System.nanoTime() - start;
+    }
+    return result;
+  }
+
+  /**
+   * Yield counts of the hypocenters of a period, extending the catalog from vdx as needed. Only
+   * requests filtering by time and by an area containing all events of the catalog are answered.
+   *
+   * @param vdxClient vdx name
+   * @param vdxSource vdx source name
+   * @param rank      rank id
+   * @param filter    request filters
+   * @return counts of the events of the requested period, null if the filters can't be answered
+   *         from counts or the catalog couldn't be loaded; the hypocenters should be requested then
+   */
+  public Counts getCounts(String vdxClient, String vdxSource, int rank, Filter filter) {
+    if (!isTimeAndArea(filter)) {
+      return null;
+    }
+    Snapshot snapshot = getSnapshot(vdxClient, vdxSource, rank, filter);
+    if (snapshot == null || !snapshot.isCoveredBy(filter)) {
+      return null;
+    }
+    synchronized (this) {
+      countQueries++;
+    }
+    return new Counts(snapshot, filter.startTime, filter.endTime);
+  }
+
+  /**
+   * Bring catalog of a vdx source and rank up to the period of a request.
+   *
+   * @return catalog covering the period, null if it couldn't be loaded
+   */
+  private Snapshot getSnapshot(String vdxClient, String vdxSource, int rank, Filter filter) {
+    String key = vdxClient + "|" + vdxSource + "|" + rank;
+    Catalog catalog;
+    synchronized (this) {
+      queries++;
+      catalog = catalogs.get(key);
+      if (catalog == null) {
+        catalog = new Catalog(vdxClient, vdxSource, rank);
+        catalogs.put(key, catalog);
+      }
+    }
+
+    // one update of a catalog at a time; concurrent requests wait for it and share the result
+    synchronized (catalog) {
+      Snapshot old = catalog.snapshot;
+      Snapshot snapshot;
+      try {
+        snapshot = update(catalog, old, filter.startTime, filter.endTime);
+      } catch (Valve3Exception e) {
+        LOGGER.info("Hypocenter catalog {} not loaded: {}", key, e.getMessage());
+        snapshot = null;
+      }
+      if (snapshot == null) {
+        synchronized (this) {
+          fallbacks++;
+        }
+        return null;
+      }
+      // too large to keep, answer this request only
+      Snapshot kept = snapshot.size() > maxEvents ? null : snapshot;
+      synchronized (this) {
+        if (snapshot == old) {
+          hits++;
+        }
+        if (catalogs.get(key) == catalog) {
+          events += (kept == null ? 0 : kept.size()) - (old == null ? 0 : old.size());
+          catalog.snapshot = kept;
+          trim(key);
+        }
+      }
+      return snapshot;
+    }
+  }
+
+  /**
+   * Handle the request for catalog statistics.
+   *
+   * @see HttpHandler#handle
+   */
+  public synchronized Object handle(HttpServletRequest request) {
+    List<String> ls = new ArrayList<String>();
+    ls.add("catalogs=" + catalogs.size());
+    ls.add("events=" + events);
+    ls.add("maxEvents=" + maxEvents);
+    ls.add("queries=" + queries);
+    ls.add("hits=" + hits);
+    ls.add("fetches=" + fetches);
+    ls.add("eventsFetched=" + eventsFetched);
+    ls.add("fallbacks=" + fallbacks);
+    ls.add("queryTime=" + (queries == 0 ? 0 : queryTime / queries / 1000) + "us");
+    ls.add("countQueries=" + countQueries);
+    for (Map.Entry<String, Catalog> me : catalogs.entrySet()) {
+      Snapshot s = me.getValue().snapshot;
+      if (s != null) {
+        ls.add(me.getKey() + "=" + s.size());
+      }
+    }
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+
+  /**
+   * Bring catalog up to the requested period.
+   *
+   * @return catalog covering the period, the given one if it does already; null if vdx is unknown
+   */
+  private Snapshot update(Catalog catalog, Snapshot snapshot, double startTime, double endTime)
+      throws Valve3Exception {
+    long now = System.currentTimeMillis();
+    if (snapshot == null || now - snapshot.loaded > maxAge) {
+      List<Hypocenter> all = fetch(catalog, startTime, endTime);
+      return all == null ? null : new Snapshot(startTime, endTime, now, all, null, 0);
+    }
+
+    List<Hypocenter> older = new ArrayList<Hypocenter>();
+    if (startTime < snapshot.startTime) {
+      List<Hypocenter> fetched = fetch(catalog, startTime, snapshot.startTime);
+      if (fetched == null) {
+        return null;
+      }
+      for (Hypocenter hc : fetched) {
+        if (hc.j2ksec < snapshot.startTime) {
+          older.add(hc);
+        }
+      }
+    }
+    double from = Double.NaN;
+    List<Hypocenter> newer = new ArrayList<Hypocenter>();
+    if (endTime > snapshot.endTime) {
+      from = Math.max(snapshot.startTime, snapshot.endTime - refetch);
+      List<Hypocenter> fetched = fetch(catalog, from, endTime);
+      if (fetched == null) {
+        return null;
+      }
+      for (Hypocenter hc : fetched) {
+        if (hc.j2ksec >= from) {
+          newer.add(hc);
+        }
+      }
+    }
+    if (startTime >= snapshot.startTime && Double.isNaN(from)) {
+      return snapshot;
+    }
+
+    List<Hypocenter> merged = new ArrayList<Hypocenter>(older.size() + snapshot.size()
+        + newer.size());
+    merged.addAll(older);
+    for (Hypocenter hc : snapshot.hypocenters) {
+      if (Double.isNaN(from) || hc.j2ksec < from) {
+        merged.add(hc);
+      }
+    }
+    merged.addAll(newer);
+    // sums of the events kept in front carry over, unless older events were added
+    Snapshot previous = older.isEmpty() ? snapshot : null;
+    int unchanged = previous == null ? 0 : merged.size() - newer.size();
+    return new Snapshot(Math.min(startTime, snapshot.startTime),
+        Math.max(endTime, snapshot.endTime), snapshot.loaded, merged, previous, unchanged);
+  }
+
+  /**
+   * Request hypocenters of a period from vdx with default filters.
+   *
+   * @return hypocenters in time order, null if vdx is unknown
+   * @throws Valve3Exception if the request fails, e.g. the result exceeds the vdx limit
+   */
+  private List<Hypocenter> fetch(Catalog catalog, double startTime, double endTime)
+      throws Valve3Exception {
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    params.put("source", catalog.vdxSource);
+    params.put("action", "data");
+    params.put("st", Double.toString(startTime));
+    params.put("et", Double.toString(endTime));
+    params.put("rk", Integer.toString(catalog.rank));
+    Filter defaults = new Filter();
+    params.put("west", Double.toString(-360));
+    params.put("east", Double.toString(360));
+    params.put("south", Double.toString(-90));
+    params.put("north", Double.toString(90));
+    params.put("minDepth", Double.toString(defaults.minDepth));
+    params.put("maxDepth", Double.toString(defaults.maxDepth));
+    params.put("minMag", Double.toString(defaults.minMag));
+    params.put("maxMag", Double.toString(defaults.maxMag));
+    params.put("minNPhases", Integer.toString(Integer.MIN_VALUE));
+    params.put("maxNPhases", Integer.toString(Integer.MAX_VALUE));
+    params.put("minRMS", Double.toString(defaults.minRms));
+    params.put("maxRMS", Double.toString(defaults.maxRms));
+    params.put("minHerr", Double.toString(defaults.minHerr));
+    params.put("maxHerr", Double.toString(defaults.maxHerr));
+    params.put("minVerr", Double.toString(defaults.minVerr));
+    params.put("maxVerr", Double.toString(defaults.maxVerr));
+    params.put("rmk", "");
+    params.put("minStDst", Double.toString(defaults.minStDst));
+    params.put("maxStDst", Double.toString(defaults.maxStDst));
+    params.put("maxGap", Double.toString(defaults.maxGap));
+    params.put("outputAll", Boolean.toString(false));
+    params.put("centerLat", Double.toString(0.0));
+    params.put("centerLon", Double.toString(0.0));
+    params.put("radius", Double.toString(0.0));
+
+    VDXClientPool pool = dataHandler.getVDXClient(catalog.vdxClient);
+    if (pool == null) {
+      return null;
+    }
+    HypocenterList hypos;
+    VDXClient client = pool.checkout();
+    try {
+      hypos = (HypocenterList) client.getBinaryData(params);
+      pool.checkin(client);
+    } catch (UtilException e) {
+      pool.checkin(client);
+      throw new Valve3Exception(e.getMessage());
+    } catch (Exception e) {
+      pool.invalidate(client);
+      throw new Valve3Exception(e.getMessage());
+    }
+    List<Hypocenter> list = hypos == null ? new ArrayList<Hypocenter>()
+        : new ArrayList<Hypocenter>(hypos.getHypocenters());
+    synchronized (this) {
+      fetches++;
+      eventsFetched += list.size();
+    }
+    return list;
+  }
+
+  /**
+   * Drop least recently used catalogs, except the given one, while over the events limit.
+   */
+  private void trim(String keep) {
+    Iterator<Map.Entry<String, Catalog>> it = catalogs.entrySet().iterator();
+    while (events > maxEvents && it.hasNext()) {
+      Map.Entry<String, Catalog> me = it.next();
+      if (!me.getKey().equals(keep)) {
+        Snapshot s = me.getValue().snapshot;
+        events -= s == null ? 0 : s.size();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Convert field value of a hypocenter, which may be missing.
+   */
+  private static double value(Object o) {
+    return o instanceof Number ? ((Number) o).doubleValue() : Double.NaN;
+  }
+
+  /**
+   * Check value against filter range, unless it's the default one.
+   */
+  private static boolean accept(double v, double min, double max, double defaultMin,
+      double defaultMax) {
+    if (min == defaultMin && max == defaultMax) {
+      return true;
+    }
+    return v >= min && v <= max;
+  }
+
+  /**
+   * Check if a request filters by time and area only, all other filters being at their defaults.
+   */
+  private static boolean isTimeAndArea(Filter f) {
+    Filter d = new Filter();
+    return f.minDepth == d.minDepth && f.maxDepth == d.maxDepth && f.minMag == d.minMag
+        && f.maxMag == d.maxMag && f.minNPhases == d.minNPhases && f.maxNPhases == d.maxNPhases
+        && f.minRms == d.minRms && f.maxRms == d.maxRms && f.minHerr == d.minHerr
+        && f.maxHerr == d.maxHerr && f.minVerr == d.minVerr && f.maxVerr == d.maxVerr
+        && f.minStDst == d.minStDst && f.maxStDst == d.maxStDst && f.maxGap == d.maxGap;
+  }
+
+  /**
+   * Filters of a hypocenter request, defaults as sent by the hypocenter plotter. Longitudes are
+   * compared as given, like vdx does.
+   */
+  public static class Filter {
+    public double startTime;
+    public double endTime;
+    public double west = -360;
+    public double east = 360;
+    public double south = -90;
+    public double north = 90;
+    public double minDepth = -Double.MAX_VALUE;
+    public double maxDepth = Double.MAX_VALUE;
+    public double minMag = -Double.MAX_VALUE;
+    public double maxMag = Double.MAX_VALUE;
+    public double minNPhases = Integer.MIN_VALUE;
+    public double maxNPhases = Integer.MAX_VALUE;
+    public double minRms = -Double.MAX_VALUE;
+    public double maxRms = Double.MAX_VALUE;
+    public double minHerr = -Double.MAX_VALUE;
+    public double maxHerr = Double.MAX_VALUE;
+    public double minVerr = -Double.MAX_VALUE;
+    public double maxVerr = Double.MAX_VALUE;
+    public double minStDst = 0.0;
+    public double maxStDst = 1000.0;
+    public double maxGap = 360.0;
+  }
+
+  /**
+   * Supporting class, catalog of one vdx source and rank.
+   */
+  private static class Catalog {
+    private final String vdxClient;
+    private final String vdxSource;
+    private final int rank;
+    // guarded by the catalog; null while not loaded
+    private Snapshot snapshot;
+
+    private Catalog(String vdxClient, String vdxSource, int rank) {
+      this.vdxClient = vdxClient;
+      this.vdxSource = vdxSource;
+      this.rank = rank;
+    }
+  }
+
+  /**
+   * Counts of the hypocenters of a period, answering counts of any time range in it from the per
+   * minute sums of the catalog.
+   */
+  public static class Counts {
+    private final Snapshot snapshot;
+    private final int first;
+    private final int last;
+
+    private Counts(Snapshot snapshot, double startTime, double endTime) {
+      this.snapshot = snapshot;
+      first = Snapshot.lowerBound(snapshot.time, 0, snapshot.size(), startTime);
+      last = Snapshot.upperBound(snapshot.time, first, snapshot.size(), endTime);
+    }
+
+    /**
+     * Getter for count of events of the period.
+     *
+     * @return count of events
+     */
+    public int size() {
+      return last - first;
+    }
+
+    /**
+     * Getter for time of first event of the period.
+     *
+     * @return j2ksec, NaN if there are no events
+     */
+    public double getStartTime() {
+      return last > first ? snapshot.time[first] : Double.NaN;
+    }
+
+    /**
+     * Count events of the period in a time range.
+     *
+     * @param from start of range, inclusive
+     * @param to   end of range, exclusive
+     * @return count of events
+     */
+    public int count(double from, double to) {
+      return index(to) - index(from);
+    }
+
+    /**
+     * Yield first and last event of the period, e.g. for binning as vdx does.
+     *
+     * @return copy of first and last event, fewer if there are fewer events
+     */
+    public HypocenterList getEnds() {
+      List<Hypocenter> ends = new ArrayList<Hypocenter>(2);
+      if (last > first) {
+        ends.add(snapshot.hypocenters.get(first));
+      }
+      if (last - first > 1) {
+        ends.add(snapshot.hypocenters.get(last - 1));
+      }
+      return copy(ends);
+    }
+
+    private int index(double t) {
+      return Math.max(first, Math.min(last, snapshot.before(t)));
+    }
+  }
+
+  /**
+   * Copy hypocenters through the binary form vdx sends, cached events are never handed out.
+   */
+  private static HypocenterList copy(List<Hypocenter> hypos) {
+    ByteBuffer bb = new HypocenterList(hypos).toBinary();
+    bb.rewind();
+    HypocenterList copy = new HypocenterList();
+    copy.fromBinary(bb);
+    return copy;
+  }
+
+  /**
+   * Supporting class, immutable state of a catalog: the events of a period in columns ordered by
+   * time, a grid of the indexes of the events in each cell of the catalog's area, and running
+   * counts of events at the end of each minute holding events. Counts of the minutes before the
+   * first changed event are taken over from the previous state.
+   */
+  private static class Snapshot {
+    private final double startTime;
+    private final double endTime;
+    private final long loaded;
+    private final List<Hypocenter> hypocenters;
+
+    private final double[] time;
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] depth;
+    private final double[] mag;
+    private final double[] nphases;
+    private final double[] rms;
+    private final double[] herr;
+    private final double[] verr;
+    private final double[] dmin;
+    private final double[] gap;
+
+    private double minLat = Double.POSITIVE_INFINITY;
+    private double maxLat = Double.NEGATIVE_INFINITY;
+    private double minLon = Double.POSITIVE_INFINITY;
+    private double maxLon = Double.NEGATIVE_INFINITY;
+    private boolean unlocated = false;
+    private final int[][] grid;
+
+    // start of each minute holding events, index after its last event
+    private final double[] minutes;
+    private final int[] minuteEnds;
+
+    private Snapshot(double startTime, double endTime, long loaded, List<Hypocenter> hypos,
+        Snapshot previous, int unchanged) {
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.loaded = loaded;
+      int n = hypos.size();
+      hypocenters = hypos;
+      time = new double[n];
+      lat = new double[n];
+      lon = new double[n];
+      depth = new double[n];
+      mag = new double[n];
+      nphases = new double[n];
+      rms = new double[n];
+      herr = new double[n];
+      verr = new double[n];
+      dmin = new double[n];
+      gap = new double[n];
+      for (int i = 0; i < n; i++) {
+        Hypocenter hc = hypos.get(i);
+        time[i] = hc.j2ksec;
+        lat[i] = hc.lat;
+        lon[i] = hc.lon;
+        depth[i] = hc.depth;
+        mag[i] = value(hc.prefmag);
+        nphases[i] = value(hc.nphases);
+        rms[i] = value(hc.rms);
+        herr[i] = value(hc.herr);
+        verr[i] = value(hc.verr);
+        dmin[i] = value(hc.dmin);
+        gap[i] = value(hc.azgap);
+        if (lat[i] < minLat) {
+          minLat = lat[i];
+        }
+        if (lat[i] > maxLat) {
+          maxLat = lat[i];
+        }
+        if (lon[i] < minLon) {
+          minLon = lon[i];
+        }
+        if (lon[i] > maxLon) {
+          maxLon = lon[i];
+        }
+        if (Double.isNaN(lat[i]) || Double.isNaN(lon[i])) {
+          unlocated = true;
+        }
+      }
+
+      // indexes of each cell ascend, i.e. are in time order
+      int[] counts = new int[GRID_SIZE * GRID_SIZE];
+      for (int i = 0; i < n; i++) {
+        counts[cell(lat[i], lon[i])]++;
+      }
+      grid = new int[counts.length][];
+      for (int c = 0; c < counts.length; c++) {
+        grid[c] = new int[counts[c]];
+        counts[c] = 0;
+      }
+      for (int i = 0; i < n; i++) {
+        int c = cell(lat[i], lon[i]);
+        grid[c][counts[c]++] = i;
+      }
+
+      // minutes before the first changed event, in either state, hold the same events
+      int m = 0;
+      double[] mins = new double[n];
+      int[] ends = new int[n];
+      if (previous != null && unchanged > 0) {
+        double changed = Double.POSITIVE_INFINITY;
+        if (unchanged < n) {
+          changed = minuteOf(time[unchanged]);
+        }
+        if (unchanged < previous.size()) {
+          changed = Math.min(changed, minuteOf(previous.time[unchanged]));
+        }
+        m = lowerBound(previous.minutes, 0, previous.minutes.length, changed);
+        System.arraycopy(previous.minutes, 0, mins, 0, m);
+        System.arraycopy(previous.minuteEnds, 0, ends, 0, m);
+      }
+      for (int i = m == 0 ? 0 : ends[m - 1]; i < n; i++) {
+        double minute = minuteOf(time[i]);
+        if (m == 0 || mins[m - 1] != minute) {
+          mins[m++] = minute;
+        }
+        ends[m - 1] = i + 1;
+      }
+      minutes = Arrays.copyOf(mins, m);
+      minuteEnds = Arrays.copyOf(ends, m);
+    }
+
+    private int size() {
+      return time.length;
+    }
+
+    private static double minuteOf(double t) {
+      return Math.floor(t / 60) * 60;
+    }
+
+    /**
+     * Check if an area contains all events, so sums over time answer requests for it.
+     */
+    private boolean isCoveredBy(Filter f) {
+      return size() == 0 || (!unlocated && f.south <= minLat && f.north >= maxLat
+          && f.west <= minLon && f.east >= maxLon);
+    }
+
+    /**
+     * Count events before a time, from the sums of the minutes before and the events of the
+     * minute itself.
+     */
+    private int before(double t) {
+      double minute = minuteOf(t);
+      int k = lowerBound(minutes, 0, minutes.length, minute);
+      int start = k == 0 ? 0 : minuteEnds[k - 1];
+      if (k == minutes.length || minutes[k] != minute) {
+        return start;
+      }
+      return lowerBound(time, start, minuteEnds[k], t);
+    }
+
+    private int row(double v, double min, double max) {
+      if (!(max > min)) {
+        return 0;
+      }
+      int r = (int) ((v - min) / (max - min) * GRID_SIZE);
+      return Math.max(0, Math.min(GRID_SIZE - 1, r));
+    }
+
+    private int cell(double lat, double lon) {
+      return row(lat, minLat, maxLat) * GRID_SIZE + row(lon, minLon, maxLon);
+    }
+
+    /**
+     * Find hypocenters matching filters: the time index bounds the candidates, the grid narrows
+     * them down when the area covers a small part of the catalog's area.
+     */
+    private HypocenterList query(Filter f) {
+      int lo = lowerBound(time, 0, time.length, f.startTime);
+      int hi = upperBound(time, lo, time.length, f.endTime);
+
+      int[] candidates = null;
+      int count = 0;
+      if (size() > 0 && f.south <= maxLat && f.north >= minLat && f.west <= maxLon
+          && f.east >= minLon) {
+        int r0 = row(f.south, minLat, maxLat);
+        int r1 = row(f.north, minLat, maxLat);
+        int c0 = row(f.west, minLon, maxLon);
+        int c1 = row(f.east, minLon, maxLon);
+        if ((r1 - r0 + 1) * (c1 - c0 + 1) * 4 < GRID_SIZE * GRID_SIZE) {
+          candidates = new int[hi - lo];
+          for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+              int[] cell = grid[r * GRID_SIZE + c];
+              int a = Arrays.binarySearch(cell, lo);
+              int b = Arrays.binarySearch(cell, hi);
+              a = a < 0 ? -a - 1 : a;
+              b = b < 0 ? -b - 1 : b;
+              System.arraycopy(cell, a, candidates, count, b - a);
+              count += b - a;
+            }
+          }
+          Arrays.sort(candidates, 0, count);
+        }
+      } else {
+        hi = lo;
+      }
+
+      List<Hypocenter> matches = new ArrayList<Hypocenter>();
+      Filter d = new Filter();
+      int n = candidates == null ? hi - lo : count;
+      for (int k = 0; k < n; k++) {
+        int i = candidates == null ? lo + k : candidates[k];
+        if (lat[i] >= f.south && lat[i] <= f.north && lon[i] >= f.west && lon[i] <= f.east
+            && accept(depth[i], f.minDepth, f.maxDepth, d.minDepth, d.maxDepth)
+            && accept(mag[i], f.minMag, f.maxMag, d.minMag, d.maxMag)
+            && accept(nphases[i], f.minNPhases, f.maxNPhases, d.minNPhases, d.maxNPhases)
+            && accept(rms[i], f.minRms, f.maxRms, d.minRms, d.maxRms)
+            && accept(herr[i], f.minHerr, f.maxHerr, d.minHerr, d.maxHerr)
+            && accept(verr[i], f.minVerr, f.maxVerr, d.minVerr, d.maxVerr)
+            && accept(dmin[i], f.minStDst, f.maxStDst, d.minStDst, d.maxStDst)
+            && accept(gap[i], -Double.MAX_VALUE, f.maxGap, -Double.MAX_VALUE, d.maxGap)) {
+          matches.add(hypocenters.get(i));
+        }
+      }
+
+      return copy(matches);
+    }
+
+    private static int lowerBound(double[] a, int from, int to, double v) {
+      while (from < to) {
+        int mid = (from + to) >>> 1;
+        if (a[mid] < v) {
+          from = mid + 1;
+        } else {
+          to = mid;
+        }
+      }
+      return from;
+    }
+
+    private static int upperBound(double[] a, int from, int to, double v) {
+      while (from < to) {
+        int mid = (from + to) >>> 1;
+        if (a[mid] <= v) {
+          from = mid + 1;
+        } else {
+          to = mid;
+        }
+      }
+      return from;
+    }
+  }
+}
@@ -0,0 +1,279 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.valve3.HttpHandler;
+import gov.usgs.volcanoes.valve3.result.ErrorMessage;
+import gov.usgs.volcanoes.vdx.client.VDXClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps text metadata (channels, columns, ranks, azimuths) retrieved from vdx for a limited
+ * time, so plot and export requests don't need a vdx round-trip for it. Concurrent requests
+ * for the same entry share one fetch. Also handles the admin request to invalidate the cache.
+ */
+public class MetadataCache implements HttpHandler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MetadataCache.class);
+  public static final int DEFAULT_TTL = 600;
+  public static final int DEFAULT_MAX_SIZE = 1000;
+
+  private final DataHandler dataHandler;
+  private final ConcurrentMap<Key, Entry> entries;
+  private final long ttl;
+  private final int maxSize;
+
+  /**
+   * Constructor.
+   *
+   * @param dh      data handler which provides vdx client pools
+   * @param ttl     time to keep an entry, in seconds. 0 disables caching.
+   * @param maxSize maximum count of entries
+   */
+  public MetadataCache(DataHandler dh, int ttl, int maxSize) {
+    dataHandler = dh;
+    entries = new ConcurrentHashMap<Key, Entry>();
+    this.ttl = ttl * 1000L;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Yield metadata for vdx source, fetching it from vdx if it isn't cached or has expired.
+   *
+   * @param vdxClient vdx name
+   * @param vdxSource vdx source name
+   * @param action    vdx action (channels, columns, ranks, azimuths)
+   * @return list of strings returned by vdx, null if vdx is unknown or the request failed
+   */
+  public List<String> get(String vdxClient, String vdxSource, String action) {
+    if (ttl <= 0) {
+      return fetch(vdxClient, vdxSource, action);
+    }
+
+    Key key = new Key(vdxClient, vdxSource, action);
+    while (true) {
+      Entry entry = entries.get(key);
+      if (entry != null && !entry.isExpired()) {
+        return entry.await();
+      }
+
+      Entry loading = new Entry(key);
+      boolean owner;
+      if (entry == null) {
+        owner = entries.putIfAbsent(key, loading) == null;
+      } else {
+        owner = entries.replace(key, entry, loading);
+      }
+      if (owner) {
+        trim();
+        return loading.load();
+      }
+    }
+  }
+
+  /**
+   * Drop cached entries.
+   *
+   * @param vdxClient vdx name to drop entries for, or null for all
+   * @param vdxSource vdx source name to drop entries for, or null for all
+   * @return count of dropped entries
+   */
+  public int invalidate(String vdxClient, String vdxSource) {
+    int count = 0;
+    for (Key key : new ArrayList<Key>(entries.keySet())) {
+      if ((vdxClient == null || vdxClient.equals(key.vdxClient))
+          && (vdxSource == null || vdxSource.equals(key.vdxSource))) {
+        if (entries.remove(key) != null) {
+          count++;
+        }
+      }
+    }
+    LOGGER.info("Invalidated {} metadata cache entries", count);
+    return count;
+  }
+
+  /**
+   * Getter for count of cached entries.
+   *
+   * @return count of entries
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Handle the admin request to invalidate the cache. If the src parameter is given only entries
+   * for this data source are dropped.
+   *
+   * @see HttpHandler#handle
+   */
+  public Object handle(HttpServletRequest request) {
+    String source = request.getParameter("src");
+    int count;
+    if (source == null || source.length() == 0) {
+      count = invalidate(null, null);
+    } else {
+      DataSourceDescriptor dsd = dataHandler.getDataSourceDescriptor(source);
+      if (dsd == null) {
+        return new ErrorMessage("Unknown data source " + source);
+      }
+      count = invalidate(dsd.getVDXClientName(), dsd.getVDXSource());
+    }
+    List<String> ls = new ArrayList<String>();
+    ls.add("invalidated=" + count);
+    ls.add("size=" + size());
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+
+  /**
+   * Request metadata from vdx.
+   *
+   * @param vdxClient vdx name
+   * @param vdxSource vdx source name
+   * @param action    vdx action
+   * @return list of strings returned by vdx, null if vdx is unknown or the request failed
+   */
+  private List<String> fetch(String vdxClient, String vdxSource, String action) {
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    params.put("source", vdxSource);
+    params.put("action", action);
+
+    List<String> stringList = null;
+    VDXClientPool pool = dataHandler.getVDXClient(vdxClient);
+    if (pool != null) {
+      VDXClient client = null;
+      try {
+        client = pool.checkout();
+        stringList = client.getTextData(params);
+      } catch (UtilException e) {
+        stringList = null;
+      } catch (Exception e) {
+        // client is null if checkout failed, invalidating it does nothing then
+        pool.invalidate(client);
+        stringList = null;
+      } finally {
+        pool.checkin(client);
+      }
+    }
+    return stringList;
+  }
+
+  /**
+   * Keep count of entries under maxSize, dropping expired entries first and then the oldest ones.
+   */
+  private void trim() {
+    if (entries.size() <= maxSize) {
+      return;
+    }
+    for (Map.Entry<Key, Entry> me : entries.entrySet()) {
+      if (me.getValue().isExpired()) {
+        entries.remove(me.getKey(), me.getValue());
+      }
+    }
+    while (entries.size() > maxSize) {
+      Entry oldest = null;
+      for (Entry e : entries.values()) {
+        if (oldest == null || e.time < oldest.time) {
+          oldest = e;
+        }
+      }
+      if (oldest == null) {
+        break;
+      }
+      entries.remove(oldest.key, oldest);
+    }
+  }
+
+  /**
+   * Supporting class, identifies cached metadata.
+   */
+  private static class Key {
+    private final String vdxClient;
+    private final String vdxSource;
+    private final String action;
+
+    public Key(String c, String s, String a) {
+      vdxClient = c;
+      vdxSource = s;
+      action = a;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return (vdxClient == null ? k.vdxClient == null : vdxClient.equals(k.vdxClient))
+          && (vdxSource == null ? k.vdxSource == null : vdxSource.equals(k.vdxSource))
+          && action.equals(k.action);
+    }
+
+    public int hashCode() {
+      int h = vdxClient == null ? 0 : vdxClient.hashCode();
+      h = 31 * h + (vdxSource == null ? 0 : vdxSource.hashCode());
+      return 31 * h + action.hashCode();
+    }
+  }
+
+  /**
+   * Supporting class, cache entry. Keeps the fetch task, which is run by the first requesting
+   * thread and awaited by the others.
+   */
+  private class Entry {
+    public final Key key;
+    public final long time;
+    public final FutureTask<List<String>> task;
+
+    public Entry(final Key k) {
+      key = k;
+      time = System.currentTimeMillis();
+      task = new FutureTask<List<String>>(new Callable<List<String>>() {
+        public List<String> call() {
+          List<String> ls = fetch(k.vdxClient, k.vdxSource, k.action);
+          return ls == null ? null : Collections.unmodifiableList(new ArrayList<String>(ls));
+        }
+      });
+    }
+
+    public boolean isExpired() {
+      return task.isDone() && System.currentTimeMillis() - time > ttl;
+    }
+
+    /**
+     * Run fetch task in current thread. Failed fetches are not cached.
+     */
+    public List<String> load() {
+      task.run();
+      List<String> ls = await();
+      if (ls == null) {
+        entries.remove(key, this);
+      }
+      return ls;
+    }
+
+    public List<String> await() {
+      try {
+        return task.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException e) {
+        LOGGER.error("Metadata request failed: {}", e.getMessage());
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,350 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.vdx.client.VDXClient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of connections to one vdx server. Clients are created lazily up to the maximum
+ * size. A waiting thread is woken when a client is returned, but a thread arriving meanwhile may
+ * take it first, so waiters aren't served strictly in order; they give up after the checkout
+ * timeout. Clients which failed are evicted, clients idle for too long are retired down to the
+ * minimum size and clients held longer than the leak threshold are reported.
+ */
+public class VDXClientPool {
+  private static final Logger LOGGER = LoggerFactory.getLogger(VDXClientPool.class);
+  public static final int DEFAULT_MIN_SIZE = 1;
+  public static final int DEFAULT_MAX_SIZE = 4;
+  public static final int DEFAULT_CLIENT_TIMEOUT = 60000;
+  public static final int DEFAULT_CHECKOUT_TIMEOUT = 30000;
+  public static final int DEFAULT_IDLE_TIMEOUT = 300000;
+  public static final int DEFAULT_LEAK_THRESHOLD = 600000;
+
+  private final String name;
+  private final String host;
+  private final int port;
+  private final int clientTimeout;
+  private final int minSize;
+  private final int maxSize;
+  private final long checkoutTimeout;
+  private final long idleTimeout;
+  private final long leakThreshold;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  private final Deque<Idle> idle = new ArrayDeque<Idle>();
+  private final Map<VDXClient, Lease> leased = new IdentityHashMap<VDXClient, Lease>();
+  private int size = 0;
+  private int waiting = 0;
+
+  private long checkouts = 0;
+  private long timeouts = 0;
+  private long created = 0;
+  private long evicted = 0;
+  private long retired = 0;
+  private long leaks = 0;
+  private long totalWait = 0;
+  private long maxWait = 0;
+  private int peakInUse = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param name            vdx name
+   * @param host            vdx host
+   * @param port            vdx port
+   * @param clientTimeout   socket timeout of clients, in milliseconds
+   * @param minSize         count of clients kept even if idle
+   * @param maxSize         maximum count of clients
+   * @param checkoutTimeout time to wait for a free client, in milliseconds
+   * @param idleTimeout     time after which idle clients above minSize are retired, in
+   *                        milliseconds
+   * @param leakThreshold   time after which a client not checked in is reported, in milliseconds
+   */
+  public VDXClientPool(String name, String host, int port, int clientTimeout, int minSize,
+      int maxSize, long checkoutTimeout, long idleTimeout, long leakThreshold) {
+    this.name = name;
+    this.host = host;
+    this.port = port;
+    this.clientTimeout = clientTimeout;
+    this.maxSize = Math.max(1, maxSize);
+    this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+    this.checkoutTimeout = checkoutTimeout;
+    this.idleTimeout = idleTimeout;
+    this.leakThreshold = leakThreshold;
+
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < this.minSize; i++) {
+      idle.addLast(new Idle(createClient(), now));
+      size++;
+      created++;
+    }
+  }
+
+  /**
+   * Getter for vdx name.
+   *
+   * @return vdx name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Getter for maximum count of clients.
+   *
+   * @return maximum count of clients
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Take a client from the pool, creating one if none is idle and the pool isn't full. Every
+   * checked out client must be given back with {@link #checkin} or {@link #invalidate}.
+   *
+   * @return client
+   * @throws Valve3Exception if no client became available within the checkout timeout
+   */
+  public VDXClient checkout() throws Valve3Exception {
+    long start = System.currentTimeMillis();
+    VDXClient client = null;
+    List<VDXClient> retiredClients = new ArrayList<VDXClient>();
+    lock.lock();
+    try {
+      checkLeaks(start);
+      while (true) {
+        long now = System.currentTimeMillis();
+        retireIdle(now, retiredClients);
+        Idle i = idle.pollFirst();
+        if (i != null) {
+          client = i.client;
+          break;
+        }
+        if (size < maxSize) {
+          client = createClient();
+          size++;
+          created++;
+          break;
+        }
+        long remaining = start + checkoutTimeout - now;
+        if (remaining <= 0) {
+          timeouts++;
+          LOGGER.warn("Timed out after {} ms waiting for vdx {} client, {} in use",
+              checkoutTimeout, name, leased.size());
+          throw new Valve3Exception("Timed out waiting for connection to VDX server " + name);
+        }
+        waiting++;
+        try {
+          available.await(remaining, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new Valve3Exception("Interrupted waiting for connection to VDX server " + name);
+        } finally {
+          waiting--;
+        }
+      }
+      lease(client, start);
+    } finally {
+      lock.unlock();
+      close(retiredClients);
+    }
+    return client;
+  }
+
+  /**
+   * Give a healthy client back to the pool.
+   *
+   * @param client client obtained from {@link #checkout}
+   */
+  public void checkin(VDXClient client) {
+    if (client == null) {
+      return;
+    }
+    lock.lock();
+    try {
+      Lease lease = leased.remove(client);
+      if (lease == null) {
+        // already invalidated, or not ours
+        return;
+      }
+      long now = System.currentTimeMillis();
+      if (lease.reported) {
+        LOGGER.info("vdx {} client held by {} returned after {} ms", name, lease.thread,
+            now - lease.since);
+      }
+      idle.addFirst(new Idle(client, now));
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drop a client which failed, so it isn't handed out again. A fresh client is created on demand.
+   *
+   * @param client client obtained from {@link #checkout}
+   */
+  public void invalidate(VDXClient client) {
+    if (client == null) {
+      return;
+    }
+    boolean dropped = false;
+    lock.lock();
+    try {
+      if (leased.remove(client) != null) {
+        size--;
+        evicted++;
+        dropped = true;
+        LOGGER.warn("Evicted broken vdx {} client", name);
+        available.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (dropped) {
+      close(Collections.singletonList(client));
+    }
+  }
+
+  /**
+   * Yield pool metrics.
+   *
+   * @return list of "name.metric=value" strings
+   */
+  public List<String> getStatus() {
+    List<String> ls = new ArrayList<String>();
+    lock.lock();
+    try {
+      checkLeaks(System.currentTimeMillis());
+      ls.add(name + ".size=" + size);
+      ls.add(name + ".minSize=" + minSize);
+      ls.add(name + ".maxSize=" + maxSize);
+      ls.add(name + ".inUse=" + leased.size());
+      ls.add(name + ".peakInUse=" + peakInUse);
+      ls.add(name + ".idle=" + idle.size());
+      ls.add(name + ".waiting=" + waiting);
+      ls.add(name + ".checkouts=" + checkouts);
+      ls.add(name + ".timeouts=" + timeouts);
+      ls.add(name + ".avgWaitMs=" + (checkouts == 0 ? 0 : totalWait / checkouts));
+      ls.add(name + ".maxWaitMs=" + maxWait);
+      ls.add(name + ".created=" + created);
+      ls.add(name + ".evicted=" + evicted);
+      ls.add(name + ".retired=" + retired);
+      ls.add(name + ".leaks=" + leaks);
+    } finally {
+      lock.unlock();
+    }
+    return ls;
+  }
+
+  /**
+   * Create new client.
+   */
+  private VDXClient createClient() {
+    VDXClient client = new VDXClient(host, port);
+    client.setTimeout(clientTimeout);
+    return client;
+  }
+
+  /**
+   * Register client as checked out and update wait statistics. Must be called with lock held.
+   */
+  private void lease(VDXClient client, long start) {
+    long now = System.currentTimeMillis();
+    Lease lease = new Lease(Thread.currentThread().getName(), now);
+    if (LOGGER.isDebugEnabled()) {
+      lease.trace = new Throwable("vdx " + name + " client checked out here");
+    }
+    leased.put(client, lease);
+    checkouts++;
+    long wait = now - start;
+    totalWait += wait;
+    maxWait = Math.max(maxWait, wait);
+    peakInUse = Math.max(peakInUse, leased.size());
+  }
+
+  /**
+   * Close clients dropped from the pool. Must be called without lock held, closing may block.
+   */
+  private void close(List<VDXClient> clients) {
+    for (VDXClient client : clients) {
+      try {
+        client.close();
+      } catch (Exception e) {
+        LOGGER.warn("Error closing vdx {} client: {}", name, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Retire least recently used idle clients above the minimum size. Must be called with lock
+   * held; the retired clients are added to the given list, to be closed after unlocking.
+   */
+  private void retireIdle(long now, List<VDXClient> retiredClients) {
+    while (size > minSize && !idle.isEmpty() && now - idle.peekLast().since > idleTimeout) {
+      retiredClients.add(idle.pollLast().client);
+      size--;
+      retired++;
+    }
+  }
+
+  /**
+   * Report clients held longer than the leak threshold, once per checkout. Must be called with
+   * lock held.
+   */
+  private void checkLeaks(long now) {
+    for (Lease lease : leased.values()) {
+      if (!lease.reported && now - lease.since > leakThreshold) {
+        lease.reported = true;
+        leaks++;
+        LOGGER.warn("Possible leak: vdx {} client held by {} for {} ms", name, lease.thread,
+            now - lease.since);
+        if (lease.trace != null) {
+          LOGGER.debug("Leaked client checkout", lease.trace);
+        }
+      }
+    }
+  }
+
+  /**
+   * Supporting class, idle client.
+   */
+  private static class Idle {
+    public final VDXClient client;
+    public final long since;
+
+    public Idle(VDXClient c, long s) {
+      client = c;
+      since = s;
+    }
+  }
+
+  /**
+   * Supporting class, checked out client.
+   */
+  private static class Lease {
+    public final String thread;
+    public final long since;
+    public Throwable trace;
+    public boolean reported = false;
+
+    public Lease(String t, long s) {
+      thread = t;
+      since = s;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import gov.usgs.volcanoes.valve3.HttpHandler;
+import gov.usgs.volcanoes.valve3.result.ErrorMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reports usage of the vdx client pools: size, clients in use, waiting threads, wait times,
+ * timeouts, evicted clients and suspected leaks.
+ */
+public class VDXStatusHandler implements HttpHandler {
+  private final DataHandler dataHandler;
+
+  /**
+   * Constructor.
+   *
+   * @param dh data handler which provides vdx client pools
+   */
+  public VDXStatusHandler(DataHandler dh) {
+    dataHandler = dh;
+  }
+
+  /**
+   * Handle the status request. If the vdx parameter is given only this pool is reported.
+   *
+   * @see HttpHandler#handle
+   */
+  public Object handle(HttpServletRequest request) {
+    String vdx = request.getParameter("vdx");
+    List<String> ls = new ArrayList<String>();
+    if (vdx == null || vdx.length() == 0) {
+      for (VDXClientPool pool : dataHandler.getVDXClientPools()) {
+        ls.addAll(pool.getStatus());
+      }
+    } else {
+      VDXClientPool pool = dataHandler.getVDXClient(vdx);
+      if (pool == null) {
+        return new ErrorMessage("Unknown VDX server " + vdx);
+      }
+      ls.addAll(pool.getStatus());
+    }
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+}
@@ -0,0 +1,258 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.valve3.HttpHandler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Keeps recent raw waveform samples of each channel in a ring buffer, so refreshes of relative
+ * waveform plots ("et=N") only request the samples after the cached end from vdx. The last few
+ * minutes are requested again, as vdx may have received more data for them since. New samples
+ * overwrite the oldest ones once the ring, sized to the requested window, is full. Samples
+ * missing between the cached end and the new ones are filled with {@link Wave#NO_DATA}. The least
+ * recently used channels are dropped while over the total samples limit. Plotters get copies, as
+ * they process waves in place. Also handles the request for cache statistics.
+ */
+public class WaveCache implements HttpHandler {
+  public static final int DEFAULT_MAX_SAMPLES = 16;
+  public static final int DEFAULT_REFETCH = 120;
+
+  private final LinkedHashMap<String, Ring> rings;
+  private final long maxSamples;
+  private final double refetch;
+  private long samples = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long bytesFetched = 0;
+  private long bytesSaved = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param maxSamples maximum count of cached samples, in millions. 0 disables caching.
+   * @param refetch    seconds before the cached end which are requested again
+   */
+  public WaveCache(int maxSamples, int refetch) {
+    rings = new LinkedHashMap<String, Ring>(16, 0.75f, true);
+    this.maxSamples = maxSamples * 1000000L;
+    this.refetch = refetch;
+  }
+
+  /**
+   * Check if caching is enabled.
+   *
+   * @return true if maximum count of samples is positive
+   */
+  public boolean isEnabled() {
+    return maxSamples > 0;
+  }
+
+  /**
+   * Yield time samples must be requested from vdx from.
+   *
+   * @param key       channel key, vdx name, vdx source and channel id
+   * @param startTime request start time
+   * @param endTime   request end time
+   * @return start time of the vdx request, NaN if nothing usable is cached
+   */
+  public synchronized double getFetchStart(String key, double startTime, double endTime) {
+    Ring ring = rings.get(key);
+    if (ring == null || ring.startTime > startTime || ring.getEndTime() <= startTime
+        || ring.getEndTime() > endTime) {
+      misses++;
+      return Double.NaN;
+    }
+    hits++;
+    return Math.max(startTime, ring.getEndTime() - refetch);
+  }
+
+  /**
+   * Cache wave fetched for the whole requested window, replacing cached samples of the channel.
+   *
+   * @param key       channel key, vdx name, vdx source and channel id
+   * @param startTime request start time
+   * @param endTime   request end time
+   * @param wave      wave returned by vdx, may be null
+   * @return copy of the wave, null if there are no samples
+   */
+  public synchronized Wave put(String key, double startTime, double endTime, Wave wave) {
+    remove(key);
+    if (wave == null || wave.numSamples() == 0) {
+      return null;
+    }
+    bytesFetched += wave.numSamples() * 4L;
+    Ring ring = new Ring(wave.getStartTime(), wave.getSamplingRate(),
+        (int) Math.ceil((endTime - startTime + refetch) * wave.getSamplingRate()) + 1);
+    rings.put(key, ring);
+    ring.append(wave, startTime);
+    samples += ring.ring.length;
+    trim(key);
+    return ring.copy(startTime);
+  }
+
+  /**
+   * Splice samples fetched from {@link #getFetchStart} on onto the cached ones.
+   *
+   * @param key        channel key, vdx name, vdx source and channel id
+   * @param startTime  request start time
+   * @param fetchStart time samples were requested from
+   * @param wave       wave returned by vdx, may be null
+   * @return copy of the samples of the requested window; null if the cached samples the request
+   *         relied on are gone, then the window must be fetched in full
+   */
+  public synchronized Wave splice(String key, double startTime, double fetchStart, Wave wave) {
+    int fetched = wave == null ? 0 : wave.numSamples();
+    bytesFetched += fetched * 4L;
+    Ring ring = rings.get(key);
+    if (ring == null || ring.startTime > startTime || ring.getEndTime() < fetchStart
+        || (fetched > 0 && ring.samplingRate != wave.getSamplingRate())) {
+      return null;
+    }
+    if (fetched > 0) {
+      samples -= ring.ring.length;
+      ring.append(wave, startTime);
+      samples += ring.ring.length;
+      trim(key);
+    }
+    Wave copy = ring.copy(startTime);
+    if (copy != null) {
+      bytesSaved += Math.max(0, copy.numSamples() - fetched) * 4L;
+    }
+    return copy;
+  }
+
+  /**
+   * Handle the request for cache statistics.
+   *
+   * @see HttpHandler#handle
+   */
+  public synchronized Object handle(HttpServletRequest request) {
+    List<String> ls = new ArrayList<String>();
+    ls.add("channels=" + rings.size());
+    ls.add("samples=" + samples);
+    ls.add("maxSamples=" + maxSamples);
+    ls.add("hits=" + hits);
+    ls.add("misses=" + misses);
+    ls.add("bytesFetched=" + bytesFetched);
+    ls.add("bytesSaved=" + bytesSaved);
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+
+  /**
+   * Drop cached samples of a channel.
+   */
+  private void remove(String key) {
+    Ring old = rings.remove(key);
+    if (old != null) {
+      samples -= old.ring.length;
+    }
+  }
+
+  /**
+   * Drop least recently used channels, except the given one, while over the samples limit.
+   */
+  private void trim(String keep) {
+    Iterator<String> it = rings.keySet().iterator();
+    while (samples > maxSamples && it.hasNext()) {
+      String key = it.next();
+      if (!key.equals(keep)) {
+        samples -= rings.get(key).ring.length;
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Supporting class, ring buffer of samples of one channel. Sample i of the ring, counted from
+   * head, was taken at startTime + i / samplingRate.
+   */
+  private static class Ring {
+    private double startTime;
+    private final double samplingRate;
+    private int[] ring;
+    private int head = 0;
+    private int count = 0;
+
+    private Ring(double startTime, double samplingRate, int capacity) {
+      this.startTime = startTime;
+      this.samplingRate = samplingRate;
+      ring = new int[Math.max(1, capacity)];
+    }
+
+    private double getEndTime() {
+      return startTime + count / samplingRate;
+    }
+
+    /**
+     * Write samples of wave at their place, overwriting cached ones from there on and dropping
+     * the oldest ones when full. Grows the ring if it holds less than the requested window.
+     */
+    private void append(Wave wave, double windowStart) {
+      long offset = Math.round((wave.getStartTime() - startTime) * samplingRate);
+      int[] buf = wave.buffer;
+      int skip = 0;
+      if (offset < 0) {
+        // samples before the cached ones are of no use
+        skip = (int) Math.min(buf.length, -offset);
+        offset = 0;
+      }
+      int n = wave.numSamples() - skip;
+      long end = offset + n;
+      long needed = end - Math.max(0, Math.round((windowStart - startTime) * samplingRate));
+      needed = Math.max(needed, n);
+      if (needed > ring.length) {
+        grow((int) needed);
+      }
+
+      // drop oldest samples which would be overwritten
+      long drop = end - ring.length;
+      if (drop > 0) {
+        head = (int) ((head + Math.min(drop, count)) % ring.length);
+        count = (int) Math.max(0, count - drop);
+        startTime += drop / samplingRate;
+        offset -= drop;
+      }
+
+      // gap between cached end and new samples
+      for (long i = count; i < offset; i++) {
+        ring[(int) ((head + i) % ring.length)] = Wave.NO_DATA;
+      }
+      for (int i = 0; i < n; i++) {
+        ring[(int) ((head + offset + i) % ring.length)] = buf[skip + i];
+      }
+      count = (int) Math.max(count, offset + n);
+    }
+
+    private void grow(int capacity) {
+      int[] larger = new int[capacity];
+      for (int i = 0; i < count; i++) {
+        larger[i] = ring[(head + i) % ring.length];
+      }
+      ring = larger;
+      head = 0;
+    }
+
+    /**
+     * Copy samples from given time on.
+     */
+    private Wave copy(double from) {
+      int first = (int) Math.max(0, Math.round((from - startTime) * samplingRate));
+      if (first >= count) {
+        return null;
+      }
+      int[] buf = new int[count - first];
+      int p = (head + first) % ring.length;
+      int tail = Math.min(buf.length, ring.length - p);
+      System.arraycopy(ring, p, buf, 0, tail);
+      System.arraycopy(ring, 0, buf, tail, buf.length - tail);
+      return new Wave(buf, startTime + first / samplingRate, samplingRate);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.valve3.HttpHandler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Keeps recently decimated waveforms, so plots of the same component, e.g. single and combined,
+ * share them. Waves are keyed by everything they depend on: vdx source, channel, time window,
+ * plot width and processing parameters. Callers cache only waves of settled time windows, as the
+ * key of a window ending recently or in the future stays the same while its data grow. The least
+ * recently used waves are dropped while over the total samples limit. Also handles the request
+ * for cache statistics.
+ */
+public class WaveDecimationCache implements HttpHandler {
+  public static final int DEFAULT_MAX_SAMPLES = 4;
+
+  private final LinkedHashMap<String, Wave> waves;
+  private final long maxSamples;
+  private long samples = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param maxSamples maximum count of cached samples, in millions. 0 disables caching.
+   */
+  public WaveDecimationCache(int maxSamples) {
+    waves = new LinkedHashMap<String, Wave>(16, 0.75f, true);
+    this.maxSamples = maxSamples * 1000000L;
+  }
+
+  /**
+   * Check if caching is enabled.
+   *
+   * @return true if maximum count of samples is positive
+   */
+  public boolean isEnabled() {
+    return maxSamples > 0;
+  }
+
+  /**
+   * Yield cached decimated wave.
+   *
+   * @param key description of the request and processing the wave resulted from
+   * @return wave, null if not cached
+   */
+  public synchronized Wave get(String key) {
+    Wave wave = waves.get(key);
+    if (wave == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return wave;
+  }
+
+  /**
+   * Cache decimated wave, dropping least recently used ones while over the samples limit.
+   *
+   * @param key  description of the request and processing the wave resulted from
+   * @param wave decimated wave
+   */
+  public synchronized void put(String key, Wave wave) {
+    if (!isEnabled()) {
+      return;
+    }
+    Wave old = waves.put(key, wave);
+    if (old != null) {
+      samples -= old.numSamples();
+    }
+    samples += wave.numSamples();
+    Iterator<Map.Entry<String, Wave>> it = waves.entrySet().iterator();
+    while (samples > maxSamples && it.hasNext()) {
+      samples -= it.next().getValue().numSamples();
+      it.remove();
+    }
+  }
+
+  /**
+   * Handle the request for cache statistics.
+   *
+   * @see HttpHandler#handle
+   */
+  public synchronized Object handle(HttpServletRequest request) {
+    List<String> ls = new ArrayList<String>();
+    ls.add("waves=" + waves.size());
+    ls.add("samples=" + samples);
+    ls.add("maxSamples=" + maxSamples);
+    ls.add("hits=" + hits);
+    ls.add("misses=" + misses);
+    return new gov.usgs.volcanoes.valve3.result.List(ls);
+  }
+}
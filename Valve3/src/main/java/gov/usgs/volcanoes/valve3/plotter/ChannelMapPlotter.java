@@ -1,29 +1,23 @@
 package gov.usgs.volcanoes.valve3.plotter;
 
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
-import gov.usgs.volcanoes.core.legacy.plot.map.GeoImageSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoLabel;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoLabelSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.MapRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.math.proj.GeoRange;
 import gov.usgs.volcanoes.core.math.proj.TransverseMercator;
-import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
-import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
 
 import java.awt.Color;
 import java.awt.geom.Point2D;
 import java.awt.image.RenderedImage;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -137,28 +131,11 @@ public class ChannelMapPlotter extends Plotter {
   private void getData(PlotComponent comp) throws Valve3Exception {
 
     // initialize variables
-    List<String> stringList = null;
-    VDXClient client        = null;
-    labels                  = new GeoLabelSet();
+    labels = new GeoLabelSet();
 
-    // create a map of all the input parameters
-    Map<String, String> params = new LinkedHashMap<String, String>();
-    params.put("source", vdxSource);
-    params.put("action", "channels");
-
-    // checkout a connection to the database, the vdxClient could be null or invalid
-    Pool<VDXClient> pool = null;
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
-      try {
-        stringList = client.getTextData(params);
-      } catch (UtilException e) {
-        stringList = null;
-      } finally {
-        pool.checkin(client);
-      }
-    }
+    // the channel list comes from the metadata cache, the vdxClient could be null or invalid
+    List<String> stringList = Valve3.getInstance().getDataHandler().getMetadataCache()
+        .get(vdxClient, vdxSource, "channels");
 
     // if data was collected, iterate through the list of channels and add a geo label
     if (stringList != null) {
@@ -203,8 +180,8 @@ public class ChannelMapPlotter extends Plotter {
       mr.setGeoLabelSet(labels.getSubset(range));
     }
 
-    GeoImageSet images = Valve3.getInstance().getGeoImageSet();
-    RenderedImage ri   = images.getMapBackground(proj, range, comp.getBoxWidth());
+    RenderedImage ri = Valve3.getInstance().getMapBackgroundCache()
+        .getMapBackground(proj, origin, range, comp.getBoxWidth());
 
     mr.setMapImage(ri);
     mr.createBox(8);
@@ -227,8 +204,6 @@ public class ChannelMapPlotter extends Plotter {
       mr.getAxis().setLeftLabelAsText("Latitude");
     }
     v3p.getPlot().addRenderer(mr);
-    writeFile(v3p);
-
     v3p.addComponent(comp);
     if (vdxSource != null) {
       String n = Valve3.getInstance().getMenuHandler().getItem(vdxSource).name;
@@ -238,6 +213,20 @@ public class ChannelMapPlotter extends Plotter {
     }
   }
 
+  /**
+   * Configure plotter and load channel labels.
+   *
+   * @see Plotter#fetchData
+   */
+  public void fetchData(PlotComponent comp) throws Valve3Exception {
+    if (labels != null) {
+      return;
+    }
+    comp.setPlotter(this.getClass().getName());
+    getInputs(comp);
+    getData(comp);
+  }
+
   /**
    * Concrete realization of abstract method. Generate PNG map image to local file.
    *
@@ -246,8 +235,7 @@ public class ChannelMapPlotter extends Plotter {
   public void plot(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException {
 
     forExport = (v3p == null);
-    comp.setPlotter(this.getClass().getName());
-    getInputs(comp);
+    fetchData(comp);
 
     // plot configuration, channel maps don't support data export
     if (!forExport) {
@@ -255,7 +243,6 @@ public class ChannelMapPlotter extends Plotter {
       v3p.setCombineable(false);
     }
 
-    getData(comp);
     plotMap(v3p, comp);
   }
 }
@@ -0,0 +1,132 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import gov.usgs.volcanoes.core.math.proj.Projection;
+import gov.usgs.volcanoes.valve3.ComputeService;
+import gov.usgs.volcanoes.valve3.Valve3;
+import gov.usgs.volcanoes.valve3.Valve3Exception;
+
+import hep.aida.ref.Histogram2D;
+
+import java.awt.geom.Point2D;
+import java.util.List;
+
+/**
+ * Counts points in the cells of a regular grid, for density plots. Points are kept in primitive
+ * columns; large sets are split into chunks which are projected and binned into grids of their
+ * own on the shared computation pool, then the grids are added up. Bins follow the axes of
+ * {@link Histogram2D}: points below the minimum or at and above the maximum aren't counted. The
+ * result is a histogram with the counts as bin heights, so Histogram2DRenderer draws it, log
+ * scaled or not, as if it was filled point by point.
+ */
+public class DensityBinner {
+  private final int xBins;
+  private final double minX;
+  private final double maxX;
+  private final int yBins;
+  private final double minY;
+  private final double maxY;
+
+  /**
+   * Constructor.
+   *
+   * @param xBins number of bins along x axis
+   * @param minX  lower edge of first x bin
+   * @param maxX  upper edge of last x bin
+   * @param yBins number of bins along y axis
+   * @param minY  lower edge of first y bin
+   * @param maxY  upper edge of last y bin
+   */
+  public DensityBinner(int xBins, double minX, double maxX, int yBins, double minY,
+      double maxY) {
+    this.xBins = xBins;
+    this.minX = minX;
+    this.maxX = maxX;
+    this.yBins = yBins;
+    this.minY = minY;
+    this.maxY = maxY;
+  }
+
+  /**
+   * Bin points.
+   *
+   * @param x    x coordinates, longitudes if projected
+   * @param y    y coordinates, latitudes if projected
+   * @param proj projection applied to each point before binning, null if none
+   * @return histogram holding the count of each bin
+   * @throws Valve3Exception if binning fails
+   */
+  public Histogram2D bin(double[] x, double[] y, Projection proj) throws Valve3Exception {
+    return bin(x, y, proj, Valve3.getInstance().getComputeService());
+  }
+
+  /**
+   * Bin points on the given computation service.
+   *
+   * @param x       x coordinates, longitudes if projected
+   * @param y       y coordinates, latitudes if projected
+   * @param proj    projection applied to each point before binning, null if none
+   * @param service service chunks are binned on
+   * @return histogram holding the count of each bin
+   * @throws Valve3Exception if binning fails
+   */
+  public Histogram2D bin(final double[] x, final double[] y, final Projection proj,
+      ComputeService service) throws Valve3Exception {
+    List<int[]> grids = service.computeChunks(x.length,
+        new ComputeService.Chunk<int[]>() {
+          public int[] compute(int from, int to) {
+            return count(x, y, from, to, proj);
+          }
+        });
+
+    int[] counts = grids.get(0);
+    for (int g = 1; g < grids.size(); g++) {
+      int[] grid = grids.get(g);
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += grid[i];
+      }
+    }
+
+    Histogram2D hist = new Histogram2D("", xBins, minX, maxX, yBins, minY, maxY);
+    double xWidth = (maxX - minX) / xBins;
+    double yWidth = (maxY - minY) / yBins;
+    for (int i = 0; i < xBins; i++) {
+      for (int j = 0; j < yBins; j++) {
+        int count = counts[i * yBins + j];
+        if (count > 0) {
+          hist.fill(minX + (i + 0.5) * xWidth, minY + (j + 0.5) * yWidth, count);
+        }
+      }
+    }
+    return hist;
+  }
+
+  /**
+   * Count points of a chunk into a grid of its own, indexed x bin * yBins + y bin.
+   */
+  private int[] count(double[] x, double[] y, int from, int to, Projection proj) {
+    int[] counts = new int[xBins * yBins];
+    double xScale = xBins / (maxX - minX);
+    double yScale = yBins / (maxY - minY);
+    Point2D.Double pt = new Point2D.Double();
+    for (int k = from; k < to; k++) {
+      double px = x[k];
+      double py = y[k];
+      if (proj != null) {
+        pt.setLocation(px, py);
+        Point2D.Double p = proj.forward(pt);
+        px = p.x;
+        py = p.y;
+      }
+      // points without a value or outside the grid aren't counted
+      if (!(px >= minX) || !(py >= minY)) {
+        continue;
+      }
+      int i = (int) ((px - minX) * xScale);
+      int j = (int) ((py - minY) * yScale);
+      if (i < xBins && j < yBins) {
+        counts[i * yBins + j]++;
+      }
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,136 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import gov.usgs.volcanoes.vdx.data.ExportData;
+
+import java.util.Collection;
+
+/**
+ * Merges the data of several export sources into rows ordered by time. Sources are kept in a
+ * binary min-heap on the time of their current datum; data of all sources with equal time are
+ * combined into one row. The row array is reused, slots of sources without datum for the row hold
+ * the source's dummy datum.
+ */
+public class ExportMerger {
+  private final ExportData[] sources;
+  private final Double[][] dummies;
+  private final Double[][] row;
+
+  // heap of source ids, and time of current datum of each source
+  private final int[] heap;
+  private final double[] times;
+  private int heapSize = 0;
+  private double rowTime;
+
+  /**
+   * Constructor.
+   *
+   * @param data export sources, identified by their export data id from 0 to data.size() - 1
+   */
+  public ExportMerger(Collection<ExportData> data) {
+    int n = data.size();
+    sources = new ExportData[n];
+    dummies = new Double[n][];
+    row = new Double[n][];
+    heap = new int[n];
+    times = new double[n];
+    for (ExportData ed : data) {
+      int id = ed.exportDataId();
+      sources[id] = ed;
+      dummies[id] = ed.dummyExportDatum();
+      Double[] datum = ed.currExportDatum();
+      if (datum != null) {
+        times[id] = datum[0];
+        heap[heapSize] = id;
+        siftUp(heapSize++);
+      }
+    }
+  }
+
+  /**
+   * Assemble next row.
+   *
+   * @return false if all sources are exhausted
+   */
+  public boolean next() {
+    if (heapSize == 0) {
+      return false;
+    }
+
+    System.arraycopy(dummies, 0, row, 0, row.length);
+    rowTime = times[heap[0]];
+    // data not later than the row time go into this row; a source going back in time is
+    // merged rather than starting a new row
+    while (heapSize > 0 && Double.compare(times[heap[0]], rowTime) <= 0) {
+      int id = heap[0];
+      ExportData ed = sources[id];
+      row[id] = ed.currExportDatum();
+
+      Double[] datum = ed.nextExportDatum();
+      if (datum == null) {
+        heap[0] = heap[--heapSize];
+      } else {
+        times[id] = datum[0];
+      }
+      if (heapSize > 0) {
+        siftDown(0);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Getter for time of current row.
+   *
+   * @return j2ksec time
+   */
+  public double getTime() {
+    return rowTime;
+  }
+
+  /**
+   * Getter for current row. The array is reused for following rows.
+   *
+   * @return datum of each source indexed by export data id
+   */
+  public Double[][] getRow() {
+    return row;
+  }
+
+  /**
+   * Heap order: earlier time first, lower id on equal times.
+   */
+  private boolean less(int a, int b) {
+    int cmp = Double.compare(times[a], times[b]);
+    return cmp < 0 || (cmp == 0 && a < b);
+  }
+
+  private void siftUp(int i) {
+    int id = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!less(id, heap[parent])) {
+        break;
+      }
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = id;
+  }
+
+  private void siftDown(int i) {
+    int id = heap[i];
+    int half = heapSize >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      if (child + 1 < heapSize && less(heap[child + 1], heap[child])) {
+        child++;
+      }
+      if (!less(heap[child], id)) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = id;
+  }
+}
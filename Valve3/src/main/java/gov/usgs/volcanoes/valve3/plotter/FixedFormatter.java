@@ -0,0 +1,97 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Writes doubles as String.format("%W.Pf") does, without parsing the pattern or allocating for
+ * each value. Digits are generated into a reusable buffer. Values the fast path can't render
+ * exactly the same way (NaN, infinities, huge values, near-ties in rounding, locales with other
+ * digits or decimal separator) are handed over to String.format. Not thread safe.
+ */
+public class FixedFormatter {
+  // scaled values below this are exact enough in a long to decide rounding
+  private static final double MAX_SCALED = 1e15;
+  private static final int MAX_PRECISION = 15;
+
+  private final int width;
+  private final int precision;
+  private final String pattern;
+  private final double scale;
+  private final boolean fast;
+  private final char[] buf;
+
+  /**
+   * Constructor.
+   *
+   * @param width     minimum field width, padded with spaces on the left
+   * @param precision count of digits after decimal point
+   */
+  public FixedFormatter(int width, int precision) {
+    this.width = width;
+    this.precision = precision;
+    pattern = "%" + width + "." + precision + "f";
+    // fail on illegal pattern just as String.format would
+    String.format(pattern, 0.0);
+
+    DecimalFormatSymbols dfs =
+        DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+    fast = precision <= MAX_PRECISION && dfs.getZeroDigit() == '0'
+        && dfs.getDecimalSeparator() == '.';
+    scale = Math.pow(10, Math.min(precision, MAX_PRECISION));
+    buf = new char[Math.max(width, 0) + MAX_PRECISION + 20];
+  }
+
+  /**
+   * Write formatted value.
+   *
+   * @param out writer to write to
+   * @param v   value
+   * @throws IOException if writing fails
+   */
+  public void write(Writer out, double v) throws IOException {
+    if (!fast || Double.isNaN(v) || Double.isInfinite(v)) {
+      out.write(String.format(pattern, v));
+      return;
+    }
+    double scaled = Math.abs(v) * scale;
+    if (!(scaled < MAX_SCALED)) {
+      out.write(String.format(pattern, v));
+      return;
+    }
+    long units = (long) scaled;
+    double frac = scaled - units;
+    if (Math.abs(frac - 0.5) <= 4 * Math.ulp(scaled)) {
+      // too close to a tie to be sure which way String.format rounds
+      out.write(String.format(pattern, v));
+      return;
+    }
+    if (frac > 0.5) {
+      units++;
+    }
+
+    int end = buf.length;
+    int pos = end;
+    for (int i = 0; i < precision; i++) {
+      buf[--pos] = (char) ('0' + units % 10);
+      units /= 10;
+    }
+    if (precision > 0) {
+      buf[--pos] = '.';
+    }
+    do {
+      buf[--pos] = (char) ('0' + units % 10);
+      units /= 10;
+    } while (units > 0);
+    // String.format keeps the sign of negative values rounded to zero, and of -0.0
+    if (Double.doubleToRawLongBits(v) < 0) {
+      buf[--pos] = '-';
+    }
+    while (end - pos < width) {
+      buf[--pos] = ' ';
+    }
+    out.write(buf, pos, end - pos);
+  }
+}
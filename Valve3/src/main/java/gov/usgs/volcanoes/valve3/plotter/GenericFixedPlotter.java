@@ -4,7 +4,6 @@ import gov.usgs.volcanoes.core.data.GenericDataMatrix;
 import gov.usgs.volcanoes.core.legacy.plot.Plot;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
 import gov.usgs.volcanoes.core.legacy.plot.render.MatrixRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.math.Butterworth;
 import gov.usgs.volcanoes.core.math.Butterworth.FilterType;
 import gov.usgs.volcanoes.core.util.StringUtils;
@@ -13,7 +12,6 @@ import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
-import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.Column;
 import gov.usgs.volcanoes.vdx.data.ExportData;
@@ -21,6 +19,7 @@ import gov.usgs.volcanoes.vdx.data.MatrixExporter;
 import gov.usgs.volcanoes.vdx.data.Rank;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -115,8 +114,6 @@ public class GenericFixedPlotter extends RawDataPlotter {
   protected void getData(PlotComponent comp) throws Valve3Exception {
 
     // initialize variables
-    boolean exceptionThrown = false;
-    String exceptionMsg = "";
     channelDataMap = new LinkedHashMap<>();
     String[] channels = ch.split(",");
 
@@ -129,23 +126,14 @@ public class GenericFixedPlotter extends RawDataPlotter {
     params.put("rk", Integer.toString(rk));
     addDownsamplingInfo(params);
 
-    // checkout a connection to the database
-    Pool<VDXClient> pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      VDXClient client = pool.checkout();
+    // request the data of all selected channels from the database
+    List<GenericDataMatrix> dataList = getChannelsData(params, channels, GenericDataMatrix.class);
+    if (dataList != null) {
 
       // iterate through each of the selected channels and place the data in the map
-      for (String channel : channels) {
-        params.put("ch", channel);
-        GenericDataMatrix data;
-        try {
-          data = (GenericDataMatrix) client.getBinaryData(params);
-        } catch (Exception e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          logger.debug(exceptionMsg);
-          break;
-        }
+      for (int i = 0; i < channels.length; i++) {
+        String channel = channels[i];
+        GenericDataMatrix data = dataList.get(i);
 
         // if data was collected
         if (data != null && data.rows() > 0) {
@@ -156,14 +144,6 @@ public class GenericFixedPlotter extends RawDataPlotter {
         }
         channelDataMap.put(Integer.valueOf(channel), data);
       }
-
-      // check back in our connection to the database
-      pool.checkin(client);
-    }
-
-    // if a data limit message exists, then throw exception
-    if (exceptionThrown) {
-      throw new Valve3Exception(exceptionMsg);
     }
   }
 
@@ -368,6 +348,15 @@ public class GenericFixedPlotter extends RawDataPlotter {
     }
   }
 
+  /**
+   * Load channels, ranks and columns of vdx source.
+   */
+  protected void getMetadata() throws Valve3Exception {
+    channelsMap = getChannels(vdxSource, vdxClient);
+    ranksMap = getRanks(vdxSource, vdxClient);
+    columnsList = getColumns(vdxSource, vdxClient);
+  }
+
   /**
    * Concrete realization of abstract method. Initialize MatrixRenderers for left and right axis
    * (plot may have 2 different value axis) Generate PNG image to file with random file name if v3p
@@ -380,11 +369,7 @@ public class GenericFixedPlotter extends RawDataPlotter {
   public void plot(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException {
 
     forExport = (v3p == null);
-    channelsMap = getChannels(vdxSource, vdxClient);
-    ranksMap = getRanks(vdxSource, vdxClient);
-    columnsList = getColumns(vdxSource, vdxClient);
-    comp.setPlotter(this.getClass().getName());
-    getInputs(comp);
+    fetchData(comp);
 
     // get the rank object for this request
     Rank rank = new Rank();
@@ -399,12 +384,6 @@ public class GenericFixedPlotter extends RawDataPlotter {
       v3p.setExportable(true);
     }
 
-    // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
     plotData(v3p, comp, rank);
-
-    if (!forExport) {
-      writeFile(v3p);
-    }
   }
 }
@@ -7,13 +7,13 @@ import gov.usgs.volcanoes.core.legacy.plot.render.AxisRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.MatrixRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.PointRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.ShapeRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Column;
@@ -150,7 +150,7 @@ public class GenericVariablePlotter extends RawDataPlotter {
     addDownsamplingInfo(params);
 
     // checkout a connection to the database
-    Pool<VDXClient> pool = null;
+    VDXClientPool pool = null;
     pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
     if (pool != null) {
       client = pool.checkout();
@@ -160,6 +160,7 @@ public class GenericVariablePlotter extends RawDataPlotter {
         exceptionThrown = true;
         exceptionMsg = e.getMessage();
       } catch (Exception e) {
+        pool.invalidate(client);
         exceptionThrown = true;
         exceptionMsg = e.getMessage();
       }
@@ -324,19 +325,12 @@ public class GenericVariablePlotter extends RawDataPlotter {
   public void plot(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException {
 
     forExport = (v3p == null);
-    comp.setPlotter(this.getClass().getName());
-    getInputs(comp);
+    fetchData(comp);
 
     // plot configuration
     if (!forExport) {
       v3p.setExportable(true);
     }
-    // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
     plotData(v3p, comp);
-
-    if (!forExport) {
-      writeFile(v3p);
-    }
   }
 }
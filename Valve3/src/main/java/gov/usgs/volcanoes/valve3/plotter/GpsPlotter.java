@@ -6,7 +6,6 @@ import cern.colt.matrix.linalg.Algebra;
 import gov.usgs.volcanoes.core.data.GenericDataMatrix;
 import gov.usgs.volcanoes.core.legacy.plot.Plot;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
-import gov.usgs.volcanoes.core.legacy.plot.map.GeoImageSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoLabel;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoLabelSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.MapRenderer;
@@ -14,20 +13,17 @@ import gov.usgs.volcanoes.core.legacy.plot.render.EllipseVectorRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.MatrixRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.Renderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.TextRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.math.Butterworth;
 import gov.usgs.volcanoes.core.math.Butterworth.FilterType;
 import gov.usgs.volcanoes.core.math.proj.GeoRange;
 import gov.usgs.volcanoes.core.math.proj.TransverseMercator;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.StringUtils;
-import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
-import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.Column;
 import gov.usgs.volcanoes.vdx.data.ExportData;
@@ -41,6 +37,7 @@ import java.awt.Color;
 import java.awt.geom.Point2D;
 import java.awt.image.RenderedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -322,13 +319,8 @@ public class GpsPlotter extends RawDataPlotter {
   public void getData(PlotComponent comp) throws Valve3Exception {
 
     // initialize variables
-    boolean exceptionThrown   = false;
-    String exceptionMsg       = "";
-    boolean blexceptionThrown = false;
-    String blexceptionMsg     = "";
-    VDXClient client          = null;
-    channelDataMap            = new LinkedHashMap<Integer, GpsData>();
-    String[] channels         = ch.split(",");
+    channelDataMap    = new LinkedHashMap<Integer, GpsData>();
+    String[] channels = ch.split(",");
 
     // create a map of all the input parameters
     Map<String, String> params = new LinkedHashMap<String, String>();
@@ -339,27 +331,21 @@ public class GpsPlotter extends RawDataPlotter {
     params.put("rk", Integer.toString(rk));
     addDownsamplingInfo(params);
 
-    // checkout a connection to the database
-    Pool<VDXClient> pool = null;
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
+    // if a baseline was selected then it is requested along with the selected channels
+    String[] requested = channels;
+    if (bl != null) {
+      requested = Arrays.copyOf(channels, channels.length + 1);
+      requested[channels.length] = bl;
+    }
+
+    // request the data of all selected channels from the database
+    List<GpsData> dataList = getChannelsData(params, requested, GpsData.class);
+    if (dataList != null) {
 
       // iterate through each of the selected channels and place the data in the map
-      for (String channel : channels) {
-        params.put("ch", channel);
-        GpsData data = null;
-        try {
-          data = (GpsData) client.getBinaryData(params);
-        } catch (UtilException e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        } catch (Exception e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        }
+      for (int i = 0; i < channels.length; i++) {
+        String channel = channels[i];
+        GpsData data = dataList.get(i);
 
         // if data was collected
         if (data != null && data.observations() > 0) {
@@ -368,40 +354,18 @@ public class GpsPlotter extends RawDataPlotter {
         channelDataMap.put(Integer.valueOf(channel), data);
       }
 
-      // if a baseline was selected then retrieve that data from the database
       if (bl != null) {
-        params.put("ch", bl);
-        try {
-          baselineData = (GpsData) client.getBinaryData(params);
-        } catch (UtilException e) {
-          blexceptionThrown = true;
-          blexceptionMsg = e.getMessage();
-        } catch (Exception e) {
-          blexceptionThrown = true;
-          blexceptionMsg = e.getMessage();
-        }
+        baselineData = dataList.get(channels.length);
 
         // if data was collected
         if (baselineData != null && baselineData.observations() > 0) {
           baselineData.adjustTime(timeOffset);
         }
       }
-
-      // check back in our connection to the database
-      pool.checkin(client);
-    }
-
-    // if a data limit message exists, then throw exception
-    if (exceptionThrown) {
-      throw new Valve3Exception(exceptionMsg);
     }
 
-    // if a data limit message exists, then throw exception
-    if (blexceptionThrown) {
-      throw new Valve3Exception(blexceptionMsg);
-
-      // if no baseline data exists, then throw exception
-    } else if (bl != null && baselineData == null) {
+    // if no baseline data exists, then throw exception
+    if (bl != null && baselineData == null) {
       throw new Valve3Exception("No data for baseline channel.");
     }
   }
@@ -445,8 +409,8 @@ public class GpsPlotter extends RawDataPlotter {
     labels = labels.getSubset(range);
     mr.setGeoLabelSet(labels);
 
-    GeoImageSet   images = Valve3.getInstance().getGeoImageSet();
-    RenderedImage ri     = images.getMapBackground(proj, range, comp.getBoxWidth());
+    RenderedImage ri = Valve3.getInstance().getMapBackgroundCache()
+        .getMapBackground(proj, origin, range, comp.getBoxWidth());
 
     mr.setMapImage(ri);
     mr.createBox(8);
@@ -829,6 +793,15 @@ public class GpsPlotter extends RawDataPlotter {
     }
   }
 
+  /**
+   * Load GPS benchmarks, ranks and columns of vdx source.
+   */
+  protected void getMetadata() throws Valve3Exception {
+    channelsMap = getChannels(vdxSource, vdxClient);
+    ranksMap = getRanks(vdxSource, vdxClient);
+    columnsList = getColumns(vdxSource, vdxClient);
+  }
+
   /**
    * Concrete realization of abstract method. Generate PNG image to local file. If v3p is null,
    * prepare data for export -- assumes csvData, csvData & csvIndex initialized.
@@ -840,11 +813,7 @@ public class GpsPlotter extends RawDataPlotter {
   public void plot(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException {
 
     forExport = (v3p == null);
-    channelsMap = getChannels(vdxSource, vdxClient);
-    ranksMap = getRanks(vdxSource, vdxClient);
-    columnsList = getColumns(vdxSource, vdxClient);
-    comp.setPlotter(this.getClass().getName());
-    getInputs(comp);
+    fetchData(comp);
 
     // get the rank object for this request
     Rank rank = new Rank();
@@ -892,13 +861,7 @@ public class GpsPlotter extends RawDataPlotter {
         break;
     }
 
-    // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
     plotData(v3p, comp, rank);
-
-    if (!forExport) {
-      writeFile(v3p);
-    }
   }
 
   /**
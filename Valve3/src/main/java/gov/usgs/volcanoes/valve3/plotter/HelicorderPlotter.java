@@ -5,20 +5,19 @@ import gov.usgs.volcanoes.core.legacy.plot.HelicorderSettings;
 import gov.usgs.volcanoes.core.legacy.plot.Plot;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
 import gov.usgs.volcanoes.core.legacy.plot.render.HelicorderRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
-import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.HelicorderCache;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
-import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.ExportData;
 import gov.usgs.volcanoes.vdx.data.MatrixExporter;
 
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -90,9 +89,6 @@ public class HelicorderPlotter extends RawDataPlotter {
   protected void getData(PlotComponent comp) throws Valve3Exception {
 
     // initialize variables
-    boolean exceptionThrown = false;
-    String exceptionMsg = "";
-    VDXClient client = null;
     channelDataMap = new LinkedHashMap<Integer, HelicorderData>();
     String[] channels = ch.split(",");
 
@@ -103,27 +99,14 @@ public class HelicorderPlotter extends RawDataPlotter {
     params.put("st", Double.toString(startTime));
     params.put("et", Double.toString(endTime));
 
-    // checkout a connection to the database
-    Pool<VDXClient> pool = null;
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
+    // request the data of all selected channels from the database
+    List<HelicorderData> dataList = getCachedData(comp, params, channels);
+    if (dataList != null) {
 
       // iterate through each of the selected channels and place the data in the map
-      for (String channel : channels) {
-        params.put("ch", channel);
-        HelicorderData data = null;
-        try {
-          data = (HelicorderData) client.getBinaryData(params);
-        } catch (UtilException e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        } catch (Exception e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        }
+      for (int i = 0; i < channels.length; i++) {
+        String channel = channels[i];
+        HelicorderData data = dataList.get(i);
 
         // if data was collected
         if (data != null && data.rows() > 0) {
@@ -139,15 +122,54 @@ public class HelicorderPlotter extends RawDataPlotter {
 
         channelDataMap.put(Integer.valueOf(channel), data);
       }
+    }
+  }
 
-      // check back in our connection to the database
-      pool.checkin(client);
+  /**
+   * Request data of channels, of relative helicorders only the rows newer than those cached.
+   *
+   * @param comp     PlotComponent
+   * @param params   request parameters
+   * @param channels channel ids
+   * @return data in channel order, null for channels without data; null if vdx is unknown
+   * @throws Valve3Exception if a request fails
+   */
+  private List<HelicorderData> getCachedData(PlotComponent comp, Map<String, String> params,
+      String[] channels) throws Valve3Exception {
+    HelicorderCache cache = Valve3.getInstance().getDataHandler().getHelicorderCache();
+    if (!isLive(comp) || !cache.isEnabled()) {
+      return getChannelsData(params, channels, HelicorderData.class);
     }
 
-    // if a data limit message exists, then throw exception
-    if (exceptionThrown) {
-      throw new Valve3Exception(exceptionMsg);
+    // channels with a cached window are requested from the earliest refetch time on
+    String[] keys = new String[channels.length];
+    HelicorderCache.Entry[] entries = new HelicorderCache.Entry[channels.length];
+    boolean[] hits = new boolean[channels.length];
+    double fetchStart = endTime;
+    for (int i = 0; i < channels.length; i++) {
+      keys[i] = getChannelKey(channels[i]);
+      entries[i] = cache.get(keys[i], startTime, endTime);
+      hits[i] = entries[i] != null;
+      if (hits[i]) {
+        fetchStart = Math.min(fetchStart, cache.getFetchStart(entries[i], startTime));
+      }
+    }
+
+    List<HelicorderData> dataList = getCachedChannelsData(params, channels, hits, fetchStart,
+        HelicorderData.class);
+    if (dataList == null) {
+      return null;
     }
+    for (int i = 0; i < channels.length; i++) {
+      if (hits[i]) {
+        dataList.set(i, cache.put(keys[i], entries[i], startTime, endTime, fetchStart,
+            dataList.get(i)));
+      } else {
+        dataList.set(i, cache.put(keys[i], null, startTime, endTime, startTime,
+            dataList.get(i)));
+      }
+    }
+    return dataList;
   }
 
   /**
@@ -251,6 +273,13 @@ public class HelicorderPlotter extends RawDataPlotter {
     }
   }
 
+  /**
+   * Load channels of vdx source.
+   */
+  protected void getMetadata() throws Valve3Exception {
+    channelsMap = getChannels(vdxSource, vdxClient);
+  }
+
   /**
    * Concrete realization of abstract method. Initialize HelicorderRenderer, generate PNG image to
    * local file. If v3p is null, prepare data for export -- assumes csvData, csvData & csvIndex
@@ -263,20 +292,12 @@ public class HelicorderPlotter extends RawDataPlotter {
   public void plot(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException {
 
     forExport = (v3p == null);
-    channelsMap = getChannels(vdxSource, vdxClient);
-    comp.setPlotter(this.getClass().getName());
-    getInputs(comp);
+    fetchData(comp);
 
     // plot configuration
     if (!forExport) {
       v3p.setExportable(true);
     }
-    // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
     plotData(v3p, comp);
-
-    if (!forExport) {
-      writeFile(v3p);
-    }
   }
 }
@@ -0,0 +1,132 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import gov.usgs.volcanoes.core.legacy.plot.render.BasicFrameRenderer;
+import gov.usgs.volcanoes.vdx.data.hypo.Hypocenter;
+import gov.usgs.volcanoes.vdx.data.hypo.HypocenterList;
+import gov.usgs.volcanoes.vdx.data.hypo.plot.HypocenterRenderer.AxesOption;
+import gov.usgs.volcanoes.vdx.data.hypo.plot.HypocenterRenderer.ColorOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reduces the hypocenters of a map or cross section to those which can be told apart at plot
+ * size. Events falling on the same pixel with the same magnitude class and color class would be
+ * drawn as one glyph anyway, so only the largest of them is kept, at the draw position of the
+ * last one, so glyphs overlap as before. Events at or above the exact magnitude, and events
+ * without plot coordinates, are always kept.
+ */
+public class HypocenterDecimator {
+  // lists with fewer events per pixel of plot area are left alone
+  private static final double MIN_EVENTS_PER_PIXEL = 0.05;
+  // classes along the color scale of time colored plots
+  private static final int TIME_CLASSES = 256;
+
+  private HypocenterDecimator() {}
+
+  /**
+   * Decimate hypocenters to plot size.
+   *
+   * @param hypos      hypocenters, projected if a map view
+   * @param base       frame the hypocenters are drawn in
+   * @param axes       axes of the plot; only map view and the lat, lon and time vs depth views
+   *                   are decimated
+   * @param color      color option of the plot
+   * @param colorStart time at the start of the color scale
+   * @param colorEnd   time at the end of the color scale
+   * @param exactMag   magnitude from which on events are always kept
+   * @return decimated list, or the given one if it isn't crowded
+   */
+  public static HypocenterList decimate(HypocenterList hypos, BasicFrameRenderer base,
+      AxesOption axes, ColorOption color, double colorStart, double colorEnd, double exactMag) {
+    List<Hypocenter> list = hypos.getHypocenters();
+    if (list.size() < MIN_EVENTS_PER_PIXEL * base.getGraphWidth() * base.getGraphHeight()) {
+      return hypos;
+    }
+
+    Map<Long, Integer> cells = new HashMap<Long, Integer>();
+    Hypocenter[] kept = new Hypocenter[list.size()];
+    double[] mags = new double[list.size()];
+    int[] position = new int[list.size()];
+    int n = 0;
+    for (int i = 0; i < list.size(); i++) {
+      Hypocenter hc = list.get(i);
+      double x;
+      double y;
+      switch (axes) {
+        case MAP_VIEW:
+          x = hc.lon;
+          y = hc.lat;
+          break;
+        case LAT_DEPTH:
+          x = hc.lat;
+          y = hc.depth;
+          break;
+        case LON_DEPTH:
+          x = hc.lon;
+          y = hc.depth;
+          break;
+        case TIME_DEPTH:
+          x = hc.j2ksec;
+          y = hc.depth;
+          break;
+        default:
+          return hypos;
+      }
+      double px = base.getXPixel(x);
+      double py = base.getYPixel(y);
+      Object pref = hc.prefmag;
+      double mag = pref instanceof Number ? ((Number) pref).doubleValue() : Double.NaN;
+      if (Double.isNaN(px) || Double.isNaN(py) || mag >= exactMag) {
+        kept[n] = hc;
+        position[n++] = i;
+        continue;
+      }
+
+      // events without magnitude get a class of their own
+      long magClass = 0;
+      if (!Double.isNaN(mag)) {
+        magClass = Math.max(1, Math.min(15, (long) Math.floor(mag) + 3));
+      }
+      long colorClass;
+      if (color == ColorOption.TIME) {
+        colorClass = (long) ((hc.j2ksec - colorStart) / (colorEnd - colorStart) * TIME_CLASSES);
+      } else {
+        colorClass = (long) Math.floor(hc.depth);
+      }
+      long key = ((long) Math.floor(px) & 0xFFFFF) << 40
+          | ((long) Math.floor(py) & 0xFFFFF) << 20 | magClass << 16 | (colorClass & 0xFFFF);
+      Integer cell = cells.get(key);
+      if (cell == null) {
+        cells.put(key, n);
+        kept[n] = hc;
+        mags[n] = mag;
+        position[n++] = i;
+      } else {
+        if (mag > mags[cell]) {
+          kept[cell] = hc;
+          mags[cell] = mag;
+        }
+        position[cell] = i;
+      }
+    }
+    if (n == list.size()) {
+      return hypos;
+    }
+
+    // restore draw order by position of the last event of each cell
+    long[] order = new long[n];
+    for (int k = 0; k < n; k++) {
+      order[k] = (long) position[k] << 32 | k;
+    }
+    Arrays.sort(order);
+    List<Hypocenter> result = new ArrayList<Hypocenter>(n);
+    for (int k = 0; k < n; k++) {
+      result.add(kept[(int) order[k]]);
+    }
+    return new HypocenterList(result);
+  }
+}
@@ -1,10 +1,10 @@
 package gov.usgs.volcanoes.valve3.plotter;
 
 import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
 
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
 import gov.usgs.volcanoes.core.legacy.plot.decorate.SmartTick;
-import gov.usgs.volcanoes.core.legacy.plot.map.GeoImageSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoLabelSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.MapRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.ArbDepthFrameRenderer;
@@ -15,16 +15,18 @@ import gov.usgs.volcanoes.core.legacy.plot.render.InvertedFrameRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.Renderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.ShapeRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.transform.ArbDepthCalculator;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.math.proj.GeoRange;
 import gov.usgs.volcanoes.core.math.proj.TransverseMercator;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.valve3.ComputeService;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.HypocenterCatalog;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.ExportData;
@@ -39,6 +41,8 @@ import gov.usgs.volcanoes.vdx.data.hypo.plot.HypocenterRenderer;
 import gov.usgs.volcanoes.vdx.data.hypo.plot.HypocenterRenderer.AxesOption;
 import gov.usgs.volcanoes.vdx.data.hypo.plot.HypocenterRenderer.ColorOption;
 
+import hep.aida.IAxis;
+import hep.aida.ref.Histogram1D;
 import hep.aida.ref.Histogram2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
@@ -105,6 +109,7 @@ public class HypocenterPlotter extends RawDataPlotter {
   }
 
   private static final double DEFAULT_WIDTH = 100.0;
+  private static final double DEFAULT_EXACT_MAGNITUDE = 3.0;
 
   // the width is for the Arbitrary line vs depth plot (SBH)
   private double hypowidth;
@@ -130,6 +135,7 @@ public class HypocenterPlotter extends RawDataPlotter {
   private boolean density;
   private double densityBinSize;
   private boolean doLog;
+  private TransverseMercator mapProjection;
   private double centerLat;
   private double centerLon;
   private double radius;
@@ -140,6 +146,7 @@ public class HypocenterPlotter extends RawDataPlotter {
   private BinSize bin;
   private RightAxis rightAxis;
   private HypocenterList hypos;
+  private HypocenterCatalog.Counts counts;
 
 
   /**
@@ -405,6 +412,27 @@ public class HypocenterPlotter extends RawDataPlotter {
       tnorth += latDiff;
     }
 
+    // counts plots are answered from the catalog's counts if only time and area are filtered; the
+    // first and last event then stand for the list, vdx bins from them. Cumulative magnitudes and
+    // moments, and exports, which list every event, take the list as vdx defines them
+    counts = null;
+    if (plotType == PlotType.COUNTS && !forExport
+        && (rightAxis == RightAxis.NONE || rightAxis == RightAxis.CUM_COUNTS)) {
+      counts = getCatalogCounts(twest, teast, tsouth, tnorth);
+      if (counts != null) {
+        hypos = counts.getEnds();
+        hypos.adjustTime(timeOffset);
+        return;
+      }
+    }
+
+    // answer from the in-memory catalog if it can evaluate the filters
+    hypos = getCatalogData(twest, teast, tsouth, tnorth);
+    if (hypos != null) {
+      hypos.adjustTime(timeOffset);
+      return;
+    }
+
     // create a map of all the input parameters
     Map<String, String> params = new LinkedHashMap<String, String>();
     params.put("source", vdxSource);
@@ -438,7 +466,7 @@ public class HypocenterPlotter extends RawDataPlotter {
     params.put("radius", Double.toString(radius));
 
     // checkout a connection to the database
-    Pool<VDXClient> pool = null;
+    VDXClientPool pool = null;
     pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
     if (pool != null) {
       client = pool.checkout();
@@ -450,6 +478,7 @@ public class HypocenterPlotter extends RawDataPlotter {
         exceptionThrown = true;
         exceptionMsg = e.getMessage();
       } catch (Exception e) {
+        pool.invalidate(client);
         hypos = null;
       }
 
@@ -471,6 +500,123 @@ public class HypocenterPlotter extends RawDataPlotter {
     }
   }
 
+  /**
+   * Select hypocenters from the in-memory catalog of the vdx source.
+   *
+   * @param west  west bound of the area
+   * @param east  east bound of the area
+   * @param south south bound of the area
+   * @param north north bound of the area
+   * @return hypocenters, null if the request must be sent to vdx
+   */
+  private HypocenterList getCatalogData(double west, double east, double south, double north) {
+    HypocenterCatalog.Filter filter = getCatalogFilter(west, east, south, north);
+    if (filter == null) {
+      return null;
+    }
+    return Valve3.getInstance().getDataHandler().getHypocenterCatalog().get(vdxClient, vdxSource,
+        rk, filter);
+  }
+
+  /**
+   * Yield counts of the hypocenters of the in-memory catalog of the vdx source, for counts plots.
+   *
+   * @param west  west bound of the area
+   * @param east  east bound of the area
+   * @param south south bound of the area
+   * @param north north bound of the area
+   * @return counts, null if the hypocenters must be selected one by one
+   */
+  private HypocenterCatalog.Counts getCatalogCounts(double west, double east, double south,
+      double north) {
+    HypocenterCatalog.Filter filter = getCatalogFilter(west, east, south, north);
+    if (filter == null) {
+      return null;
+    }
+    return Valve3.getInstance().getDataHandler().getHypocenterCatalog().getCounts(vdxClient,
+        vdxSource, rk, filter);
+  }
+
+  /**
+   * Build filter of a request to the in-memory catalog.
+   *
+   * @return filter, null if the catalog can't evaluate the request
+   */
+  private HypocenterCatalog.Filter getCatalogFilter(double west, double east, double south,
+      double north) {
+    HypocenterCatalog catalog = Valve3.getInstance().getDataHandler().getHypocenterCatalog();
+    if (!catalog.isEnabled() || exportAll || radius > 0 || west > east
+        || (rmk != null && rmk.length() > 0)) {
+      return null;
+    }
+    HypocenterCatalog.Filter filter = new HypocenterCatalog.Filter();
+    filter.startTime = startTime;
+    filter.endTime = endTime;
+    filter.west = west;
+    filter.east = east;
+    filter.south = south;
+    filter.north = north;
+    filter.minDepth = minDepth;
+    filter.maxDepth = maxDepth;
+    filter.minMag = minMag;
+    filter.maxMag = maxMag;
+    filter.minNPhases = minNPhases;
+    filter.maxNPhases = maxNPhases;
+    filter.minRms = minRms;
+    filter.maxRms = maxRms;
+    filter.minHerr = minHerr;
+    filter.maxHerr = maxHerr;
+    filter.minVerr = minVerr;
+    filter.maxVerr = maxVerr;
+    filter.minStDst = minStDst;
+    filter.maxStDst = maxStDst;
+    filter.maxGap = maxGap;
+    return filter;
+  }
+
+  /**
+   * Count hypocenters inside the area of an arbitrary line, in chunks on the shared computation
+   * pool.
+   *
+   * @param adc calculator of the line
+   * @return count of hypocenters inside area
+   * @throws Valve3Exception if counting fails
+   */
+  private int countInsideArea(final ArbDepthCalculator adc) throws Valve3Exception {
+    final List<Hypocenter> list = hypos.getHypocenters();
+    List<Integer> counts = Valve3.getInstance().getComputeService().computeChunks(list.size(),
+        new ComputeService.Chunk<Integer>() {
+          public Integer compute(int from, int to) {
+            int count = 0;
+            for (int i = from; i < to; i++) {
+              Hypocenter hc = list.get(i);
+              if (adc.isInsideArea(hc.lat, hc.lon)) {
+                count++;
+              }
+            }
+            return count;
+          }
+        });
+    int count = 0;
+    for (int c : counts) {
+      count += c;
+    }
+    return count;
+  }
+
+  /**
+   * Getter for "exactMagnitude" plotter configuration parameter.
+   *
+   * @return magnitude from which on hypocenters are drawn even if decimated, default 3
+   */
+  private double getExactMagnitude() {
+    if (plotterConfig == null) {
+      return DEFAULT_EXACT_MAGNITUDE;
+    }
+    return StringUtils.stringToDouble(plotterConfig.getString("exactMagnitude"),
+        DEFAULT_EXACT_MAGNITUDE);
+  }
+
   /**
    * Initialize MapRenderer and add it to given plot.
    *
@@ -485,7 +631,11 @@ public class HypocenterPlotter extends RawDataPlotter {
     Point2D.Double origin = range.getCenter();
     proj.setup(origin, 0, 0);
 
-    hypos.project(proj);
+    // density plots project while binning
+    mapProjection = proj;
+    if (!density) {
+      hypos.project(proj);
+    }
 
     MapRenderer mr = new MapRenderer(range, proj);
     mr.setLocationByMaxBounds(comp.getBoxX(), comp.getBoxY(), comp.getBoxWidth(),
@@ -496,8 +646,8 @@ public class HypocenterPlotter extends RawDataPlotter {
     labels = labels.getSubset(range);
     mr.setGeoLabelSet(labels);
 
-    GeoImageSet images = Valve3.getInstance().getGeoImageSet();
-    RenderedImage ri = images.getMapBackground(proj, range, comp.getBoxWidth());
+    RenderedImage ri = Valve3.getInstance().getMapBackgroundCache()
+        .getMapBackground(proj, origin, range, comp.getBoxWidth());
 
     mr.setMapImage(ri);
     mr.createBox(8);
@@ -531,7 +681,6 @@ public class HypocenterPlotter extends RawDataPlotter {
     double lat2;
     double lon2;
     int count;
-    List<Hypocenter> myhypos;
     BasicFrameRenderer base = new InvertedFrameRenderer();
     base.setLocation(comp.getBoxX(), comp.getBoxY(), comp.getBoxWidth(), comp.getBoxHeight() - 16);
     v3p.getPlot().setSize(v3p.getPlot().getWidth(), v3p.getPlot().getHeight() + 115);
@@ -627,15 +776,7 @@ public class HypocenterPlotter extends RawDataPlotter {
         comp.setTranslation(base.getDefaultTranslation(v3p.getPlot().getHeight()));
         comp.setTranslationType("xy");
 
-        count = 0;
-        myhypos = hypos.getHypocenters();
-        for (int i = 0; i < myhypos.size(); i++) {
-
-          Hypocenter hc = (Hypocenter) myhypos.get(i);
-          if (adc.isInsideArea(hc.lat, hc.lon)) {
-            count++;
-          }
-        }
+        count = countInsideArea(adc);
         subCount = new String(count + " of ");
 
         break;
@@ -674,15 +815,7 @@ public class HypocenterPlotter extends RawDataPlotter {
         comp.setTranslation(base.getDefaultTranslation(v3p.getPlot().getHeight()));
         comp.setTranslationType("ty");
 
-        count = 0;
-        myhypos = hypos.getHypocenters();
-        for (int i = 0; i < myhypos.size(); i++) {
-
-          Hypocenter hc = (Hypocenter) myhypos.get(i);
-          if (adc.isInsideArea(hc.lat, hc.lon)) {
-            count++;
-          }
-        }
+        count = countInsideArea(adc);
         subCount = new String(count + " of ");
 
         break;
@@ -701,39 +834,40 @@ public class HypocenterPlotter extends RawDataPlotter {
     // Create density overlay if desired
     if (density) {
       // create the density renderer
-      double val1 = 0;
-      double val2 = 0;
-
-      Histogram2D hist = new Histogram2D("",
-          (int) Math.round(base.getGraphWidth() / densityBinSize),
-          base.getMinX(), base.getMaxX(), (int) Math.round(base.getGraphHeight() / densityBinSize),
-          base.getMinY(), base.getMaxY());
-
-      for (Hypocenter hyp : hypos.getHypocenters()) {
+      List<Hypocenter> list = hypos.getHypocenters();
+      double[] val1 = new double[list.size()];
+      double[] val2 = new double[list.size()];
+      for (int i = 0; i < val1.length; i++) {
+        Hypocenter hyp = list.get(i);
         switch (axesOption) {
           case MAP_VIEW:
-            val1 = hyp.lon;
-            val2 = hyp.lat;
+            val1[i] = hyp.lon;
+            val2[i] = hyp.lat;
             break;
           case LAT_DEPTH:
-            val1 = hyp.lat;
-            val2 = hyp.depth;
+            val1[i] = hyp.lat;
+            val2[i] = hyp.depth;
             break;
           case LON_DEPTH:
-            val1 = hyp.lon;
-            val2 = hyp.depth;
+            val1[i] = hyp.lon;
+            val2[i] = hyp.depth;
             break;
           case TIME_DEPTH:
-            val1 = hyp.j2ksec;
-            val2 = hyp.depth;
+            val1[i] = hyp.j2ksec;
+            val2[i] = hyp.depth;
             break;
           default:
             break;
         }
-
-        hist.fill(val1, val2);
       }
 
+      DensityBinner binner = new DensityBinner(
+          (int) Math.round(base.getGraphWidth() / densityBinSize),
+          base.getMinX(), base.getMaxX(), (int) Math.round(base.getGraphHeight() / densityBinSize),
+          base.getMinY(), base.getMaxY());
+      Histogram2D hist = binner.bin(val1, val2,
+          axesOption == AxesOption.MAP_VIEW ? mapProjection : null);
+
       Histogram2DRenderer hir = new Histogram2DRenderer(hist);
       hir.setLocation(base);
       hir.setLog(doLog);
@@ -749,7 +883,12 @@ public class HypocenterPlotter extends RawDataPlotter {
       v3p.getPlot().addRenderer(hir);
     } else {
       // create the scale renderer
-      HypocenterRenderer hr = new HypocenterRenderer(hypos, base, axesOption);
+      HypocenterList rendered = hypos;
+      if (isDecimate()) {
+        rendered = HypocenterDecimator.decimate(hypos, base, axesOption, colorOption,
+            startTime + timeOffset, endTime + timeOffset, getExactMagnitude());
+      }
+      HypocenterRenderer hr = new HypocenterRenderer(rendered, base, axesOption);
       hr.setColorOption(colorOption);
       if (colorOption == ColorOption.TIME) {
         hr.setColorTime(startTime + timeOffset, endTime + timeOffset);
@@ -776,7 +915,11 @@ public class HypocenterPlotter extends RawDataPlotter {
   private void plotCounts(Valve3Plot v3p, PlotComponent comp, Rank rank) throws Valve3Exception {
 
     int leftLabels = 0;
-    HistogramExporter hr = new HistogramExporter(hypos.getCountsHistogram(bin));
+    Histogram1D hist = hypos.getCountsHistogram(bin);
+    if (counts != null && hist != null) {
+      fillCounts(hist);
+    }
+    HistogramExporter hr = new HistogramExporter(hist);
     hr.setLocation(comp.getBoxX(), comp.getBoxY(), comp.getBoxWidth(), comp.getBoxHeight() - 16);
     hr.setDefaultExtents();
     hr.setMinX(startTime + timeOffset);
@@ -808,7 +951,7 @@ public class HypocenterPlotter extends RawDataPlotter {
     String headerName = "";
     switch (rightAxis) {
       case CUM_COUNTS:
-        data = hypos.getCumulativeCounts();
+        data = counts != null ? getCumulativeCounts(comp) : hypos.getCumulativeCounts();
         if (forExport) {
           // Add specialized part of column header to csvText
           headerName = "CumulativeCounts";
@@ -876,6 +1019,50 @@ public class HypocenterPlotter extends RawDataPlotter {
     }
   }
 
+  /**
+   * Refill counts histogram, binned by vdx, with the catalog's counts.
+   *
+   * @param hist histogram binned from the first and last event
+   */
+  private void fillCounts(Histogram1D hist) {
+    IAxis axis = hist.xAxis();
+    hist.reset();
+    for (int i = 0; i < axis.bins(); i++) {
+      int n = counts.count(axis.binLowerEdge(i) - timeOffset, axis.binUpperEdge(i) - timeOffset);
+      if (n > 0) {
+        hist.fill(axis.binCentre(i), n);
+      }
+    }
+  }
+
+  /**
+   * Build cumulative counts from the catalog's counts, at the end of each pixel column of the plot.
+   *
+   * @param comp plot component
+   * @return series, time in first column; null if there are no events
+   */
+  private DoubleMatrix2D getCumulativeCounts(PlotComponent comp) {
+    if (counts.size() == 0) {
+      return null;
+    }
+    int columns = Math.max(1, comp.getBoxWidth());
+
+    // rows start with the first event; events at the very end of the period count at its end
+    double first = counts.getStartTime();
+    DoubleMatrix2D data = new DenseDoubleMatrix2D(columns, 2);
+    int rows = 0;
+    for (int i = 0; i < columns; i++) {
+      double to = startTime + (endTime - startTime) * (i + 1) / columns;
+      if (to <= first) {
+        continue;
+      }
+      data.setQuick(rows, 0, to + timeOffset);
+      data.setQuick(rows++, 1, counts.count(Double.NEGATIVE_INFINITY,
+          to >= endTime ? Double.POSITIVE_INFINITY : to));
+    }
+    return data.viewPart(0, 0, rows, 2).copy();
+  }
+
   /**
    * Compute rank, calls appropriate function to init renderers.
    *
@@ -946,6 +1133,13 @@ public class HypocenterPlotter extends RawDataPlotter {
     }
   }
 
+  /**
+   * Load ranks of vdx source.
+   */
+  protected void getMetadata() throws Valve3Exception {
+    ranksMap = getRanks(vdxSource, vdxClient);
+  }
+
   /**
    * Concrete realization of abstract method. Generate PNG image (hypocenters map or histogram,
    * depends on plot type) to file with random name. If v3p is null, prepare data for export --
@@ -958,9 +1152,7 @@ public class HypocenterPlotter extends RawDataPlotter {
   public void plot(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException {
 
     forExport = (v3p == null);
-    ranksMap = getRanks(vdxSource, vdxClient);
-    comp.setPlotter(this.getClass().getName());
-    getInputs(comp);
+    fetchData(comp);
 
     // get the rank object for this request
     Rank rank = new Rank();
@@ -975,13 +1167,7 @@ public class HypocenterPlotter extends RawDataPlotter {
       v3p.setExportable(true);
     }
 
-    // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
     plotData(v3p, comp, rank);
-
-    if (!forExport) {
-      writeFile(v3p);
-    }
   }
 
   /**
@@ -992,19 +1178,21 @@ public class HypocenterPlotter extends RawDataPlotter {
   private String getTopLabel(Rank rank) {
 
     StringBuilder top = new StringBuilder(100);
-    top.append(hypos.size() + " " + rank.getName());
+    int size = counts == null ? hypos.size() : counts.size();
+    top.append(size + " " + rank.getName());
 
-    // data coming from the hypocenters list have already been adjusted for the time offset
-    if (hypos.size() == 1) {
+    // data coming from the hypocenters list have already been adjusted for the time offset; of
+    // counts from the catalog, it holds the first and last event
+    if (size == 1) {
       top.append(" earthquake on ");
       top.append(J2kSec.toDateString(hypos.getHypocenters().get(0).j2ksec));
     } else {
       top.append(" earthquakes between ");
-      if (hypos.size() == 0) {
+      if (size == 0) {
         top.append(J2kSec.toDateString(startTime + timeOffset));
         top.append(" and ");
         top.append(J2kSec.toDateString(endTime + timeOffset));
-      } else if (hypos.size() > 1) {
+      } else if (size > 1) {
         top.append(J2kSec.toDateString(hypos.getHypocenters().get(0).j2ksec));
         top.append(" and ");
         top.append(J2kSec.toDateString(hypos.getHypocenters().get(hypos.size() - 1).j2ksec));
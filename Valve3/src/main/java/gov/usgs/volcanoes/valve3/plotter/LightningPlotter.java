@@ -4,7 +4,6 @@ import cern.colt.matrix.DoubleMatrix2D;
 
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
 import gov.usgs.volcanoes.core.legacy.plot.decorate.SmartTick;
-import gov.usgs.volcanoes.core.legacy.plot.map.GeoImageSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoLabelSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.MapRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.AxisRenderer;
@@ -13,7 +12,6 @@ import gov.usgs.volcanoes.core.legacy.plot.render.InvertedFrameRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.Renderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.ShapeRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.transform.ArbDepthCalculator;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.math.proj.GeoRange;
 import gov.usgs.volcanoes.core.math.proj.TransverseMercator;
 import gov.usgs.volcanoes.core.time.J2kSec;
@@ -23,6 +21,7 @@ import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.ExportData;
@@ -307,7 +306,7 @@ public class LightningPlotter extends RawDataPlotter {
     params.put("outputAll", Boolean.toString(exportAll));
 
     // checkout a connection to the database
-    Pool<VDXClient> pool = null;
+    VDXClientPool pool = null;
     pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
     if (pool != null) {
       client = pool.checkout();
@@ -319,6 +318,7 @@ public class LightningPlotter extends RawDataPlotter {
         exceptionThrown = true;
         exceptionMsg = e.getMessage();
       } catch (Exception e) {
+        pool.invalidate(client);
         strokes = null;
       }
 
@@ -365,8 +365,8 @@ public class LightningPlotter extends RawDataPlotter {
     labels = labels.getSubset(range);
     mr.setGeoLabelSet(labels);
 
-    GeoImageSet images = Valve3.getInstance().getGeoImageSet();
-    RenderedImage ri = images.getMapBackground(proj, range, comp.getBoxWidth());
+    RenderedImage ri = Valve3.getInstance().getMapBackgroundCache()
+        .getMapBackground(proj, origin, range, comp.getBoxWidth());
 
     mr.setMapImage(ri);
     mr.createBox(8);
@@ -592,6 +592,13 @@ public class LightningPlotter extends RawDataPlotter {
     }
   }
 
+  /**
+   * Load ranks of vdx source.
+   */
+  protected void getMetadata() throws Valve3Exception {
+    ranksMap = getRanks(vdxSource, vdxClient);
+  }
+
   /**
    * Concrete realization of abstract method. Generate PNG image (hypocenters map or histogram,
    * depends on plot type) to file with random name. If v3p is null, prepare data for export --
@@ -604,9 +611,7 @@ public class LightningPlotter extends RawDataPlotter {
   public void plot(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException {
 
     forExport = (v3p == null);
-    ranksMap = getRanks(vdxSource, vdxClient);
-    comp.setPlotter(this.getClass().getName());
-    getInputs(comp);
+    fetchData(comp);
 
     // get the rank object for this request
     Rank rank = new Rank();
@@ -630,14 +635,7 @@ public class LightningPlotter extends RawDataPlotter {
      * "Data Export Not Available for Best Available Rank"); } }
      */
 
-    // this is a legitimate request so lookup the data from the database and
-    // plot it
-    getData(comp);
     plotData(v3p, comp, rank);
-
-    if (!forExport) {
-      writeFile(v3p);
-    }
   }
 
   /**
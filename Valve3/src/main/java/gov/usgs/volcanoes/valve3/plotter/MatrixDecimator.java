@@ -0,0 +1,198 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import cern.colt.matrix.DoubleMatrix2D;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Selects the rows of a data matrix which can be seen in a plot of given size. Time is in the
+ * first column. Each data column is scanned separately, bucketed by pixel column: for lines the
+ * first, minimum, maximum and last row of every bucket are kept, along with rows where the column
+ * changes between missing (NaN) and present, so gaps stay; for points one row for each occupied
+ * pixel cell is kept. The result holds the union of rows kept for any column, in original order,
+ * so all columns still share the time column. Rows of different ranks are scanned separately.
+ */
+public class MatrixDecimator {
+  // buckets with fewer rows are left alone, decimating them wouldn't save much
+  private static final int MIN_ROWS_PER_BUCKET = 8;
+  // points are told apart at a finer resolution than the component height, to allow for y axis
+  // ranges narrower than the data
+  private static final int CELLS_PER_PIXEL = 4;
+
+  private MatrixDecimator() {}
+
+  /**
+   * Decimate matrix to plot size.
+   *
+   * @param data        matrix, time in first column
+   * @param firstColumn first data column
+   * @param rankColumn  column of ranks, -1 if none
+   * @param viewStart   time at left edge of plot
+   * @param viewEnd     time at right edge of plot
+   * @param width       plot width, in pixels
+   * @param height      plot height, in pixels
+   * @param lines       true if data are drawn as lines, false if as points
+   * @return decimated matrix, or the given one if it has few rows per bucket
+   */
+  public static DoubleMatrix2D decimate(DoubleMatrix2D data, int firstColumn, int rankColumn,
+      double viewStart, double viewEnd, int width, int height, boolean lines) {
+    int rows = data.rows();
+    double ppt = width / (viewEnd - viewStart);
+    if (width <= 0 || !(ppt > 0) || rows < MIN_ROWS_PER_BUCKET * width) {
+      return data;
+    }
+
+    boolean[] keep = new boolean[rows];
+    for (int[] group : groupByRank(data, rankColumn)) {
+      for (int c = firstColumn; c < data.columns(); c++) {
+        if (lines) {
+          keepLineRows(data, group, c, viewStart, ppt, keep);
+        } else {
+          keepPointRows(data, group, c, viewStart, ppt, height * CELLS_PER_PIXEL, keep);
+        }
+      }
+    }
+
+    int count = 0;
+    for (boolean k : keep) {
+      if (k) {
+        count++;
+      }
+    }
+    if (count > rows / 2) {
+      return data;
+    }
+    int[] selected = new int[count];
+    int j = 0;
+    for (int i = 0; i < rows; i++) {
+      if (keep[i]) {
+        selected[j++] = i;
+      }
+    }
+    return data.viewSelection(selected, null).copy();
+  }
+
+  /**
+   * Keep first, minimum, maximum and last row of each bucket, and the rows around gaps.
+   */
+  private static void keepLineRows(DoubleMatrix2D data, int[] group, int column,
+      double viewStart, double ppt, boolean[] keep) {
+    long bucket = Long.MIN_VALUE;
+    int first = -1;
+    int last = -1;
+    int min = -1;
+    int max = -1;
+    boolean wasMissing = false;
+    for (int k = 0; k <= group.length; k++) {
+      int row = k < group.length ? group[k] : -1;
+      long b = row < 0 ? Long.MAX_VALUE
+          : (long) Math.floor((data.getQuick(row, 0) - viewStart) * ppt);
+      if (b != bucket) {
+        if (first >= 0) {
+          keep[first] = true;
+          keep[last] = true;
+          if (min >= 0) {
+            keep[min] = true;
+            keep[max] = true;
+          }
+        }
+        if (row < 0) {
+          break;
+        }
+        bucket = b;
+        first = row;
+        min = -1;
+        max = -1;
+      }
+      last = row;
+      double v = data.getQuick(row, column);
+      boolean missing = Double.isNaN(v);
+      if (k > 0 && missing != wasMissing) {
+        keep[group[k - 1]] = true;
+        keep[row] = true;
+      }
+      wasMissing = missing;
+      if (missing) {
+        continue;
+      }
+      if (min < 0 || v < data.getQuick(min, column)) {
+        min = row;
+      }
+      if (max < 0 || v > data.getQuick(max, column)) {
+        max = row;
+      }
+    }
+  }
+
+  /**
+   * Keep first row falling into each pixel cell.
+   */
+  private static void keepPointRows(DoubleMatrix2D data, int[] group, int column,
+      double viewStart, double ppt, int cells, boolean[] keep) {
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (int row : group) {
+      double v = data.getQuick(row, column);
+      if (v < min) {
+        min = v;
+      }
+      if (v > max) {
+        max = v;
+      }
+    }
+    if (min > max) {
+      // no data in column
+      return;
+    }
+    double scale = max > min ? cells / (max - min) : 0;
+
+    // bucket stamp of each cell, so cells needn't be cleared for each bucket
+    long[] stamp = new long[cells + 1];
+    Arrays.fill(stamp, Long.MIN_VALUE);
+    for (int row : group) {
+      double v = data.getQuick(row, column);
+      if (Double.isNaN(v)) {
+        continue;
+      }
+      long b = (long) Math.floor((data.getQuick(row, 0) - viewStart) * ppt);
+      int cell = (int) ((v - min) * scale);
+      if (stamp[cell] != b) {
+        stamp[cell] = b;
+        keep[row] = true;
+      }
+    }
+  }
+
+  /**
+   * Split row indexes by rank, keeping order within a rank.
+   */
+  private static Iterable<int[]> groupByRank(DoubleMatrix2D data, int rankColumn) {
+    int rows = data.rows();
+    if (rankColumn < 0) {
+      int[] all = new int[rows];
+      for (int i = 0; i < rows; i++) {
+        all[i] = i;
+      }
+      return Arrays.asList(all);
+    }
+    Map<Double, int[]> groups = new LinkedHashMap<Double, int[]>();
+    Map<Double, Integer> sizes = new LinkedHashMap<Double, Integer>();
+    for (int i = 0; i < rows; i++) {
+      Double rank = data.getQuick(i, rankColumn);
+      int[] g = groups.get(rank);
+      int size = g == null ? 0 : sizes.get(rank);
+      if (g == null || size == g.length) {
+        g = g == null ? new int[16] : Arrays.copyOf(g, size * 2);
+        groups.put(rank, g);
+      }
+      g[size] = i;
+      sizes.put(rank, size + 1);
+    }
+    for (Map.Entry<Double, int[]> me : groups.entrySet()) {
+      me.setValue(Arrays.copyOf(me.getValue(), sizes.get(me.getKey())));
+    }
+    return groups.values();
+  }
+}
@@ -0,0 +1,415 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Writes a continuous series of samples as miniSEED data records. Records have a fixed header,
+ * one blockette 1000 and data starting at byte 64. Integer samples are compressed with Steim1 or
+ * Steim2; a record whose differences don't fit the encoding is written as 32-bit integers and
+ * one holding non-integer samples as 64-bit floats. Records are assembled in a reused buffer, in
+ * big-endian byte order. Not thread safe.
+ */
+public class MiniSeedWriter {
+  public static final int STEIM1 = 10;
+  public static final int STEIM2 = 11;
+  public static final int INT32 = 3;
+  public static final int FLOAT64 = 5;
+  public static final int DEFAULT_RECORD_LENGTH = 4096;
+
+  private static final int HEADER_LENGTH = 64;
+  private static final int FRAME_LENGTH = 64;
+  private static final int FRAME_WORDS = 16;
+
+  private final OutputStream out;
+  private final byte[] sncl;
+  private final int recordLength;
+  private final int encoding;
+  private final double samplingRate;
+  private final short rateFactor;
+  private final short rateMultiplier;
+
+  private final ByteBuffer buf;
+  private final Calendar cal;
+  private final double[] samples;
+  private final double[] times;
+  private final int[] ints;
+  private int count = 0;
+  private int sequence = 0;
+
+  // last sample of the previous integer record, the first difference of a record refers to it
+  private boolean continuous = false;
+  private int lastSample;
+  private long firstDiff;
+  // control nibble of the word last packed
+  private int nibble;
+
+  /**
+   * Constructor.
+   *
+   * @param out          stream to write records to
+   * @param station      station code, up to 5 characters
+   * @param location     location code, up to 2 characters
+   * @param channel      channel code, up to 3 characters
+   * @param network      network code, up to 2 characters
+   * @param samplingRate samples per second
+   * @param recordLength record length, a power of 2 from 256 to 8192; 512 and 4096 are usual
+   * @param encoding     STEIM1 or STEIM2
+   */
+  public MiniSeedWriter(OutputStream out, String station, String location, String channel,
+      String network, double samplingRate, int recordLength, int encoding) {
+    if (recordLength < 256 || recordLength > 8192 || Integer.bitCount(recordLength) != 1) {
+      throw new IllegalArgumentException("Illegal record length: " + recordLength);
+    }
+    if (encoding != STEIM1 && encoding != STEIM2) {
+      throw new IllegalArgumentException("Illegal encoding: " + encoding);
+    }
+    this.out = out;
+    this.recordLength = recordLength;
+    this.encoding = encoding;
+    this.samplingRate = samplingRate;
+    sncl = String.format("%-5.5s%-2.2s%-3.3s%-2.2s", nvl(station), nvl(location), nvl(channel),
+        nvl(network)).getBytes();
+
+    short[] fm = getRateFactorMultiplier(samplingRate);
+    rateFactor = fm[0];
+    rateMultiplier = fm[1];
+
+    buf = ByteBuffer.allocate(recordLength);
+    buf.order(ByteOrder.BIG_ENDIAN);
+    cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+
+    // Steim2 packs up to 7 samples per word; frame 0 loses 2 words to integration constants
+    int capacity = 7 * ((recordLength - HEADER_LENGTH) / FRAME_LENGTH * (FRAME_WORDS - 1) - 2);
+    samples = new double[capacity];
+    times = new double[capacity];
+    ints = new int[capacity];
+  }
+
+  /**
+   * Add sample. Records are written as they fill up.
+   *
+   * @param time  sample time, epoch seconds
+   * @param value sample value
+   * @throws IOException if writing fails
+   */
+  public void write(double time, double value) throws IOException {
+    if (count > 0 && samplingRate > 0
+        && Math.abs(time - times[count - 1] - 1 / samplingRate) > 0.5 / samplingRate) {
+      // gap or overlap, start new record
+      while (count > 0) {
+        writeRecord();
+      }
+      continuous = false;
+    }
+    times[count] = time;
+    samples[count] = value;
+    count++;
+    if (count == samples.length) {
+      writeRecord();
+    }
+  }
+
+  /**
+   * Write buffered samples and flush stream. Does not close the stream.
+   *
+   * @throws IOException if writing fails
+   */
+  public void flush() throws IOException {
+    while (count > 0) {
+      writeRecord();
+    }
+    out.flush();
+  }
+
+  /**
+   * Getter for count of records written so far.
+   *
+   * @return record count
+   */
+  public int getRecordCount() {
+    return sequence;
+  }
+
+  /**
+   * Encode as many buffered samples as fit into one record and write it.
+   */
+  private void writeRecord() throws IOException {
+    boolean integers = true;
+    for (int i = 0; i < count; i++) {
+      double v = samples[i];
+      if (v != Math.rint(v) || v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+        integers = false;
+        break;
+      }
+      ints[i] = (int) v;
+    }
+
+    Arrays.fill(buf.array(), (byte) 0);
+    int enc;
+    int n;
+    if (integers) {
+      enc = encoding;
+      n = encodeSteim(encoding == STEIM2);
+      if (n < 0) {
+        enc = INT32;
+        n = Math.min(count, (recordLength - HEADER_LENGTH) / 4);
+        Arrays.fill(buf.array(), (byte) 0);
+        buf.position(HEADER_LENGTH);
+        for (int i = 0; i < n; i++) {
+          buf.putInt(ints[i]);
+        }
+      }
+      continuous = true;
+      lastSample = ints[n - 1];
+    } else {
+      enc = FLOAT64;
+      n = Math.min(count, (recordLength - HEADER_LENGTH) / 8);
+      buf.position(HEADER_LENGTH);
+      for (int i = 0; i < n; i++) {
+        buf.putDouble(samples[i]);
+      }
+      continuous = false;
+    }
+    putHeader(enc, n);
+    out.write(buf.array(), 0, recordLength);
+
+    count -= n;
+    System.arraycopy(samples, n, samples, 0, count);
+    System.arraycopy(times, n, times, 0, count);
+  }
+
+  /**
+   * Fill fixed header and blockette 1000 for record.
+   *
+   * @param enc encoding of the data
+   * @param n   count of samples in record
+   */
+  private void putHeader(int enc, int n) {
+    sequence++;
+    buf.position(0);
+    int seq = (sequence - 1) % 999999 + 1;
+    for (int div = 100000; div > 0; div /= 10) {
+      buf.put((byte) ('0' + seq / div % 10));
+    }
+    buf.put((byte) 'D');
+    buf.put((byte) ' ');
+    buf.put(sncl);
+
+    // start time, to 0.0001 s
+    long tenths = Math.round(times[0] * 10000);
+    long fraction = tenths % 10;
+    if (fraction < 0) {
+      fraction += 10;
+    }
+    cal.setTimeInMillis((tenths - fraction) / 10);
+    buf.putShort((short) cal.get(Calendar.YEAR));
+    buf.putShort((short) cal.get(Calendar.DAY_OF_YEAR));
+    buf.put((byte) cal.get(Calendar.HOUR_OF_DAY));
+    buf.put((byte) cal.get(Calendar.MINUTE));
+    buf.put((byte) cal.get(Calendar.SECOND));
+    buf.put((byte) 0);
+    buf.putShort((short) (cal.get(Calendar.MILLISECOND) * 10 + fraction));
+
+    buf.putShort((short) n);
+    buf.putShort(rateFactor);
+    buf.putShort(rateMultiplier);
+    buf.put((byte) 0); // activity flags
+    buf.put((byte) 0); // I/O flags
+    buf.put((byte) 0); // data quality flags
+    buf.put((byte) 1); // number of blockettes
+    buf.putInt(0); // time correction
+    buf.putShort((short) HEADER_LENGTH); // beginning of data
+    buf.putShort((short) 48); // first blockette
+
+    // blockette 1000
+    buf.putShort((short) 1000);
+    buf.putShort((short) 0); // no next blockette
+    buf.put((byte) enc);
+    buf.put((byte) 1); // big-endian
+    buf.put((byte) Integer.numberOfTrailingZeros(recordLength));
+    buf.put((byte) 0);
+  }
+
+  /**
+   * Steim encode as many buffered integer samples as fit into the data frames of the record.
+   *
+   * @param steim2 use Steim2, Steim1 otherwise
+   * @return count of encoded samples, -1 if a difference can't be represented
+   */
+  private int encodeSteim(boolean steim2) {
+    int frames = (recordLength - HEADER_LENGTH) / FRAME_LENGTH;
+    firstDiff = continuous ? (long) ints[0] - lastSample : 0;
+    if (firstDiff < (steim2 ? -(1 << 29) : Integer.MIN_VALUE)
+        || firstDiff > (steim2 ? (1 << 29) - 1 : Integer.MAX_VALUE)) {
+      // only checked by decoders, don't let it spoil the compression
+      firstDiff = 0;
+    }
+    int i = 0;
+    for (int f = 0; f < frames && i < count; f++) {
+      int frameStart = HEADER_LENGTH + f * FRAME_LENGTH;
+      int control = 0;
+      int w = 1;
+      if (f == 0) {
+        // integration constants, the reverse one is filled in when the sample count is known
+        buf.putInt(frameStart + 4, ints[0]);
+        w = 3;
+      }
+      for (; w < FRAME_WORDS && i < count; w++) {
+        int pos = frameStart + 4 * w;
+        int packed = steim2 ? packSteim2(pos, i) : packSteim1(pos, i);
+        if (packed < 0) {
+          return -1;
+        }
+        control |= nibble << (30 - 2 * w);
+        i += packed;
+      }
+      buf.putInt(frameStart, control);
+    }
+    buf.putInt(HEADER_LENGTH + 8, ints[i - 1]);
+    return i;
+  }
+
+  /**
+   * Difference of sample to the previous one.
+   */
+  private long diff(int i) {
+    if (i == 0) {
+      return firstDiff;
+    }
+    return (long) ints[i] - ints[i - 1];
+  }
+
+  /**
+   * Check if differences of samples i to i + k - 1 fit into signed fields of given bit width.
+   */
+  private boolean fits(int i, int k, int bits) {
+    if (i + k > count) {
+      return false;
+    }
+    long max = (1L << (bits - 1)) - 1;
+    long min = -(1L << (bits - 1));
+    for (int j = i; j < i + k; j++) {
+      long d = diff(j);
+      if (d < min || d > max) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Pack differences of k samples starting with i into fields of given width, right aligned.
+   */
+  private int pack(int i, int k, int bits) {
+    int word = 0;
+    int mask = bits == 32 ? -1 : (1 << bits) - 1;
+    for (int j = i; j < i + k; j++) {
+      word = (bits == 32 ? 0 : word << bits) | ((int) diff(j) & mask);
+    }
+    return word;
+  }
+
+  /**
+   * Pack next differences into Steim1 word at given position.
+   *
+   * @return count of packed samples, -1 if difference doesn't fit 32 bits
+   */
+  private int packSteim1(int pos, int i) {
+    if (fits(i, 4, 8)) {
+      nibble = 1;
+      buf.putInt(pos, pack(i, 4, 8));
+      return 4;
+    } else if (fits(i, 2, 16)) {
+      nibble = 2;
+      buf.putInt(pos, pack(i, 2, 16));
+      return 2;
+    } else if (fits(i, 1, 32)) {
+      nibble = 3;
+      buf.putInt(pos, pack(i, 1, 32));
+      return 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Pack next differences into Steim2 word at given position.
+   *
+   * @return count of packed samples, -1 if difference doesn't fit 30 bits
+   */
+  private int packSteim2(int pos, int i) {
+    if (fits(i, 7, 4)) {
+      nibble = 3;
+      buf.putInt(pos, (2 << 30) | pack(i, 7, 4));
+      return 7;
+    } else if (fits(i, 6, 5)) {
+      nibble = 3;
+      buf.putInt(pos, (1 << 30) | pack(i, 6, 5));
+      return 6;
+    } else if (fits(i, 5, 6)) {
+      nibble = 3;
+      buf.putInt(pos, pack(i, 5, 6));
+      return 5;
+    } else if (fits(i, 4, 8)) {
+      nibble = 1;
+      buf.putInt(pos, pack(i, 4, 8));
+      return 4;
+    } else if (fits(i, 3, 10)) {
+      nibble = 2;
+      buf.putInt(pos, (3 << 30) | pack(i, 3, 10));
+      return 3;
+    } else if (fits(i, 2, 15)) {
+      nibble = 2;
+      buf.putInt(pos, (2 << 30) | pack(i, 2, 15));
+      return 2;
+    } else if (fits(i, 1, 30)) {
+      nibble = 2;
+      buf.putInt(pos, (1 << 30) | pack(i, 1, 30));
+      return 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Express sampling rate as SEED sample rate factor and multiplier.
+   *
+   * @param rate samples per second
+   * @return factor and multiplier
+   */
+  static short[] getRateFactorMultiplier(double rate) {
+    if (rate <= 0 || Double.isNaN(rate) || Double.isInfinite(rate)) {
+      return new short[] {0, 0};
+    }
+    if (rate >= 1) {
+      if (rate == Math.rint(rate) && rate <= Short.MAX_VALUE) {
+        return new short[] {(short) rate, 1};
+      }
+      // factor / -multiplier
+      int mult = 1;
+      while (mult < 10000 && rate * mult * 10 <= Short.MAX_VALUE) {
+        mult *= 10;
+      }
+      return new short[] {(short) Math.round(rate * mult), (short) -mult};
+    }
+    double period = 1 / rate;
+    if (period == Math.rint(period) && period <= Short.MAX_VALUE) {
+      return new short[] {(short) -period, 1};
+    }
+    // -multiplier / factor
+    int mult = 1;
+    while (mult < 10000 && period * mult * 10 <= Short.MAX_VALUE) {
+      mult *= 10;
+    }
+    return new short[] {(short) -Math.round(period * mult), (short) mult};
+  }
+
+  private static String nvl(String s) {
+    return s == null ? "" : s;
+  }
+}
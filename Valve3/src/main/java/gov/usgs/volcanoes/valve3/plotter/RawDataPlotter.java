@@ -1,5 +1,7 @@
 package gov.usgs.volcanoes.valve3.plotter;
 
+import cern.colt.matrix.DoubleMatrix2D;
+
 import gov.usgs.volcanoes.core.data.GenericDataMatrix;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
 import gov.usgs.volcanoes.core.legacy.plot.decorate.DefaultFrameDecorator;
@@ -8,15 +10,17 @@ import gov.usgs.volcanoes.core.legacy.plot.decorate.SmartTick;
 import gov.usgs.volcanoes.core.legacy.plot.render.AxisRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.LegendRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.MatrixRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.math.DownsamplingType;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.time.Time;
 import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.DataHandler;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.vdx.ExportConfig;
 import gov.usgs.volcanoes.vdx.client.VDXClient;
@@ -29,16 +33,18 @@ import gov.usgs.volcanoes.vdx.data.SuppDatum;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Writer;
 
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Abstract class which keeps general functionality for all plotters based on MatrixRenderer.
@@ -87,11 +93,17 @@ public abstract class RawDataPlotter extends Plotter {
   protected Map<Integer, Rank> ranksMap;
 
   protected TreeSet<ExportData> csvData;
-  protected StringBuilder csvText;
+  protected Writer csvOut;
   protected Map<String, String> csvCmtBits;
   protected Vector<String[]> csvHdrs;
   protected int csvIndex = 0;
 
+  // line separator used by %n of the formerly used String.format patterns
+  private static final String NEWLINE = System.getProperty("line.separator");
+  private final FixedFormatter epochFmt = new FixedFormatter(14, 3);
+  private final FixedFormatter epochJxFmt = new FixedFormatter(1, 3);
+  private final FixedFormatter posFmt = new FixedFormatter(1, 0);
+
   protected boolean[] bypassCols;
   protected boolean[] accumulateCols;
   protected boolean doDespike;
@@ -117,6 +129,8 @@ public abstract class RawDataPlotter extends Plotter {
   protected double timeOffset;
   protected String timeZoneID;
 
+  protected boolean dataFetched = false;
+
   /**
    * Default constructor.
    */
@@ -319,33 +333,11 @@ public abstract class RawDataPlotter extends Plotter {
   protected static List<Column> getColumns(String vdxSource, String vdxClient)
       throws Valve3Exception {
 
-    // initialize variables
-    List<String> stringList = null;
+    // columns get a fresh list each time since plotters set their checked flags
     List<Column> columnList = null;
-    Pool<VDXClient> pool = null;
-    VDXClient client = null;
-
-    // create a map of all the input parameters
-    Map<String, String> params = new LinkedHashMap<String, String>();
-    params.put("source", vdxSource);
-    params.put("action", "columns");
-
-    // checkout a connection to the database
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
-      try {
-        stringList = client.getTextData(params);
-      } catch (Exception e) {
-        stringList = null;
-      } finally {
-        pool.checkin(client);
-      }
-
-      // if data was collected
-      if (stringList != null) {
-        columnList = Column.fromStringsToList(stringList);
-      }
+    List<String> stringList = getMetadataLines(vdxSource, vdxClient, "columns");
+    if (stringList != null) {
+      columnList = Column.fromStringsToList(stringList);
     }
 
     return columnList;
@@ -361,33 +353,10 @@ public abstract class RawDataPlotter extends Plotter {
   protected static Map<Integer, Channel> getChannels(String vdxSource, String vdxClient)
       throws Valve3Exception {
 
-    // initialize variables
-    List<String> stringList = null;
     Map<Integer, Channel> channelMap = null;
-    Pool<VDXClient> pool = null;
-    VDXClient client = null;
-
-    // create a map of all the input parameters
-    Map<String, String> params = new LinkedHashMap<String, String>();
-    params.put("source", vdxSource);
-    params.put("action", "channels");
-
-    // checkout a connection to the database
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
-      try {
-        stringList = client.getTextData(params);
-      } catch (Exception e) {
-        stringList = null;
-      } finally {
-        pool.checkin(client);
-      }
-
-      // if data was collected
-      if (stringList != null) {
-        channelMap = Channel.fromStringsToMap(stringList);
-      }
+    List<String> stringList = getMetadataLines(vdxSource, vdxClient, "channels");
+    if (stringList != null) {
+      channelMap = Channel.fromStringsToMap(stringList);
     }
 
     return channelMap;
@@ -403,33 +372,10 @@ public abstract class RawDataPlotter extends Plotter {
   public static Map<Integer, Rank> getRanks(String vdxSource, String vdxClient)
       throws Valve3Exception {
 
-    // initialize variables
-    List<String> stringList = null;
     Map<Integer, Rank> rankMap = null;
-    Pool<VDXClient> pool = null;
-    VDXClient client = null;
-
-    // create a map of all the input parameters
-    Map<String, String> params = new LinkedHashMap<String, String>();
-    params.put("source", vdxSource);
-    params.put("action", "ranks");
-
-    // checkout a connection to the database
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
-      try {
-        stringList = client.getTextData(params);
-      } catch (Exception e) {
-        stringList = null;
-      } finally {
-        pool.checkin(client);
-      }
-
-      // if data was collected
-      if (stringList != null) {
-        rankMap = Rank.fromStringsToMap(stringList);
-      }
+    List<String> stringList = getMetadataLines(vdxSource, vdxClient, "ranks");
+    if (stringList != null) {
+      rankMap = Rank.fromStringsToMap(stringList);
     }
 
     return rankMap;
@@ -445,42 +391,32 @@ public abstract class RawDataPlotter extends Plotter {
   protected static Map<Integer, Double> getAzimuths(String vdxSource, String vdxClient)
       throws Valve3Exception {
 
-    // initialize variables
-    List<String> stringList = null;
     Map<Integer, Double> azimuthMap = null;
-    Pool<VDXClient> pool = null;
-    VDXClient client = null;
-
-    // create a map of all the input parameters
-    Map<String, String> params = new LinkedHashMap<String, String>();
-    params.put("source", vdxSource);
-    params.put("action", "azimuths");
-
-    // checkout a connection to the database
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
-      try {
-        stringList = client.getTextData(params);
-      } catch (Exception e) {
-        stringList = null;
-      } finally {
-        pool.checkin(client);
-      }
-
-      // if data was collected
-      if (stringList != null) {
-        azimuthMap = new LinkedHashMap<Integer, Double>();
-        for (int i = 0; i < stringList.size(); i++) {
-          String[] temp = stringList.get(i).split(":");
-          azimuthMap.put(Integer.valueOf(temp[0]), Double.valueOf(temp[1]));
-        }
+    List<String> stringList = getMetadataLines(vdxSource, vdxClient, "azimuths");
+    if (stringList != null) {
+      azimuthMap = new LinkedHashMap<Integer, Double>();
+      for (int i = 0; i < stringList.size(); i++) {
+        String[] temp = stringList.get(i).split(":");
+        azimuthMap.put(Integer.valueOf(temp[0]), Double.valueOf(temp[1]));
       }
     }
 
     return azimuthMap;
   }
 
+  /**
+   * Yield metadata lines for given vdx source through the data handler's metadata cache.
+   *
+   * @param vdxSource vdx source name
+   * @param vdxClient vdx client name
+   * @param action vdx metadata action
+   * @return lines returned by vdx, null if not available
+   */
+  private static List<String> getMetadataLines(String vdxSource, String vdxClient, String action) {
+    return Valve3.getInstance().getDataHandler().getMetadataCache()
+        .get(vdxClient, vdxSource, action);
+  }
+
   /**
    * Initialize MatrixRenderer for left plot axis.
    *
@@ -497,7 +433,7 @@ public abstract class RawDataPlotter extends Plotter {
       int currentComp, int compBoxHeight, int index, String unit) throws Valve3Exception {
 
     // setup the matrix renderer with this data
-    MatrixRenderer mr = new MatrixRenderer(gdm.getData(), ranks);
+    MatrixRenderer mr = new MatrixRenderer(getPlotData(gdm, comp, compBoxHeight - 16), ranks);
     mr.setLocation(comp.getBoxX(), comp.getBoxY() + (currentComp - 1) * compBoxHeight,
         comp.getBoxWidth(), compBoxHeight - 16);
     mr.setAllVisible(false);
@@ -570,7 +506,7 @@ public abstract class RawDataPlotter extends Plotter {
     if (rightUnit == null) {
       return null;
     }
-    MatrixRenderer mr = new MatrixRenderer(gdm.getData(), ranks);
+    MatrixRenderer mr = new MatrixRenderer(getPlotData(gdm, comp, compBoxHeight - 16), ranks);
     mr.setLocation(comp.getBoxX(), comp.getBoxY() + (currentComp - 1) * compBoxHeight,
         comp.getBoxWidth(), compBoxHeight - 16);
     mr.setAllVisible(false);
@@ -600,6 +536,222 @@ public abstract class RawDataPlotter extends Plotter {
     return mr;
   }
 
+  /**
+   * Yield data to render: the data matrix reduced to the rows visible at the size of the plot,
+   * unless switched off by "decimate" plotter configuration parameter. Axis extents are still
+   * computed from the full matrix.
+   *
+   * @param gdm    data matrix
+   * @param comp   plot component
+   * @param height height of plot, in pixels
+   * @return matrix to render
+   */
+  protected DoubleMatrix2D getPlotData(GenericDataMatrix gdm, PlotComponent comp, int height) {
+    DoubleMatrix2D data = gdm.getData();
+    if (data == null || !isDecimate()) {
+      return data;
+    }
+    return MatrixDecimator.decimate(data, ranks ? 2 : 1, ranks ? 1 : -1,
+        startTime + timeOffset, endTime + timeOffset, comp.getBoxWidth(), height,
+        shape != null && shape.equals("l"));
+  }
+
+  /**
+   * Getter for "decimate" plotter configuration parameter.
+   *
+   * @return true if matrix data should be reduced to plot size before rendering, default true
+   */
+  protected boolean isDecimate() {
+    if (plotterConfig == null) {
+      return true;
+    }
+    return StringUtils.stringToBoolean(plotterConfig.getString("decimate"), true);
+  }
+
+  /**
+   * Request binary data for several channels from vdx. The requests are spread over up to
+   * channelFetch.concurrency pooled clients, the current thread being one of the workers.
+   *
+   * @param params   request parameters, "ch" is set for each channel
+   * @param channels channel ids
+   * @param type     expected class of data
+   * @return data in channel order, null for channels without data; null if vdx is unknown
+   * @throws Valve3Exception if a request fails
+   */
+  protected <T> List<T> getChannelsData(Map<String, String> params, String[] channels,
+      Class<T> type) throws Valve3Exception {
+    DataHandler dh = Valve3.getInstance().getDataHandler();
+    VDXClientPool pool = dh.getVDXClient(vdxClient);
+    if (pool == null) {
+      return null;
+    }
+
+    ChannelsFetch<T> fetch = new ChannelsFetch<T>(pool, params, channels, type);
+    int workers = Math.min(channels.length,
+        Math.min(dh.getChannelConcurrency(), Math.max(1, dh.getVDXClientCount(vdxClient))));
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int i = 1; i < workers; i++) {
+      try {
+        futures.add(dh.getRequestExecutor().submit(fetch));
+      } catch (RejectedExecutionException e) {
+        break;
+      }
+    }
+    fetch.run();
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new Valve3Exception("Data request interrupted");
+      } catch (ExecutionException e) {
+        fetch.fail(e.getCause().getMessage());
+      }
+    }
+    if (fetch.failed) {
+      logger.debug(fetch.errorMsg);
+      throw new Valve3Exception(fetch.errorMsg);
+    }
+    return fetch.getResults();
+  }
+
+  /**
+   * Check if plot component is relative to now, so caches of recent data apply.
+   *
+   * @param comp plot component
+   * @return true if end time is missing, "N" or relative
+   */
+  protected static boolean isLive(PlotComponent comp) {
+    String et = comp.get("et");
+    return et == null || et.equals("N") || et.startsWith("-");
+  }
+
+  /**
+   * Build key of a channel in caches of recent data.
+   *
+   * @param channel channel id
+   * @return key, vdx name, vdx source and channel id
+   */
+  protected String getChannelKey(String channel) {
+    return vdxClient + "|" + vdxSource + "|" + channel;
+  }
+
+  /**
+   * Request data of channels partly cached: channels without cached data for the whole window,
+   * the others only from the given time on.
+   *
+   * @param params     request parameters
+   * @param channels   channel ids
+   * @param hits       for each channel, true if its data is cached
+   * @param fetchStart time data of cached channels is requested from
+   * @param type       expected class of data
+   * @return data in channel order, null for channels without data; null if vdx is unknown
+   * @throws Valve3Exception if a request fails
+   */
+  protected <T> List<T> getCachedChannelsData(Map<String, String> params, String[] channels,
+      boolean[] hits, double fetchStart, Class<T> type) throws Valve3Exception {
+    List<String> missed = new ArrayList<String>();
+    List<String> hit = new ArrayList<String>();
+    for (int i = 0; i < channels.length; i++) {
+      if (hits[i]) {
+        hit.add(channels[i]);
+      } else {
+        missed.add(channels[i]);
+      }
+    }
+
+    List<T> missedData = null;
+    if (!missed.isEmpty()) {
+      missedData = getChannelsData(params, missed.toArray(new String[missed.size()]), type);
+      if (missedData == null) {
+        return null;
+      }
+    }
+    List<T> hitData = null;
+    if (!hit.isEmpty()) {
+      Map<String, String> tailParams = new LinkedHashMap<String, String>(params);
+      tailParams.put("st", Double.toString(fetchStart));
+      hitData = getChannelsData(tailParams, hit.toArray(new String[hit.size()]), type);
+      if (hitData == null) {
+        return null;
+      }
+    }
+
+    List<T> dataList = new ArrayList<T>(channels.length);
+    int m = 0;
+    int h = 0;
+    for (int i = 0; i < channels.length; i++) {
+      dataList.add(hits[i] ? hitData.get(h++) : missedData.get(m++));
+    }
+    return dataList;
+  }
+
+  /**
+   * Supporting class for getChannelsData. Each worker checks out one client and requests the
+   * channels not yet taken by other workers.
+   */
+  private static class ChannelsFetch<T> implements Runnable {
+    private final VDXClientPool pool;
+    private final Map<String, String> params;
+    private final String[] channels;
+    private final Class<T> type;
+    private final Object[] results;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean failed = false;
+    private volatile String errorMsg;
+
+    public ChannelsFetch(VDXClientPool pool, Map<String, String> params, String[] channels,
+        Class<T> type) {
+      this.pool = pool;
+      this.params = params;
+      this.channels = channels;
+      this.type = type;
+      results = new Object[channels.length];
+    }
+
+    public void run() {
+      VDXClient client;
+      try {
+        client = pool.checkout();
+      } catch (Valve3Exception e) {
+        fail(e.getMessage());
+        return;
+      }
+      try {
+        int i;
+        while (!failed && (i = next.getAndIncrement()) < channels.length) {
+          Map<String, String> p = new LinkedHashMap<String, String>(params);
+          p.put("ch", channels[i]);
+          try {
+            results[i] = type.cast(client.getBinaryData(p));
+          } catch (UtilException e) {
+            fail(e.getMessage());
+          } catch (Exception e) {
+            pool.invalidate(client);
+            fail(e.getMessage());
+          }
+        }
+      } finally {
+        pool.checkin(client);
+      }
+    }
+
+    private synchronized void fail(String msg) {
+      if (!failed) {
+        errorMsg = msg;
+        failed = true;
+      }
+    }
+
+    public List<T> getResults() {
+      List<T> list = new ArrayList<T>(results.length);
+      for (Object o : results) {
+        list.add(type.cast(o));
+      }
+      return list;
+    }
+  }
+
   /**
    * This function should be overridden in each concrete plotter. Configure plotter according
    * component parameters.
@@ -615,6 +767,31 @@ public abstract class RawDataPlotter extends Plotter {
    */
   abstract void getData(PlotComponent comp) throws Valve3Exception;
 
+  /**
+   * Load the vdx source metadata (channels, ranks, columns...) the plotter needs. Does nothing by
+   * default, plotters which use metadata override it.
+   */
+  protected void getMetadata() throws Valve3Exception {
+  }
+
+  /**
+   * Load metadata, configure plotter and request the data from vdx server. Called by the plot
+   * handler ahead of rendering, possibly from a worker thread; only the first call does the work.
+   *
+   * @param comp plot component
+   * @see Plotter#fetchData
+   */
+  public void fetchData(PlotComponent comp) throws Valve3Exception {
+    if (dataFetched) {
+      return;
+    }
+    getMetadata();
+    comp.setPlotter(this.getClass().getName());
+    getInputs(comp);
+    getData(comp);
+    dataFetched = true;
+  }
+
   /**
    * Does column contain single character strings.
    *
@@ -625,48 +802,44 @@ public abstract class RawDataPlotter extends Plotter {
   }
 
   /**
-   * Format time and data using decFmt (and nullField for empty fields); append to csvText.
+   * Format time and data using decFmt (and nullField for empty fields); write to csvOut.
    *
    * @param data data for line
    * @param time time for data
    * @param decFmt how to format numbers
    * @param nullField what to use for missing fields
+   * @throws IOException if writing fails
    */
-  private void addCSVline(Double[][] data, Double time, String decFmt, String nullField) {
-    StringBuilder line;
-    String firstDecFmt;
-    String nextDecFmt;
+  private void addCSVline(Double[][] data, double time, FixedFormatter decFmt, String nullField)
+      throws IOException {
     if (inclTime) {
-      line = new StringBuilder(String.format("%14.3f,",
-                                            Time.j2kToEw(time)) + J2kSec.toDateString(time));
-      firstDecFmt = "," + decFmt;
-    } else {
-      line = new StringBuilder("");
-      firstDecFmt = decFmt;
+      epochFmt.write(csvOut, Time.j2kToEw(time));
+      csvOut.append(",").append(J2kSec.toDateString(time));
     }
-    nextDecFmt = "," + decFmt;
     for (Double[] group : data) {
       for (int i = 1; i < group.length; i++) {
         Double v = group[i];
         if (v == null) {
-          line.append(nullField);
+          csvOut.append(nullField);
         } else if (isCharColumn(i)) {
           if (Double.isNaN(v) || v > 255) {
-            line.append(", ");
+            csvOut.append(", ");
           } else {
-            line.append(",").append(new Character((char) (v.intValue())));
+            csvOut.append(',').append((char) (v.intValue()));
           }
         } else {
-          line.append(String.format(i == 1 ? firstDecFmt : nextDecFmt, v));
+          if (i > 1 || inclTime) {
+            csvOut.append(',');
+          }
+          decFmt.write(csvOut, v);
         }
       }
     }
-    csvText.append(line);
-    csvText.append("\n");
+    csvOut.append('\n');
   }
 
   /**
-   * Format time and data using decFmt (and nullField for empty fields); append to csvText (in XML
+   * Format time and data using decFmt (and nullField for empty fields); write to csvOut (in XML
    * format).
    *
    * @param data data for line
@@ -675,24 +848,27 @@ public abstract class RawDataPlotter extends Plotter {
    * @param pos line number
    * @param timeZone name of time zone
    * @param rank Default rank
+   * @throws IOException if writing fails
    */
-  private void addXMLline(Double[][] data, Double time, String decFmt, int pos, String timeZone,
-      String rank) {
+  private void addXMLline(Double[][] data, double time, FixedFormatter decFmt, int pos,
+      String timeZone, String rank) throws IOException {
     boolean hasChannels = (csvHdrs.get(1)[2] != null);  // Export has channel information
-    StringBuilder line;                    // Export line being added
 
     /* If first line, add header tag */
     if (pos == 1) {
-      line = new StringBuilder("\t<DATA>\n");
-    } else {
-      line = new StringBuilder("");
+      csvOut.append("\t<DATA>\n");
     }
     /* Tag for a row of data */
-    line.append(String.format("\t\t<ROW pos=\"%d\">%n", pos));
+    csvOut.append("\t\t<ROW pos=\"");
+    posFmt.write(csvOut, pos);
+    csvOut.append("\">").append(NEWLINE);
     if (inclTime) {
-      line.append(String.format("\t\t\t<EPOCH>%1.3f</EPOCH>%n\t\t\t<TIMESTAMP>%s</TIMESTAMP>%n",
-                                Time.j2kToEw(time), J2kSec.toDateString(time)));
-      line.append("\t\t\t<TIMEZONE>").append(timeZone).append("</TIMEZONE>\n");
+      csvOut.append("\t\t\t<EPOCH>");
+      epochJxFmt.write(csvOut, Time.j2kToEw(time));
+      csvOut.append("</EPOCH>").append(NEWLINE);
+      csvOut.append("\t\t\t<TIMESTAMP>").append(J2kSec.toDateString(time)).append("</TIMESTAMP>")
+          .append(NEWLINE);
+      csvOut.append("\t\t\t<TIMEZONE>").append(timeZone).append("</TIMEZONE>\n");
     }
     String channel = "";    // Channel name
     String tab = "\t\t\t";    // Indent for contents of a row
@@ -708,10 +884,10 @@ public abstract class RawDataPlotter extends Plotter {
         if (hasChannels) {
           if (!channel.equals(hdr[2])) {
             if (i > 1) {
-              line.append("\t\t\t</CHANNEL>\n");
+              csvOut.append("\t\t\t</CHANNEL>\n");
             }
             channel = hdr[2];
-            line.append("\t\t\t<CHANNEL>\n\t\t\t\t<code>").append(channel).append("</code>\n");
+            csvOut.append("\t\t\t<CHANNEL>\n\t\t\t\t<code>").append(channel).append("</code>\n");
             tab = "\t\t\t\t";
             showRank = true;
           }
@@ -720,37 +896,36 @@ public abstract class RawDataPlotter extends Plotter {
         }
         if (showRank) {
           if (hdr[1] != null) {
-            line.append(tab).append("<rank>").append(hdr[1]).append("</rank>\n");
+            csvOut.append(tab).append("<rank>").append(hdr[1]).append("</rank>\n");
           } else if (hasRank) {
-            line.append(tab).append("<rank>").append(rank).append("</rank>\n");
+            csvOut.append(tab).append("<rank>").append(rank).append("</rank>\n");
           }
         }
 
         Double v = group[i];    // Actual exported data value
         if (v != null) {
-          line.append(tab).append("<").append(tag).append(">");
+          csvOut.append(tab).append("<").append(tag).append(">");
           if (isCharColumn(i)) {
             if (Double.isNaN(v) || v > 255) {
               ;
             } else {
-              line.append(new Character((char) (v.intValue())));
+              csvOut.append((char) (v.intValue()));
             }
           } else {
-            line.append(String.format(decFmt, v));
+            decFmt.write(csvOut, v);
           }
-          line.append("</").append(tag).append(">\n");
+          csvOut.append("</").append(tag).append(">\n");
         }
       }
     }
     if (hasChannels) {
-      line.append("\t\t\t</CHANNEL>\n");
+      csvOut.append("\t\t\t</CHANNEL>\n");
     }
-    csvText.append(line);
-    csvText.append("\t\t</ROW>\n");
+    csvOut.append("\t\t</ROW>\n");
   }
 
   /**
-   * Format time and data using decFmt (and nullField for empty fields); append to csvText (in JSON
+   * Format time and data using decFmt (and nullField for empty fields); write to csvOut (in JSON
    * format).
    *
    * @param data data for line
@@ -759,35 +934,36 @@ public abstract class RawDataPlotter extends Plotter {
    * @param pos line number
    * @param timeZone name of time zone
    * @param rank Default rank
+   * @throws IOException if writing fails
    */
-  private void addJsonLine(Double[][] data, Double time, String decFmt, int pos, String timeZone,
-      String rank) {
+  private void addJsonLine(Double[][] data, double time, FixedFormatter decFmt, int pos,
+      String timeZone, String rank) throws IOException {
     boolean hasChannels = (csvHdrs.get(1)[2] != null);  // Export has channel information
-    StringBuilder line;                    // Export line being added
 
     /* If first line, add header tag */
     if (pos == 1) {
-      line = new StringBuilder("\t\"data\":[\n");
+      csvOut.append("\t\"data\":[\n");
     } else {
-      line = new StringBuilder(",\n");
+      csvOut.append(",\n");
     }
-    line.append("\t\t{");
+    csvOut.append("\t\t{");
     if (inclTime) {
-      line.append(String.format("\"EPOCH\":%1.3f,\"TIMESTAMP\":\"%s\",", Time.j2kToEw(time),
-                                J2kSec.toDateString(time)));
-      line.append("\"TIMEZONE\":\"").append(timeZone).append("\"")
+      csvOut.append("\"EPOCH\":");
+      epochJxFmt.write(csvOut, Time.j2kToEw(time));
+      csvOut.append(",\"TIMESTAMP\":\"").append(J2kSec.toDateString(time)).append("\",");
+      csvOut.append("\"TIMEZONE\":\"").append(timeZone).append("\"")
                                                      .append((hasChannels ? ",\n" : ""));
     }
 
     if (hasChannels) {
-      line.append("\t\t\"CHANNELS\":[\n");
+      csvOut.append("\t\t\"CHANNELS\":[\n");
     }
     String channel = "";
     int hdrIdx = 1;      // Current column of export
     boolean hasRank = (!rank.equals(""));    // Export has rank information
     for (Double[] group : data) {
       if (hdrIdx != 1 && hasChannels) {
-        line.append(",\n");
+        csvOut.append(",\n");
       }
       for (int i = 1; i < group.length; i++) {
         hdrIdx++;
@@ -797,7 +973,7 @@ public abstract class RawDataPlotter extends Plotter {
         if (hasChannels) {
           if (!channel.equals(hdr[2])) {
             channel = hdr[2];
-            line.append("\t\t\t{\"code\":\"").append(channel).append("\"");
+            csvOut.append("\t\t\t{\"code\":\"").append(channel).append("\"");
             showRank = true;
           }
         } else {
@@ -805,84 +981,96 @@ public abstract class RawDataPlotter extends Plotter {
         }
         if (showRank) {
           if (hdr[1] != null) {
-            line.append(",\n\t\t\t\"rank\":\"").append(hdr[1]).append("\"");
+            csvOut.append(",\n\t\t\t\"rank\":\"").append(hdr[1]).append("\"");
           } else if (hasRank) {
-            line.append(",\n\t\t\t\"rank\":\"").append(rank).append("\"");
+            csvOut.append(",\n\t\t\t\"rank\":\"").append(rank).append("\"");
           }
         }
 
         Double v = group[i];
         if (v != null) {
-          line.append(String.format(",%n\t\t\t\"%s\":", tag));
+          csvOut.append(",").append(NEWLINE).append("\t\t\t\"").append(tag).append("\":");
           if (isCharColumn(i)) {
             if (Double.isNaN(v) || v > 255) {
-              line.append("\"\"");
+              csvOut.append("\"\"");
             } else {
-              line.append("\"").append(new Character((char) (v.intValue()))).append("\"");
+              csvOut.append("\"").append((char) (v.intValue())).append("\"");
             }
           } else {
-            line.append(String.format(decFmt, v));
+            decFmt.write(csvOut, v);
           }
         }
       }
-      line.append("}");
+      csvOut.append("}");
     }
-    csvText.append(line);
     if (hasChannels) {
-      csvText.append("\n\t\t]}");
+      csvOut.append("\n\t\t]}");
     }
   }
 
-  private int vaxOrder = 0;
-  //private int enc_fmt = 1; // 16-bit ints
-  private int encFmt = 3; // 32-bit ints
-  //private int enc_fmt = 5; // IEEE double
-  private int drlAdd = encFmt == 3 ? 2 : (encFmt == 1 ? 1 : 3);
+  /**
+   * Getter for miniSEED export record length, "seedRecordLength" plotter configuration parameter.
+   *
+   * @return record length, 512 or 4096
+   */
+  protected int getSeedRecordLength() {
+    int length = MiniSeedWriter.DEFAULT_RECORD_LENGTH;
+    if (plotterConfig != null) {
+      length = StringUtils.stringToInt(plotterConfig.getString("seedRecordLength"), length);
+    }
+    if (length != 512 && length != 4096) {
+      logger.info("Illegal seedRecordLength {}, using {}", length,
+          MiniSeedWriter.DEFAULT_RECORD_LENGTH);
+      length = MiniSeedWriter.DEFAULT_RECORD_LENGTH;
+    }
+    return length;
+  }
 
-  private void writeShort(OutputStream out, int val) throws IOException {
-    out.write(val % 256);
-    out.write(val / 256);
+  /**
+   * Getter for miniSEED export compression, "seedEncoding" plotter configuration parameter.
+   *
+   * @return MiniSeedWriter.STEIM1 or MiniSeedWriter.STEIM2
+   */
+  protected int getSeedEncoding() {
+    String value = plotterConfig == null ? null : plotterConfig.getString("seedEncoding");
+    if (value != null && value.equalsIgnoreCase("steim1")) {
+      return MiniSeedWriter.STEIM1;
+    }
+    return MiniSeedWriter.STEIM2;
   }
 
-  private void writeDouble(OutputStream out, double val) throws IOException {
-    int i;
-    if (encFmt == 5) {
-      long lval = Double.doubleToRawLongBits(val);
-      if (vaxOrder == 0) {
-        for (i = 0; i < 8; i++) {
-          out.write((int) ((lval >> (8 * i)) & 0x00ffL));
-        }
-      } else {
-        for (i = 7; i >= 0; i--) {
-          out.write((int) ((lval >> (8 * i)) & 0x00ffL));
-        }
-      }
-    } else {
-      Double valD = new Double(val);
-      int ival = (encFmt == 1 ? valD.shortValue() : valD.intValue());
-      int hi = (encFmt == 1 ? 2 : 4);
-      if (vaxOrder == 0) {
-        for (i = 0; i < hi; i++) {
-          out.write((ival >> (8 * i)) & 0x00ff);
-        }
-      } else {
-        for (i = hi - 1; i >= 0; i--) {
-          out.write((ival >> (8 * i)) & 0x00ff);
-        }
-      }
+  /**
+   * Write contents in an export format. Rows are written as they are merged, so only the current
+   * row is kept in memory.
+   *
+   * @param comp plot component
+   * @param cmtBits comment info to add after configured comments
+   * @param seedOut stream to write seed data to
+   * @param out writer for text export
+   * @see Plotter#toExport
+   */
+  public void toExport(PlotComponent comp, Map<String, String> cmtBits, OutputStream seedOut,
+      Writer out) throws Valve3Exception {
+    csvOut = out;
+    try {
+      writeExport(comp, cmtBits, seedOut);
+    } catch (IOException e) {
+      throw new Valve3Exception("Error writing export: " + e.getMessage());
+    } finally {
+      csvOut = null;
     }
   }
 
   /**
-   * Yield contents in an export format.
+   * Write contents in an export format to csvOut.
    *
    * @param comp plot component
    * @param cmtBits comment info to add after configured comments
    * @param seedOut stream to write seed data to
-   * @return export of binary data described by given PlotComponent
+   * @throws IOException if writing fails
    */
-  public String toExport(PlotComponent comp, Map<String, String> cmtBits, OutputStream seedOut)
-      throws Valve3Exception {
+  private void writeExport(PlotComponent comp, Map<String, String> cmtBits, OutputStream seedOut)
+      throws Valve3Exception, IOException {
 
     // Get export configuration parameters
     ExportConfig ec = getExportConfig(vdxSource, vdxClient);
@@ -905,7 +1093,6 @@ public abstract class RawDataPlotter extends Plotter {
     }
 
     // Add the common column headers
-    String timeZone = comp.getTimeZone().getID();
     if (inclTime) {
       String[] h1 = {null, null, null, "Epoch"};
       String[] h2 = {null, null, null, "Date"};
@@ -913,7 +1100,7 @@ public abstract class RawDataPlotter extends Plotter {
       csvHdrs.add(h2);
     }
 
-    // Fill csvData with data to be exported; also completes csvText
+    // Fill csvData with data to be exported; also completes csvHdrs
     csvData = new TreeSet<ExportData>();
     csvIndex = 0;
     try {
@@ -938,14 +1125,12 @@ public abstract class RawDataPlotter extends Plotter {
     if (csvCmtBits.containsKey("datatype")) {
       cmtLines.add("datatype=" + csvCmtBits.get("datatype"));
     }
-    csvText = new StringBuilder();
-
     if (outToCsv) {
       for (String comment : comments) {
-        csvText.append("#").append(comment).append("\n");
+        csvOut.append("#").append(comment).append("\n");
       }
       for (String comment : cmtLines) {
-        csvText.append("#").append(comment).append("\n");
+        csvOut.append("#").append(comment).append("\n");
       }
       StringBuilder hdrLine = new StringBuilder();
       boolean first = true;
@@ -963,160 +1148,72 @@ public abstract class RawDataPlotter extends Plotter {
           hdrLine.append("," + hdr);
         }
       }
-      csvText.append(hdrLine);
+      csvOut.append(hdrLine);
       csvHdrs = new Vector<String[]>();
-      csvText.append("\n");
+      csvOut.append("\n");
     }
     if (outToXml) {
-      csvText.append("<VALVE_XML>\n\t<COMMENTS>\n");
+      csvOut.append("<VALVE_XML>\n\t<COMMENTS>\n");
       int i = 1;
       for (String comment : comments) {
-        csvText.append("\t\t<COMMENTLINE pos=\"" + i + "\">" + comment.replaceAll("&", "&amp;")
+        csvOut.append("\t\t<COMMENTLINE pos=\"" + i + "\">" + comment.replaceAll("&", "&amp;")
             + "</COMMENTLINE>\n");
         i++;
       }
       for (String comment : cmtLines) {
-        csvText.append("\t\t<COMMENTLINE pos=\"" + i + "\">" + comment.replaceAll("&", "&amp;")
+        csvOut.append("\t\t<COMMENTLINE pos=\"" + i + "\">" + comment.replaceAll("&", "&amp;")
             + "</COMMENTLINE>\n");
         i++;
       }
-      csvText.append("\t</COMMENTS>\n");
+      csvOut.append("\t</COMMENTS>\n");
     }
     if (outToJson) {
-      csvText.append("{\"valve-json\":\n\t{\"comments\":");
+      csvOut.append("{\"valve-json\":\n\t{\"comments\":");
       String sep = "[\n\t\t\"";
       for (String comment : comments) {
-        csvText.append(sep + comment);
+        csvOut.append(sep + comment);
         sep = "\",\n\t\t\"";
       }
       for (String comment : cmtLines) {
-        csvText.append(sep + comment);
+        csvOut.append(sep + comment);
         sep = "\",\n\t\t\"";
       }
       if (sep.charAt(0) == '[') {
-        csvText.append("[],\n");
+        csvOut.append("[],\n");
       } else {
-        csvText.append("\"],\n");
+        csvOut.append("\"],\n");
       }
     }
     csvCmtBits = new LinkedHashMap<String, String>();
 
     // currLine is an array of the current row of data from each source, indexed by that source's ID
     Double[][] currLine = new Double[csvData.size()][];
-    String decFmt = "%" + ec.getFixedWidth()[0] + "." + ec.getFixedWidth()[1] + "f";
-    String jxDecFmt = "%1." + ec.getFixedWidth()[1] + "f";
+    FixedFormatter decFmt = new FixedFormatter(ec.getFixedWidth()[0], ec.getFixedWidth()[1]);
+    FixedFormatter jxDecFmt = new FixedFormatter(1, ec.getFixedWidth()[1]);
     String nullField = String.format(",%" + ec.getFixedWidth()[0] + "s", "");
 
     if (seedOut != null) {
       try {
         // We're writing data to a miniseed file
         ExportData cd = csvData.first();
-
-        int sampleCount = cd.count();
-        int valsLeft = sampleCount; //samples
-        int valsInBlockette = 4096;
-        int drl = 12;
-        int blocketteCount = 0;
-        while (valsLeft > 0) {
-          while (valsLeft < valsInBlockette) {
-            drl--;
-            valsInBlockette /= 2;
-          }
-          valsLeft -= valsInBlockette;
-          blocketteCount++;
-        }
-        seedOut.write("000000".getBytes()); // seq nbr
-        seedOut.write("D".getBytes()); // QC
-        seedOut.write(32); //reserved
-
-        String scnlOut;
+        MiniSeedWriter msw;
         // These have to be extracted from source
         if (scnl != null) {
-          scnlOut = String.format("%-5s  %-3s%-2s", scnl[0], scnl[1], scnl[2]);
+          msw = new MiniSeedWriter(seedOut, scnl[0], scnl.length > 3 ? scnl[3] : null, scnl[1],
+              scnl[2], samplingRate, getSeedRecordLength(), getSeedEncoding());
         } else {
-          scnlOut = "            ";
+          msw = new MiniSeedWriter(seedOut, null, null, null, null, samplingRate,
+              getSeedRecordLength(), getSeedEncoding());
         }
-        seedOut.write(scnlOut.getBytes());
-
-        // These get extracted from start time
         Double[] datum = cd.currExportDatum();
-        Date jd = J2kSec.asDate(datum[0]);
-        Calendar cal = new GregorianCalendar();
-        cal.setTimeZone(TimeZone.getTimeZone(timeZone));
-        cal.setTime(jd);
-
-        writeShort(seedOut, cal.get(Calendar.YEAR)); // year
-        writeShort(seedOut, cal.get(Calendar.DAY_OF_YEAR)); // julian day
-        valsLeft = cal.get(Calendar.HOUR_OF_DAY);
-        seedOut.write(valsLeft); // hour
-        valsLeft = cal.get(Calendar.MINUTE);
-        seedOut.write(valsLeft); // minute
-        valsLeft = cal.get(Calendar.SECOND);
-        seedOut.write(valsLeft); // second
-        seedOut.write(0); // unused
-        valsLeft = cal.get(Calendar.MILLISECOND);
-        writeShort(seedOut, valsLeft); // fraction
-
-        // These get extracted from source
-        writeShort(seedOut, sampleCount); // # samples
-        valsLeft = (int) (Math.floor(samplingRate));
-        writeShort(seedOut, valsLeft); // sampling rate factor
-        writeShort(seedOut, 1); // sampling rate multiplier
-
-        seedOut.write(0); // accuracy? flag
-        seedOut.write(0); // IO clock? flag
-        seedOut.write(0); // data quality flag
-        seedOut.write(blocketteCount); // num blockettes
-        seedOut.write(0); // time correction
-        seedOut.write(0);
-        seedOut.write(0);
-        seedOut.write(0);
-        writeShort(seedOut, 48 + 8 * blocketteCount); // start of data
-        writeShort(seedOut, 48); // first blockette
-
-        int offset = 48;
-        drl = 12;
-        valsInBlockette = 4096;
-        valsLeft = sampleCount;
-        while (valsLeft > 0) {
-          while (valsLeft < valsInBlockette) {
-            drl--;
-            valsInBlockette /= 2;
-          }
-          valsLeft -= valsInBlockette;
-
-          // Write header for this blockette
-          // Blockette type 1000
-          writeShort(seedOut, 1000);
-          // Next/last blockette
-          offset += 8;
-          writeShort(seedOut, valsLeft > 0 ? offset : 0);
-
-          // Encoding format
-          seedOut.write(encFmt);
-          // VAX order?
-          seedOut.write(vaxOrder);
-          // Data Record Length
-          seedOut.write(drl + drlAdd);
-          // Reserved
-          seedOut.write(0);
-
-        }
-        // And now, the actual data
-        double min = datum[1];
-        double max = datum[1];
-        valsLeft = sampleCount;
         while (datum != null) {
-          valsLeft--;
-          if (min > datum[1]) {
-            min = datum[1];
+          if (datum[1] != null) {
+            // export times are shifted to the requested time zone, seed times are UTC
+            msw.write(Time.j2kToEw(datum[0] - timeOffset), datum[1]);
           }
-          if (max < datum[1]) {
-            max = datum[1];
-          }
-          writeDouble(seedOut, datum[1]);
           datum = cd.nextExportDatum();
         }
+        msw.flush();
       } catch (IOException e) {
         throw new Valve3Exception("Error writing mseed file: " + e.getMessage());
       }
@@ -1154,79 +1251,33 @@ public abstract class RawDataPlotter extends Plotter {
         }
       }
     } else {
-      // An array of our data sources, indexed by ID
-      ExportData[] sources = new ExportData[csvData.size()];
-      for (ExportData cd : csvData) {
-        sources[cd.exportDataId()] = cd;
-        currLine[cd.exportDataId()] = cd.dummyExportDatum();
+      // Merge the sources into rows by time
+      ExportMerger merger = new ExportMerger(csvData);
+      if (!merger.next()) {
+        throw new Valve3Exception("No data to export");
       }
-
-      // prevTime is the time of the last row formatted into csvText
-      Double prevTime = null;
       int pos = 0;
-      while (true) {
-        ExportData loED;
-        try {
-          // Grab the ExportData whose next datum has the earliest time
-          loED = csvData.first();
-        } catch (Exception e) {
-          loED = null;
+      do {
+        pos++;
+        Double[][] row = merger.getRow();
+        double time = merger.getTime();
+        if (outToCsv) {
+          addCSVline(row, time, decFmt, nullField);
         }
-
-        if (prevTime != null) {
-          int cmp = -1;
-          if (loED != null) {
-            Double[] l = loED.currExportDatum();
-            Double l0 = l[0];
-            cmp = prevTime.compareTo(l0);
-          }
-          if (cmp < 0) {
-            pos++;
-            // Add the current line to csvText
-            if (outToCsv) {
-              addCSVline(currLine, prevTime, decFmt, nullField);
-            }
-            if (outToXml) {
-              addXMLline(currLine, prevTime, decFmt, pos, rowTimeZone, rank);
-            }
-            if (outToJson) {
-              addJsonLine(currLine, prevTime, decFmt, pos, rowTimeZone, rank);
-            }
-            if (loED == null) {
-              // No new data; we're done!
-              break;
-            }
-            // "Erase" the current line
-            for (ExportData cd : sources) {
-              currLine[cd.exportDataId()] = cd.dummyExportDatum();
-            }
-            prevTime = loED.currExportDatum()[0];
-          }
-        } else if (loED != null) {
-          // This is our first item
-          prevTime = loED.currExportDatum()[0];
-        } else {
-          throw new Valve3Exception("No data to export");
+        if (outToXml) {
+          addXMLline(row, time, decFmt, pos, rowTimeZone, rank);
         }
-        // Add current item to current line
-        currLine[loED.exportDataId()] = loED.currExportDatum();
-
-        // Remove & add our ExportData back so that it gets placed based on its new data
-        csvData.remove(loED);
-        if (loED.nextExportDatum() != null) {
-          csvData.add(loED);
+        if (outToJson) {
+          addJsonLine(row, time, decFmt, pos, rowTimeZone, rank);
         }
-      }
+      } while (merger.next());
     }
     if (outToXml) {
-      csvText.append("\t</DATA>\n</VALVE_XML>\n");
+      csvOut.append("\t</DATA>\n</VALVE_XML>\n");
     }
     if (outToJson) {
-      csvText.append("]}}\n");
+      csvOut.append("]}}\n");
     }
-    String result = csvText.toString();
-    csvText = null;
-    return result;
   }
 
   class AxisParameters {
@@ -1439,7 +1490,7 @@ public abstract class RawDataPlotter extends Plotter {
       }
     }
     params.put("col", cols);
-    Pool<VDXClient> pool = null;
+    VDXClientPool pool = null;
     pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
     if (pool != null) {
       client = pool.checkout();
@@ -1450,7 +1501,10 @@ public abstract class RawDataPlotter extends Plotter {
           MetaDatum md = new MetaDatum(s);
           v3p.addMetaDatum(md);
         }
+      } catch (UtilException e) {
+        throw new Valve3Exception(e.getMessage());
       } catch (Exception e) {
+        pool.invalidate(client);
         throw new Valve3Exception(e.getMessage());
       } finally {
         pool.checkin(client);
@@ -1531,7 +1585,7 @@ public abstract class RawDataPlotter extends Plotter {
 
     // define the box height
     int compBoxHeight = comp.getBoxHeight();
-    Pool<VDXClient> pool = null;
+    VDXClientPool pool = null;
     pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
     if (pool != null) {
       client = pool.checkout();
@@ -1550,7 +1604,10 @@ public abstract class RawDataPlotter extends Plotter {
           sdo.adjustTime(timeOffset);
           v3p.addSuppDatum(sdo);
         }
+      } catch (UtilException e) {
+        throw new Valve3Exception(e.getMessage());
       } catch (Exception e) {
+        pool.invalidate(client);
         throw new Valve3Exception(e.getMessage());
       } finally {
         pool.checkin(client);
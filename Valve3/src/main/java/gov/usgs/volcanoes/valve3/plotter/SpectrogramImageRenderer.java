@@ -0,0 +1,73 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import gov.usgs.volcanoes.core.legacy.plot.render.FrameRenderer;
+import gov.usgs.volcanoes.core.legacy.plot.render.Renderer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * Draws spectrogram power, as computed by the spectral service, into the graph area of a frame:
+ * a cell per column and row, colored from blue at minimum to red at maximum power. Columns
+ * without data stay transparent.
+ */
+public class SpectrogramImageRenderer implements Renderer {
+
+  private static final int[] COLORS = new int[256];
+
+  static {
+    for (int i = 0; i < COLORS.length; i++) {
+      float hue = (float) (2.0 / 3.0 * (1 - (double) i / (COLORS.length - 1)));
+      COLORS[i] = Color.HSBtoRGB(hue, 1f, 1f);
+    }
+  }
+
+  private final FrameRenderer frame;
+  private final double[][] power;
+  private final double minPower;
+  private final double maxPower;
+
+  /**
+   * Constructor.
+   *
+   * @param frame    frame whose graph area to fill
+   * @param power    power by column and row from the bottom
+   * @param minPower power of the first color
+   * @param maxPower power of the last color
+   */
+  public SpectrogramImageRenderer(FrameRenderer frame, double[][] power, double minPower,
+      double maxPower) {
+    this.frame = frame;
+    this.power = power;
+    this.minPower = minPower;
+    this.maxPower = maxPower;
+  }
+
+  /**
+   * Render the spectrogram.
+   *
+   * @param g graphics to render to
+   */
+  public void render(Graphics2D g) {
+    int columns = power.length;
+    int rows = columns == 0 ? 0 : power[0].length;
+    if (rows == 0) {
+      return;
+    }
+    BufferedImage image = new BufferedImage(columns, rows, BufferedImage.TYPE_INT_ARGB);
+    double range = maxPower > minPower ? maxPower - minPower : 1;
+    for (int c = 0; c < columns; c++) {
+      for (int r = 0; r < rows; r++) {
+        double value = power[c][r];
+        if (Double.isNaN(value)) {
+          continue;
+        }
+        double ratio = Math.max(0, Math.min(1, (value - minPower) / range));
+        image.setRGB(c, rows - 1 - r, COLORS[(int) Math.round(ratio * (COLORS.length - 1))]);
+      }
+    }
+    g.drawImage(image, frame.getGraphX(), frame.getGraphY(), frame.getGraphWidth(),
+        frame.getGraphHeight(), null);
+  }
+}
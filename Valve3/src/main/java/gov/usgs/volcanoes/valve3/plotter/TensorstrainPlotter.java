@@ -4,7 +4,6 @@ import gov.usgs.volcanoes.core.data.GenericDataMatrix;
 import gov.usgs.volcanoes.core.legacy.plot.Plot;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
 import gov.usgs.volcanoes.core.legacy.plot.render.MatrixRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.math.Butterworth;
 import gov.usgs.volcanoes.core.math.Butterworth.FilterType;
 import gov.usgs.volcanoes.core.util.StringUtils;
@@ -13,6 +12,7 @@ import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
@@ -145,7 +145,7 @@ public class TensorstrainPlotter extends RawDataPlotter {
     addDownsamplingInfo(params);
 
     // checkout a connection to the database
-    Pool<VDXClient> pool = null;
+    VDXClientPool pool = null;
     pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
     if (pool != null) {
       client = pool.checkout();
@@ -161,6 +161,7 @@ public class TensorstrainPlotter extends RawDataPlotter {
           exceptionMsg = e.getMessage();
           break;
         } catch (Exception e) {
+          pool.invalidate(client);
           exceptionThrown = true;
           exceptionMsg = e.getMessage();
           break;
@@ -400,6 +401,16 @@ public class TensorstrainPlotter extends RawDataPlotter {
     }
   }
 
+  /**
+   * Load channels, ranks, azimuths and columns of vdx source.
+   */
+  protected void getMetadata() throws Valve3Exception {
+    channelsMap = getChannels(vdxSource, vdxClient);
+    ranksMap    = getRanks(vdxSource, vdxClient);
+    azimuthsMap = getAzimuths(vdxSource, vdxClient);
+    columnsList = getColumns(vdxSource, vdxClient);
+  }
+
   /**
    * Concrete realization of abstract method. Generate tilt PNG image to file with random name. If
    * v3p is null, prepare data for export -- assumes csvData, csvData & csvIndex initialized
@@ -408,13 +419,8 @@ public class TensorstrainPlotter extends RawDataPlotter {
    */
   public void plot(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException {
 
-    forExport   = (v3p == null);
-    channelsMap = getChannels(vdxSource, vdxClient);
-    ranksMap    = getRanks(vdxSource, vdxClient);
-    azimuthsMap = getAzimuths(vdxSource, vdxClient);
-    columnsList = getColumns(vdxSource, vdxClient);
-    comp.setPlotter(this.getClass().getName());
-    getInputs(comp);
+    forExport = (v3p == null);
+    fetchData(comp);
 
     // get the rank object for this request
     Rank rank = new Rank();
@@ -429,12 +435,6 @@ public class TensorstrainPlotter extends RawDataPlotter {
       v3p.setExportable(true);
     }
 
-    // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
     plotData(v3p, comp, rank);
-
-    if (!forExport) {
-      writeFile(v3p);
-    }
   }
 }
@@ -5,7 +5,6 @@ import cern.colt.matrix.DoubleMatrix2D;
 import gov.usgs.volcanoes.core.data.GenericDataMatrix;
 import gov.usgs.volcanoes.core.legacy.plot.Plot;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
-import gov.usgs.volcanoes.core.legacy.plot.map.GeoImageSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoLabel;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoLabelSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.MapRenderer;
@@ -13,20 +12,17 @@ import gov.usgs.volcanoes.core.legacy.plot.render.EllipseVectorRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.MatrixRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.Renderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.TextRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.math.Butterworth;
 import gov.usgs.volcanoes.core.math.Butterworth.FilterType;
 import gov.usgs.volcanoes.core.math.proj.GeoRange;
 import gov.usgs.volcanoes.core.math.proj.TransverseMercator;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.StringUtils;
-import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
-import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.Column;
 import gov.usgs.volcanoes.vdx.data.ExportData;
@@ -217,9 +213,6 @@ public class TiltPlotter extends RawDataPlotter {
   protected void getData(PlotComponent comp) throws Valve3Exception {
 
     // initialize variables
-    boolean exceptionThrown = false;
-    String exceptionMsg     = "";
-    VDXClient client        = null;
     channelDataMap          = new LinkedHashMap<Integer, TiltData>();
     String[] channels       = ch.split(",");
 
@@ -232,27 +225,14 @@ public class TiltPlotter extends RawDataPlotter {
     params.put("rk", Integer.toString(rk));
     addDownsamplingInfo(params);
 
-    // checkout a connection to the database
-    Pool<VDXClient> pool = null;
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
-
-      // iterate through each of the selected channels and get the data from the db
-      for (String channel : channels) {
-        params.put("ch", channel);
-        TiltData data = null;
-        try {
-          data = (TiltData) client.getBinaryData(params);
-        } catch (UtilException e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        } catch (Exception e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        }
+    // request the data of all selected channels from the database
+    List<TiltData> dataList = getChannelsData(params, channels, TiltData.class);
+    if (dataList != null) {
+
+      // iterate through each of the selected channels and place the data in the map
+      for (int i = 0; i < channels.length; i++) {
+        String channel = channels[i];
+        TiltData data = dataList.get(i);
 
         // if data was collected
         if (data != null && data.rows() > 0) {
@@ -260,14 +240,6 @@ public class TiltPlotter extends RawDataPlotter {
         }
         channelDataMap.put(Integer.valueOf(channel), data);
       }
-
-      // check back in our connection to the database
-      pool.checkin(client);
-    }
-
-    // if a data limit message exists, then throw exception
-    if (exceptionThrown) {
-      throw new Valve3Exception(exceptionMsg);
     }
   }
 
@@ -307,8 +279,8 @@ public class TiltPlotter extends RawDataPlotter {
     labels = labels.getSubset(range);
     mr.setGeoLabelSet(labels);
 
-    GeoImageSet images = Valve3.getInstance().getGeoImageSet();
-    RenderedImage ri = images.getMapBackground(proj, range, comp.getBoxWidth());
+    RenderedImage ri = Valve3.getInstance().getMapBackgroundCache()
+        .getMapBackground(proj, origin, range, comp.getBoxWidth());
 
     mr.setMapImage(ri);
     mr.createBox(8);
@@ -709,6 +681,16 @@ public class TiltPlotter extends RawDataPlotter {
     }
   }
 
+  /**
+   * Load channels, ranks, azimuths and columns of vdx source.
+   */
+  protected void getMetadata() throws Valve3Exception {
+    channelsMap = getChannels(vdxSource, vdxClient);
+    ranksMap = getRanks(vdxSource, vdxClient);
+    azimuthsMap = getAzimuths(vdxSource, vdxClient);
+    columnsList = getColumns(vdxSource, vdxClient);
+  }
+
   /**
    * Concrete realization of abstract method. Generate tilt PNG image to file with random name. If
    * v3p is null, prepare data for export -- assumes csvData, csvData & csvIndex initialized
@@ -720,12 +702,7 @@ public class TiltPlotter extends RawDataPlotter {
   public void plot(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException {
 
     forExport = (v3p == null);
-    channelsMap = getChannels(vdxSource, vdxClient);
-    ranksMap = getRanks(vdxSource, vdxClient);
-    azimuthsMap = getAzimuths(vdxSource, vdxClient);
-    columnsList = getColumns(vdxSource, vdxClient);
-    comp.setPlotter(this.getClass().getName());
-    getInputs(comp);
+    fetchData(comp);
 
     // get the rank object for this request
     Rank rank = new Rank();
@@ -762,13 +739,7 @@ public class TiltPlotter extends RawDataPlotter {
         break;
     }
 
-    // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
     plotData(v3p, comp, rank);
-
-    if (!forExport) {
-      writeFile(v3p);
-    }
   }
 
   /**
@@ -0,0 +1,88 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import gov.usgs.volcanoes.core.data.Wave;
+
+import java.util.Arrays;
+
+/**
+ * Reduces waveforms to what can be seen in a plot of given width. Samples falling into one pixel
+ * column are replaced by four: the first, the minimum, the maximum and the last, with minimum and
+ * maximum in the order they occur. Drawn as a line, the reduced wave covers the same pixels as
+ * the full one, spikes included. Gaps at column edges are kept.
+ */
+public class WaveDecimator {
+  // columns with fewer samples are left alone, decimating them wouldn't save much
+  private static final int MIN_SAMPLES_PER_COLUMN = 8;
+  private static final int SAMPLES_PER_COLUMN = 4;
+
+  private WaveDecimator() {}
+
+  /**
+   * Decimate wave to four samples per pixel column.
+   *
+   * @param wave      wave to decimate
+   * @param viewStart time at left edge of plot, j2ksec
+   * @param viewEnd   time at right edge of plot, j2ksec
+   * @param pixels    plot width, in pixels
+   * @return decimated wave, or the given one if it has few samples per column
+   */
+  public static Wave decimate(Wave wave, double viewStart, double viewEnd, int pixels) {
+    int n = wave.numSamples();
+    double sr = wave.getSamplingRate();
+    double pps = pixels / (viewEnd - viewStart);
+    if (n == 0 || pixels <= 0 || !(pps > 0) || sr / pps < MIN_SAMPLES_PER_COLUMN) {
+      return wave;
+    }
+
+    int[] buf = wave.buffer;
+    double t0 = wave.getStartTime();
+    long c0 = (long) Math.floor((t0 - viewStart) * pps);
+    long c1 = (long) Math.floor((t0 + (n - 1) / sr - viewStart) * pps);
+    int cols = (int) (c1 - c0 + 1);
+    int[] out = new int[cols * SAMPLES_PER_COLUMN];
+    Arrays.fill(out, Wave.NO_DATA);
+
+    int column = -1;
+    int first = 0;
+    int min = Integer.MAX_VALUE;
+    int max = Integer.MIN_VALUE;
+    int minIndex = -1;
+    int maxIndex = -1;
+    for (int i = 0; i <= n; i++) {
+      int c = i == n ? -1 : (int) ((long) Math.floor((t0 + i / sr - viewStart) * pps) - c0);
+      if (c != column) {
+        if (minIndex >= 0) {
+          int o = column * SAMPLES_PER_COLUMN;
+          out[o] = first;
+          out[o + 1] = minIndex <= maxIndex ? min : max;
+          out[o + 2] = minIndex <= maxIndex ? max : min;
+          out[o + 3] = buf[i - 1];
+        }
+        if (i == n) {
+          break;
+        }
+        column = c;
+        first = buf[i];
+        min = Integer.MAX_VALUE;
+        max = Integer.MIN_VALUE;
+        minIndex = -1;
+        maxIndex = -1;
+      }
+      int v = buf[i];
+      if (v == Wave.NO_DATA) {
+        continue;
+      }
+      if (v < min) {
+        min = v;
+        minIndex = i;
+      }
+      if (v > max) {
+        max = v;
+        maxIndex = i;
+      }
+    }
+    // samples are placed in the middle of their quarter of the column, clear of column edges
+    return new Wave(out, viewStart + (c0 + 0.5 / SAMPLES_PER_COLUMN) / pps,
+        SAMPLES_PER_COLUMN * pps);
+  }
+}
@@ -4,26 +4,30 @@ import gov.usgs.volcanoes.core.data.SliceWave;
 import gov.usgs.volcanoes.core.data.Wave;
 import gov.usgs.volcanoes.core.legacy.plot.Plot;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
+import gov.usgs.volcanoes.core.legacy.plot.render.BasicFrameRenderer;
+import gov.usgs.volcanoes.core.legacy.plot.render.TextRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.wave.SpectraRenderer;
-import gov.usgs.volcanoes.core.legacy.plot.render.wave.SpectrogramRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.math.Butterworth;
 import gov.usgs.volcanoes.core.math.Butterworth.FilterType;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.StringUtils;
-import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.WaveCache;
+import gov.usgs.volcanoes.valve3.data.WaveDecimationCache;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
-import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.ExportData;
 import gov.usgs.volcanoes.vdx.data.wave.SliceWaveExporter;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Generate images of waveforms, spectras, and spectrograms from raw wave data from vdx source.
@@ -61,6 +65,7 @@ public class WavePlotter extends RawDataPlotter {
   private boolean logPower;
   private boolean logFreq;
   private Map<Integer, SliceWave> channelDataMap;
+  private Map<Integer, Wave> spectrogramDataMap;
 
   private static final double MAX_DATA_REQUEST = 86400;
 
@@ -182,10 +187,8 @@ public class WavePlotter extends RawDataPlotter {
   protected void getData(PlotComponent comp) throws Valve3Exception {
 
     // initialize variables
-    boolean exceptionThrown = false;
-    String exceptionMsg = "";
-    VDXClient client = null;
     channelDataMap = new LinkedHashMap<Integer, SliceWave>();
+    spectrogramDataMap = new LinkedHashMap<Integer, Wave>();
     String[] channels = ch.split(",");
 
     // create a map of all the input parameters
@@ -195,27 +198,45 @@ public class WavePlotter extends RawDataPlotter {
     params.put("st", Double.toString(startTime));
     params.put("et", Double.toString(endTime));
 
-    // checkout a connection to the database
-    Pool<VDXClient> pool = null;
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
+    // waveforms are decimated to the plot width; channels decimated for another plot of this
+    // component, e.g. the combined one, needn't be requested again. Only settled windows are
+    // cached, as data of windows ending recently or in the future may still grow
+    boolean decimate = plotType == PlotType.WAVEFORM && !forExport;
+    WaveDecimationCache decimationCache =
+        Valve3.getInstance().getDataHandler().getWaveDecimationCache();
+    boolean cacheDecimated = decimate && decimationCache.isEnabled()
+        && Valve3.getInstance().getPlotCache().isSettled(comp);
+    String[] keys = new String[channels.length];
+    Wave[] cached = new Wave[channels.length];
+    List<String> missing = new ArrayList<String>(channels.length);
+    for (int i = 0; i < channels.length; i++) {
+      if (cacheDecimated) {
+        keys[i] = getDecimationKey(comp, channels[i]);
+        cached[i] = decimationCache.get(keys[i]);
+      }
+      if (cached[i] == null) {
+        missing.add(channels[i]);
+      }
+    }
+
+    // request the data of all selected channels from the database
+    List<Wave> dataList = Collections.emptyList();
+    if (!missing.isEmpty()) {
+      dataList = getCachedData(comp, params, missing.toArray(new String[missing.size()]));
+    }
+    if (dataList != null) {
 
       // iterate through each of the selected channels and place the data in the map
-      for (String channel : channels) {
-        params.put("ch", channel);
-        Wave data = null;
-        try {
-          data = (Wave) client.getBinaryData(params);
-        } catch (UtilException e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        } catch (Exception e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
+      int next = 0;
+      for (int i = 0; i < channels.length; i++) {
+        String channel = channels[i];
+        if (cached[i] != null) {
+          wave = new SliceWave(cached[i]);
+          wave.setSlice(cached[i].getStartTime(), cached[i].getEndTime());
+          channelDataMap.put(Integer.valueOf(channel), wave);
+          continue;
         }
+        Wave data = dataList.get(next++);
 
         // if data was collected
         if (data != null) {
@@ -296,20 +317,99 @@ public class WavePlotter extends RawDataPlotter {
             }
             data.subtract(bias);
           }
+          if (decimate) {
+            data = WaveDecimator.decimate(data, startTime + timeOffset, endTime + timeOffset,
+                comp.getBoxWidth());
+            if (cacheDecimated) {
+              decimationCache.put(keys[i], data);
+            }
+          }
           wave = new SliceWave(data);
           wave.setSlice(data.getStartTime(), data.getEndTime());
           channelDataMap.put(Integer.valueOf(channel), wave);
+          if (plotType == PlotType.SPECTROGRAM) {
+            spectrogramDataMap.put(Integer.valueOf(channel), data);
+          }
         }
       }
+    }
+  }
+
+  /**
+   * Build key of decimated wave: everything the wave depends on, which is the vdx source, the
+   * channel, the resolved time window, the plot width and the component's processing parameters.
+   *
+   * @param comp    plot component
+   * @param channel channel id
+   * @return key
+   */
+  private String getDecimationKey(PlotComponent comp, String channel) {
+    return vdxClient + "|" + vdxSource + "|" + channel + "|" + startTime + "|" + endTime + "|"
+        + timeOffset + "|" + comp.getBoxWidth() + "|" + comp.getParameters();
+  }
+
+  /**
+   * Request raw waves of channels, of relative plots only the samples newer than those cached.
+   *
+   * @param comp     PlotComponent
+   * @param params   request parameters
+   * @param channels channel ids
+   * @return waves in channel order, null for channels without data; null if vdx is unknown
+   * @throws Valve3Exception if a request fails
+   */
+  private List<Wave> getCachedData(PlotComponent comp, Map<String, String> params,
+      String[] channels) throws Valve3Exception {
+    WaveCache cache = Valve3.getInstance().getDataHandler().getWaveCache();
+    if (!isLive(comp) || forExport || !cache.isEnabled()) {
+      return getChannelsData(params, channels, Wave.class);
+    }
+
+    // channels with cached samples are requested from the earliest refetch time on
+    String[] keys = new String[channels.length];
+    boolean[] hits = new boolean[channels.length];
+    double fetchStart = endTime;
+    for (int i = 0; i < channels.length; i++) {
+      keys[i] = getChannelKey(channels[i]);
+      double start = cache.getFetchStart(keys[i], startTime, endTime);
+      hits[i] = !Double.isNaN(start);
+      if (hits[i]) {
+        fetchStart = Math.min(fetchStart, start);
+      }
+    }
 
-      // check back in our connection to the database
-      pool.checkin(client);
+    List<Wave> dataList = getCachedChannelsData(params, channels, hits, fetchStart, Wave.class);
+    if (dataList == null) {
+      return null;
+    }
+    List<Integer> lost = new ArrayList<Integer>();
+    for (int i = 0; i < channels.length; i++) {
+      if (hits[i]) {
+        Wave data = cache.splice(keys[i], startTime, fetchStart, dataList.get(i));
+        if (data == null) {
+          lost.add(i);
+        }
+        dataList.set(i, data);
+      } else {
+        dataList.set(i, cache.put(keys[i], startTime, endTime, dataList.get(i)));
+      }
     }
 
-    // if a data limit message exists, then throw exception
-    if (exceptionThrown) {
-      throw new Valve3Exception(exceptionMsg);
+    // cached samples dropped meanwhile by another request: fetch the whole window
+    if (!lost.isEmpty()) {
+      String[] lostChannels = new String[lost.size()];
+      for (int i = 0; i < lostChannels.length; i++) {
+        lostChannels[i] = channels[lost.get(i)];
+      }
+      List<Wave> lostData = getChannelsData(params, lostChannels, Wave.class);
+      if (lostData == null) {
+        return null;
+      }
+      for (int i = 0; i < lostChannels.length; i++) {
+        int c = lost.get(i);
+        dataList.set(c, cache.put(keys[c], startTime, endTime, lostData.get(i)));
+      }
     }
+    return dataList;
   }
 
   /**
@@ -427,17 +527,17 @@ public class WavePlotter extends RawDataPlotter {
   }
 
   /**
-   * Initialize SpectraRenderer and add it to plot.
+   * Initialize SpectraRenderer. The spectra are computed by {@link #updateRenderers}.
    *
-   * @param v3p Valve3Plot
    * @param comp PlotComponent
    * @param channel Channel
    * @param wave SliceWave
    * @param currentComp int
    * @param compBoxHeight display height
+   * @return renderer
    */
-  private void plotSpectra(Valve3Plot v3p, PlotComponent comp, Channel channel, SliceWave wave,
-      int currentComp, int compBoxHeight) throws Valve3Exception {
+  private SpectraRenderer getSpectraRenderer(PlotComponent comp, Channel channel, SliceWave wave,
+      int currentComp, int compBoxHeight) {
 
     SpectraRenderer spectraRenderer = new SpectraRenderer();
 
@@ -469,8 +569,19 @@ public class WavePlotter extends RawDataPlotter {
     if (unitsY) {
       spectraRenderer.setYUnitText("Power");
     }
+    return spectraRenderer;
+  }
 
-    spectraRenderer.update();
+  /**
+   * Decorate updated SpectraRenderer and add it to plot.
+   *
+   * @param v3p Valve3Plot
+   * @param comp PlotComponent
+   * @param channel Channel
+   * @param spectraRenderer renderer from {@link #getSpectraRenderer}
+   */
+  private void addSpectra(Valve3Plot v3p, PlotComponent comp, Channel channel,
+      SpectraRenderer spectraRenderer) {
     spectraRenderer.getAxis().setTopLabelAsText(getTopLabel());
     if (isDrawLegend) {
       channelLegendsCols = new String[2];
@@ -486,69 +597,75 @@ public class WavePlotter extends RawDataPlotter {
   }
 
   /**
-   * Initialize SpectrogramRenderer and add it to plot.
+   * Compute the spectrogram of a channel on the spectral service, at the resolution of the plot,
+   * and add it to the plot over a time-frequency frame.
    *
    * @param v3p Valve3Plot
    * @param comp PlotComponent
    * @param channel Channel
-   * @param wave SliceWave
+   * @param data wave of the channel
    * @param currentComp int
    * @param compBoxHeight display height
+   * @throws Valve3Exception if the computation fails
    */
-  private void plotSpectrogram(Valve3Plot v3p, PlotComponent comp, Channel channel, SliceWave wave,
-      int currentComp, int compBoxHeight) {
-    SpectrogramRenderer spectrogramRenderer = new SpectrogramRenderer(wave);
-    if (currentComp == compCount) {
-      spectrogramRenderer.xTickMarks = this.tickMarksX;
-      spectrogramRenderer.xTickValues = this.tickValuesX;
-      spectrogramRenderer.xUnits = this.unitsX;
-      spectrogramRenderer.xLabel = this.labelX;
-    } else {
-      spectrogramRenderer.xTickMarks = this.tickMarksX;
-      spectrogramRenderer.xTickValues = false;
-      spectrogramRenderer.xUnits = false;
-      spectrogramRenderer.xLabel = false;
-    }
-    spectrogramRenderer.yTickMarks = this.tickMarksY;
-    spectrogramRenderer.yTickValues = this.tickValuesY;
-    spectrogramRenderer
-        .setLocation(comp.getBoxX(), comp.getBoxY() + (currentComp - 1) * compBoxHeight,
-            comp.getBoxWidth(), compBoxHeight - 16);
-    spectrogramRenderer.setOverlap(0);
-    spectrogramRenderer.setLogPower(logPower);
-    spectrogramRenderer.setViewStartTime(startTime + timeOffset);
-    spectrogramRenderer.setViewEndTime(endTime + timeOffset);
-    spectrogramRenderer.setTimeZone(timeZoneID);
-    spectrogramRenderer.setMinFreq(minFreq);
-    spectrogramRenderer.setMaxFreq(maxFreq);
-    spectrogramRenderer.setNfft(nfft);
-    spectrogramRenderer.setBinSize(binSize);
-    spectrogramRenderer.setOverlap(overlap);
-    spectrogramRenderer.setMaxPower(maxPower);
-    spectrogramRenderer.setMinPower(minPower);
-
-    if (unitsY) {
-      spectrogramRenderer.setYUnitText("Frequency (Hz)");
-    }
+  private void plotSpectrogram(Valve3Plot v3p, PlotComponent comp, Channel channel, Wave data,
+      int currentComp, int compBoxHeight) throws Valve3Exception {
+    boolean last = currentComp == compCount;
+    BasicFrameRenderer base = new BasicFrameRenderer();
+    base.setLocation(comp.getBoxX(), comp.getBoxY() + (currentComp - 1) * compBoxHeight,
+        comp.getBoxWidth(), compBoxHeight - 16);
+    base.setExtents(startTime + timeOffset, endTime + timeOffset, minFreq, maxFreq);
+    base.createDefaultAxis(8, 8, tickMarksX, tickMarksY, false, true, last && tickValuesX,
+        tickValuesY);
+    base.setXAxisToTime(8, tickMarksX, last && tickValuesX);
     if (labelY) {
-      spectrogramRenderer.setYLabelText(channel.getName());
+      base.getAxis().setLeftLabelAsText(channel.getName() + (unitsY ? " (Hz)" : ""));
+    } else if (unitsY) {
+      base.getAxis().setLeftLabelAsText("Frequency (Hz)");
     }
-
-    if (isDrawLegend) {
-      channelLegendsCols = new String[1];
-      channelLegendsCols[0] =
-          channel.getName() + " " + (filterType == null ? "" : "(" + filterType.name() + ")");
-      spectrogramRenderer.createDefaultLegendRenderer(channelLegendsCols);
+    if (last && unitsX) {
+      base.getAxis().setBottomLabelAsText(timeZoneID + " Time ("
+          + J2kSec.toDateString(startTime + timeOffset) + " to "
+          + J2kSec.toDateString(endTime + timeOffset) + ")");
     }
 
-    spectrogramRenderer.update();
+    double[][] power = Valve3.getInstance().getSpectralService().spectrogram(data,
+        startTime + timeOffset, endTime + timeOffset, base.getGraphWidth(), minFreq, maxFreq,
+        base.getGraphHeight(), binSize, nfft, overlap, logPower);
 
-    comp.setTranslation(spectrogramRenderer.getDefaultTranslation(v3p.getPlot().getHeight()));
+    comp.setTranslation(base.getDefaultTranslation(v3p.getPlot().getHeight()));
     comp.setTranslationType("ty");
-    v3p.getPlot().addRenderer(spectrogramRenderer);
+    v3p.getPlot().addRenderer(base);
+    v3p.getPlot().addRenderer(new SpectrogramImageRenderer(base, power, minPower, maxPower));
+    if (isDrawLegend) {
+      TextRenderer tr = new TextRenderer();
+      tr.x = base.getGraphX() + 10;
+      tr.y = base.getGraphY() + 15;
+      tr.text = channel.getName() + " " + (filterType == null ? "" : "(" + filterType.name() + ")");
+      v3p.getPlot().addRenderer(tr);
+    }
     v3p.addComponent(comp);
   }
 
+  /**
+   * Compute spectra of all channels, in parallel on the spectral service.
+   *
+   * @param spectraRenderers spectra renderers to update
+   * @throws Valve3Exception if a computation fails
+   */
+  private void updateRenderers(List<SpectraRenderer> spectraRenderers) throws Valve3Exception {
+    List<Callable<Object>> updates = new ArrayList<Callable<Object>>();
+    for (final SpectraRenderer sr : spectraRenderers) {
+      updates.add(new Callable<Object>() {
+        public Object call() {
+          sr.update();
+          return null;
+        }
+      });
+    }
+    Valve3.getInstance().getSpectralService().compute(updates);
+  }
+
   /**
    * If v3Plot is null, prepare data for exporting Otherwise, Loop through the list of channels and
    * create plots.
@@ -580,6 +697,8 @@ public class WavePlotter extends RawDataPlotter {
     // setting up variables to decide where to plot this component
     int currentComp = 1;
     int compBoxHeight = comp.getBoxHeight();
+    List<SpectraRenderer> spectraRenderers = new ArrayList<SpectraRenderer>();
+    List<Channel> spectralChannels = new ArrayList<Channel>();
 
     for (int cid : channelDataMap.keySet()) {
 
@@ -601,16 +720,25 @@ public class WavePlotter extends RawDataPlotter {
           plotWaveform(v3p, comp, channel, wave, currentComp, compBoxHeight);
           break;
         case SPECTRA:
-          plotSpectra(v3p, comp, channel, wave, currentComp, compBoxHeight);
+          spectraRenderers.add(
+              getSpectraRenderer(comp, channel, wave, currentComp, compBoxHeight));
+          spectralChannels.add(channel);
           break;
         case SPECTROGRAM:
-          plotSpectrogram(v3p, comp, channel, wave, currentComp, compBoxHeight);
+          plotSpectrogram(v3p, comp, channel, spectrogramDataMap.get(cid), currentComp,
+              compBoxHeight);
           break;
         default:
           break;
       }
       currentComp++;
     }
+
+    // spectra renderers are added in channel order once all are computed
+    updateRenderers(spectraRenderers);
+    for (int i = 0; i < spectraRenderers.size(); i++) {
+      addSpectra(v3p, comp, spectralChannels.get(i), spectraRenderers.get(i));
+    }
     switch (plotType) {
       case WAVEFORM:
         if (!forExport) {
@@ -641,6 +769,13 @@ public class WavePlotter extends RawDataPlotter {
     }
   }
 
+  /**
+   * Load channels of vdx source.
+   */
+  protected void getMetadata() throws Valve3Exception {
+    channelsMap = getChannels(vdxSource, vdxClient);
+  }
+
   /**
    * Concrete realization of abstract method. Generate PNG image to file with random name. If v3p is
    * null, prepare data for export -- assumes csvData, csvData & csvIndex initialized.
@@ -652,9 +787,7 @@ public class WavePlotter extends RawDataPlotter {
   public void plot(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException {
 
     forExport = (v3p == null);
-    channelsMap = getChannels(vdxSource, vdxClient);
-    comp.setPlotter(this.getClass().getName());
-    getInputs(comp);
+    fetchData(comp);
 
     // set the exportable based on the output and plot type
     switch (plotType) {
@@ -695,14 +828,7 @@ public class WavePlotter extends RawDataPlotter {
         break;
     }
 
-    // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
     plotData(v3p, comp);
-
-    if (!forExport) {
-      writeFile(v3p);
-    }
-
   }
 
   /**
@@ -0,0 +1,38 @@
+package gov.usgs.volcanoes.valve3.result;
+
+/**
+ * Result of a request the client already holds the current result for. Carries only the entity
+ * tag the client sent.
+ */
+public class NotModified extends Result {
+  private final String etag;
+  private final boolean immutable;
+
+  /**
+   * Constructor.
+   *
+   * @param etag      entity tag of the result
+   * @param immutable true if the result can't change
+   */
+  public NotModified(String etag, boolean immutable) {
+    this.etag = etag;
+    this.immutable = immutable;
+  }
+
+  public String getETag() {
+    return etag;
+  }
+
+  public boolean isImmutable() {
+    return immutable;
+  }
+
+  /**
+   * Yield XML representation.
+   *
+   * @return xml representation of NotModified
+   */
+  public String toXml() {
+    return toXml("notModified", "");
+  }
+}
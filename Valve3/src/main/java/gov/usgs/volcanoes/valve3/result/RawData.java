@@ -32,6 +32,15 @@ public class RawData extends Result {
     return filename;
   }
 
+  /**
+   * Getter for size of raw data result file.
+   *
+   * @return size in bytes
+   */
+  public long getSize() {
+    return new File(getLocalFilename()).length();
+  }
+
   /**
    * Deletes raw data result file.
    */
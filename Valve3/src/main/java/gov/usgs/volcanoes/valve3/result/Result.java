@@ -29,6 +29,33 @@ public abstract class Result {
     url = u;
   }
 
+  /**
+   * Getter for size of generated result.
+   *
+   * @return size of result file in bytes, 0 if it has no file
+   */
+  public long getSize() {
+    return 0;
+  }
+
+  /**
+   * Getter for entity tag, derived from the canonical request.
+   *
+   * @return quoted entity tag, null if result isn't tagged
+   */
+  public String getETag() {
+    return null;
+  }
+
+  /**
+   * Check if result can't change, so clients may keep it.
+   *
+   * @return true if result is immutable
+   */
+  public boolean isImmutable() {
+    return false;
+  }
+
   /**
    * Deletes generated result.
    */
@@ -1,20 +1,29 @@
 package gov.usgs.volcanoes.valve3.result;
 
 import gov.usgs.volcanoes.core.legacy.plot.Plot;
+import gov.usgs.volcanoes.core.legacy.plot.PlotException;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.valve3.CombinedPlot;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.PlotHandler;
+import gov.usgs.volcanoes.valve3.ResultFiles;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 import gov.usgs.volcanoes.vdx.data.MetaDatum;
 import gov.usgs.volcanoes.vdx.data.SuppDatum;
 
 import java.awt.Color;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
 
 /**
@@ -64,9 +73,20 @@ public class Valve3Plot extends Result {
   // Medium.  please refer to STANDARD_SIZES as defined in plot.js
   public static final int DEFAULT_PLOT_WIDTH = 900;
   public static final int DEFAULT_PLOT_HEIGHT = 300;
+  private static final int COPY_BUFFER_SIZE = 128 * 1024;
 
   protected Plot plot;
   protected String filename;
+  // encoded image kept in the result store, null if the plot is in a file
+  private volatile byte[] bytes;
+  // requests and caches holding the encoded image, see #retainMemory
+  private int memoryHolders = 0;
+  // true while this plot holds the local file, see ResultFiles#retain
+  private boolean fileHeld = false;
+  // size of the local file counted for this plot, 0 if another identical plot counts it
+  private long fileSize = 0;
+  private String etag;
+  private boolean immutable = false;
   private String title;
   protected OutputType outputType;
   protected OutputType plotFormat;
@@ -89,11 +109,10 @@ public class Valve3Plot extends Result {
   /**
    * Constructor.
    *
-   * @param request        http servlet request which keeps height, width and output type parameters
-   * @param componentCount number of components
+   * @param request http servlet request which keeps height, width and output type parameters
    * @throws Valve3Exception when various parameters are illegal
    */
-  public Valve3Plot(HttpServletRequest request, int componentCount) throws Valve3Exception {
+  public Valve3Plot(HttpServletRequest request) throws Valve3Exception {
     width = StringUtils.stringToInt(request.getParameter("w"), DEFAULT_PLOT_WIDTH);
     if (width <= 0 || width > PlotHandler.MAX_PLOT_WIDTH) {
       width = DEFAULT_PLOT_WIDTH;
@@ -125,7 +144,7 @@ public class Valve3Plot extends Result {
 
     isCombined = StringUtils.stringToBoolean(request.getParameter("combine"), false);
     if (isCombined) {
-      plot = new CombinedPlot(width, height, componentCount);
+      plot = new CombinedPlot(width, height);
       setCombineable(true);
     } else {
       plot = new Plot(width, height);
@@ -193,14 +212,48 @@ public class Valve3Plot extends Result {
     filename = fn;
   }
 
+  /**
+   * Name the file after the canonical request, so identical plots share one file.
+   *
+   * @param key canonical description of the plot request
+   */
+  public void setContentKey(String key) {
+    filename = ResultFiles.getContentName("img", key, plotFormat.extension);
+  }
+
+  /**
+   * Setter for entity tag.
+   *
+   * @param etag      quoted entity tag derived from the canonical request
+   * @param immutable true if the plot shows only settled data
+   */
+  public void setETag(String etag, boolean immutable) {
+    this.etag = etag;
+    this.immutable = immutable;
+  }
+
+  public String getETag() {
+    return etag;
+  }
+
+  /**
+   * Check if clients may keep the plot. Only self-contained images qualify: xml and html documents
+   * refer to the image file, which is deleted long before a kept document would be revalidated.
+   *
+   * @return true if the plot shows only settled data and is sent as image
+   */
+  public boolean isImmutable() {
+    return immutable && (outputType == OutputType.PNG || outputType == OutputType.PS);
+  }
+
   /**
    * Getter for local file name.
    *
-   * @return full file name to generate plot image. If not set return random file name.
+   * @return full file name to generate plot image. If not set return unique file name.
    */
   public String getLocalFilename() {
     if (filename == null) {
-      filename = PlotHandler.getRandomFilename(plotFormat.extension);
+      filename = ResultFiles.getUniqueName("img", plotFormat.extension);
     }
 
     return Valve3.getInstance().getApplicationPath() + File.separatorChar + filename;
@@ -333,10 +386,206 @@ public class Valve3Plot extends Result {
   }
 
   /**
-   * Delete file with generated plot image from file system.
+   * Render the plot with all its components. Images requested directly as PNG are kept in
+   * memory if the result store admits them; images referenced by URL, PostScript, and images
+   * the store has no room for are written to the local file. Called once per request, after
+   * every component has been added.
+   *
+   * @throws PlotException when rendering fails
+   * @throws Valve3Exception when output type is unknown or the image can't be written
+   */
+  public void writeFile() throws PlotException, Valve3Exception {
+    plot.setBackgroundColor(Color.white);
+
+    switch (plotFormat) {
+      case PNG:
+        if (outputType == OutputType.PNG) {
+          writeEncoded();
+        } else {
+          writeLocalFile(null);
+        }
+        break;
+      case PS:
+        writeLocalFile(null);
+        break;
+      default:
+        throw new Valve3Exception("Unknown output type " + outputType);
+    }
+  }
+
+  /**
+   * Encode the image to memory and keep it in the result store, or spill it to the local file.
+   */
+  private void writeEncoded() throws PlotException, Valve3Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(width * height / 4);
+    try {
+      ImageIO.write(plot.getAsBufferedImage(true), "png", baos);
+      byte[] encoded = baos.toByteArray();
+      if (Valve3.getInstance().getResultStore().reserve(encoded.length)) {
+        synchronized (this) {
+          bytes = encoded;
+          // held by the rendering request until it has streamed the image
+          memoryHolders = 1;
+        }
+        return;
+      }
+      writeLocalFile(encoded);
+    } catch (IOException e) {
+      throw new Valve3Exception("Can't write plot image: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Write the image to a temporary file and move it over the local file.
+   *
+   * @param encoded encoded image, null to render the plot in plot format
+   */
+  private void writeLocalFile(byte[] encoded) throws PlotException, Valve3Exception {
+    File target = new File(getLocalFilename());
+    File temp = null;
+    boolean owner = false;
+    if (!fileHeld) {
+      owner = ResultFiles.retain(target);
+      fileHeld = true;
+    }
+    boolean written = false;
+    try {
+      temp = ResultFiles.createTempFile(target);
+      if (encoded != null) {
+        OutputStream os = new FileOutputStream(temp);
+        try {
+          os.write(encoded);
+        } finally {
+          os.close();
+        }
+      } else if (plotFormat == OutputType.PS) {
+        plot.writePS(temp.getPath());
+      } else {
+        plot.writePNG(temp.getPath());
+      }
+      ResultFiles.commit(temp, target);
+      temp = null;
+      if (owner) {
+        fileSize = target.length();
+      }
+      written = true;
+    } catch (IOException e) {
+      throw new Valve3Exception("Can't write plot image: " + e.getMessage());
+    } finally {
+      if (temp != null) {
+        temp.delete();
+      }
+      if (!written) {
+        fileHeld = false;
+        fileSize = 0;
+        ResultFiles.release(target);
+      }
+    }
+  }
+
+  /**
+   * Check if the image is kept in memory.
+   *
+   * @return true if the plot image is in memory rather than in the local file
+   */
+  public boolean isInMemory() {
+    return bytes != null;
+  }
+
+  /**
+   * Hold the image kept in memory, e.g. for a cache or a request streaming a cached plot. Each
+   * hold must be given up by {@link #releaseMemory}.
+   *
+   * @return true if the image is in memory and now held, false if there's nothing to hold
+   */
+  public synchronized boolean retainMemory() {
+    if (bytes == null) {
+      return false;
+    }
+    memoryHolders++;
+    return true;
+  }
+
+  /**
+   * Give up a hold on the image kept in memory. The image is released from the result store when
+   * the last holder gives it up, as nothing can reach it anymore. Does nothing for images in
+   * files.
+   */
+  public void releaseMemory() {
+    byte[] encoded;
+    synchronized (this) {
+      if (bytes == null || memoryHolders <= 0 || --memoryHolders > 0) {
+        return;
+      }
+      encoded = bytes;
+      bytes = null;
+    }
+    Valve3.getInstance().getResultStore().release(encoded.length);
+  }
+
+  /**
+   * Check if the generated image is still available, i.e. wasn't deleted.
+   *
+   * @return true if image can be written by {@link #writeTo}
+   */
+  public boolean isAvailable() {
+    return bytes != null || new File(getLocalFilename()).exists();
+  }
+
+  /**
+   * Write generated plot image, from memory or from the local file.
+   *
+   * @param os stream to write to
+   * @throws IOException if reading or writing fails
+   */
+  public void writeTo(OutputStream os) throws IOException {
+    byte[] encoded = bytes;
+    if (encoded != null) {
+      os.write(encoded);
+      return;
+    }
+    InputStream is = new FileInputStream(getLocalFilename());
+    try {
+      byte[] buf = new byte[COPY_BUFFER_SIZE];
+      int n;
+      while ((n = is.read(buf)) != -1) {
+        os.write(buf, 0, n);
+      }
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Getter for size of file with generated plot image. A file shared by identical plots is
+   * counted only for the plot which created it.
+   *
+   * @return size in bytes, 0 if the image is kept in memory or another plot counts the file
+   */
+  public long getSize() {
+    if (bytes != null) {
+      return 0;
+    }
+    return fileSize;
+  }
+
+  /**
+   * Release generated plot image from memory, or the file from file system. A file shared by
+   * identical plots is deleted when the last of them releases it.
    */
   public void delete() {
-    new File(getLocalFilename()).delete();
+    byte[] encoded;
+    synchronized (this) {
+      encoded = bytes;
+      bytes = null;
+      memoryHolders = 0;
+    }
+    if (encoded != null) {
+      Valve3.getInstance().getResultStore().release(encoded.length);
+    } else if (fileHeld) {
+      fileHeld = false;
+      ResultFiles.release(new File(getLocalFilename()));
+    }
   }
 
   /**
@@ -0,0 +1,121 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.math.proj.TransverseMercator;
+import gov.usgs.volcanoes.valve3.ComputeService;
+import gov.usgs.volcanoes.valve3.Valve3Exception;
+
+import hep.aida.ref.Histogram2D;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Density plot binning: {@link DensityBinner} against filling the histogram point by point, as
+ * density plots did before, both on plain coordinates and, as map views bin them, projected to
+ * transverse Mercator.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class DensityBinnerBenchmark {
+  private static final int X_BINS = 200;
+  private static final int Y_BINS = 150;
+  private static final double MIN_X = -156.0;
+  private static final double MAX_X = -154.0;
+  private static final double MIN_Y = 18.5;
+  private static final double MAX_Y = 20.5;
+
+  @Param({"100000", "1000000"})
+  private int points;
+
+  private double[] x;
+  private double[] y;
+  private ComputeService service;
+  private TransverseMercator proj;
+  private double projMinX;
+  private double projMaxX;
+  private double projMinY;
+  private double projMaxY;
+
+  /**
+   * Scatter points around a few clusters, some outside the grid, set up the projection of the grid
+   * center and start the pool.
+   */
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    x = new double[points];
+    y = new double[points];
+    for (int i = 0; i < points; i++) {
+      double cx = MIN_X + (i % 5 + 0.5) * (MAX_X - MIN_X) / 5;
+      x[i] = cx + random.nextGaussian() * 0.3;
+      y[i] = (MIN_Y + MAX_Y) / 2 + random.nextGaussian() * 0.4;
+    }
+    proj = new TransverseMercator();
+    proj.setup(new Point2D.Double((MIN_X + MAX_X) / 2, (MIN_Y + MAX_Y) / 2), 0, 0);
+    Point2D.Double min = proj.forward(new Point2D.Double(MIN_X, MIN_Y));
+    Point2D.Double max = proj.forward(new Point2D.Double(MAX_X, MAX_Y));
+    projMinX = min.x;
+    projMinY = min.y;
+    projMaxX = max.x;
+    projMaxY = max.y;
+    service = new ComputeService();
+    service.configure(new ConfigFile());
+  }
+
+  @TearDown
+  public void tearDown() {
+    service.shutdown();
+  }
+
+  @Benchmark
+  public Histogram2D binner() throws Valve3Exception {
+    DensityBinner binner = new DensityBinner(X_BINS, MIN_X, MAX_X, Y_BINS, MIN_Y, MAX_Y);
+    return binner.bin(x, y, null, service);
+  }
+
+  @Benchmark
+  public Histogram2D fillEach() {
+    Histogram2D hist = new Histogram2D("", X_BINS, MIN_X, MAX_X, Y_BINS, MIN_Y, MAX_Y);
+    for (int i = 0; i < points; i++) {
+      hist.fill(x[i], y[i]);
+    }
+    return hist;
+  }
+
+  @Benchmark
+  public Histogram2D binnerProjected() throws Valve3Exception {
+    DensityBinner binner =
+        new DensityBinner(X_BINS, projMinX, projMaxX, Y_BINS, projMinY, projMaxY);
+    return binner.bin(x, y, proj, service);
+  }
+
+  @Benchmark
+  public Histogram2D fillEachProjected() {
+    Histogram2D hist =
+        new Histogram2D("", X_BINS, projMinX, projMaxX, Y_BINS, projMinY, projMaxY);
+    for (int i = 0; i < points; i++) {
+      Point2D.Double p = proj.forward(new Point2D.Double(x[i], y[i]));
+      hist.fill(p.x, p.y);
+    }
+    return hist;
+  }
+}
@@ -0,0 +1,129 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+
+import gov.usgs.volcanoes.vdx.data.ExportData;
+import gov.usgs.volcanoes.vdx.data.MatrixExporter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-source export merge: {@link ExportMerger} against re-sorting the sources in a TreeSet for
+ * every datum, as exports did before.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ExportMergerBenchmark {
+  private static final int COLUMNS = 3;
+
+  @Param({"2", "30"})
+  private int sources;
+
+  @Param({"20000"})
+  private int rows;
+
+  private DoubleMatrix2D[] matrices;
+  private TreeSet<ExportData> csvData;
+
+  /**
+   * Build one matrix per source, sampled at slightly different rates so times partly coincide.
+   */
+  @Setup(Level.Trial)
+  public void setupData() {
+    Random random = new Random(42);
+    matrices = new DoubleMatrix2D[sources];
+    for (int s = 0; s < sources; s++) {
+      DoubleMatrix2D matrix = new DenseDoubleMatrix2D(rows, COLUMNS);
+      double period = 1 + s % 3;
+      for (int r = 0; r < rows; r++) {
+        matrix.setQuick(r, 0, r * period);
+        for (int c = 1; c < COLUMNS; c++) {
+          matrix.setQuick(r, c, random.nextDouble());
+        }
+      }
+      matrices[s] = matrix;
+    }
+  }
+
+  /**
+   * Export data are consumed by merging, so each merge gets fresh ones.
+   */
+  @Setup(Level.Invocation)
+  public void setupExport() {
+    csvData = new TreeSet<ExportData>();
+    for (int s = 0; s < sources; s++) {
+      csvData.add(new ExportData(s, new MatrixExporter(matrices[s], false, null)));
+    }
+  }
+
+  @Benchmark
+  public void merger(Blackhole bh) {
+    ExportMerger merger = new ExportMerger(csvData);
+    while (merger.next()) {
+      bh.consume(merger.getTime());
+      bh.consume(merger.getRow());
+    }
+  }
+
+  @Benchmark
+  public void treeSet(Blackhole bh) {
+    Double[][] currLine = new Double[csvData.size()][];
+    ExportData[] sources = new ExportData[csvData.size()];
+    for (ExportData cd : csvData) {
+      sources[cd.exportDataId()] = cd;
+      currLine[cd.exportDataId()] = cd.dummyExportDatum();
+    }
+
+    Double prevTime = null;
+    while (true) {
+      ExportData loED = csvData.isEmpty() ? null : csvData.first();
+      if (prevTime != null) {
+        int cmp = -1;
+        if (loED != null) {
+          cmp = prevTime.compareTo(loED.currExportDatum()[0]);
+        }
+        if (cmp < 0) {
+          bh.consume(prevTime);
+          bh.consume(currLine);
+          if (loED == null) {
+            break;
+          }
+          for (ExportData cd : sources) {
+            currLine[cd.exportDataId()] = cd.dummyExportDatum();
+          }
+          prevTime = loED.currExportDatum()[0];
+        }
+      } else if (loED != null) {
+        prevTime = loED.currExportDatum()[0];
+      } else {
+        break;
+      }
+      currLine[loED.exportDataId()] = loED.currExportDatum();
+      csvData.remove(loED);
+      if (loED.nextExportDatum() != null) {
+        csvData.add(loED);
+      }
+    }
+  }
+}
@@ -15,11 +15,17 @@ Initial commit.
 --%><%@ page import="gov.usgs.volcanoes.valve3.*" %><%@ page import="gov.usgs.volcanoes.valve3.result.*" %><%@ page import="java.io.*" %><%
     /* The mess above is to make sure no newlines are generated for binary 
        results - please do not "improve" the formatting. Thanks. */  
-	response.setHeader("Cache-Control", "no-cache");
-	response.setHeader("Pragma", "no-cache");
-	response.setDateHeader("Expires", 0);
 	ActionHandler handler = Valve3.getInstance().getActionHandler();
 	Object result = handler.handle(request);
+	ResultServer server = Valve3.getInstance().getResultServer();
+	if (server.checkCache(result, request, response))
+	{
+		if (result instanceof Valve3Plot)
+		{
+			((Valve3Plot)result).releaseMemory();
+		}
+		return;
+	}
 	
 	if (result == null)
 	{
@@ -39,23 +45,31 @@ Initial commit.
 		switch(plot.getOutputType())
 		{
 			case XML:
-				out.println(plot.toXml());
+				server.sendText(plot.toXml(), null, request, response);
 				break;
 			case PS:
 				String fileName = plot.getTitle().replace(" ", "_") + ".ps";
 				response.setHeader("Content-disposition", "attachment; filename=" + fileName);
 				/* fallthrough */
 			case PNG:
-				OutputStream os = response.getOutputStream();
-				InputStream is = new BufferedInputStream(new FileInputStream(plot.getLocalFilename()));
-				byte[] buf = new byte[128 * 1024];
-				int n;
-				while ((n = is.read(buf)) != -1)
+				if (plot.isInMemory())
 				{
-					os.write(buf, 0, n);
+					try
+					{
+						OutputStream os = response.getOutputStream();
+						plot.writeTo(os);
+						os.flush();
+						os.close();
+					}
+					finally
+					{
+						plot.releaseMemory();
+					}
+				}
+				else
+				{
+					server.serve(new File(plot.getLocalFilename()), null, request, response);
 				}
-				os.flush();
-				os.close();
 				break;
 			case HTML:
 				%>
@@ -78,28 +92,17 @@ Initial commit.
 	   
 	   response.setContentType("application/octet-stream");
 	   response.setHeader("Content-disposition", "attachment;filename=" + fn.substring(fn.lastIndexOf("/") + 1));
-	   
-	   OutputStream os = response.getOutputStream();
-	   InputStream is = new BufferedInputStream(new FileInputStream(fn));
-	   byte[] buf = new byte[128 * 1024];
-	   int n;
-	   while ((n = is.read(buf)) != -1)
-	   {
-	       os.write(buf, 0, n);
-	   }
-	   os.flush();
-	   os.close();
+	   server.serve(new File(fn), null, request, response);
 	}
 	else if (result instanceof Result)
 	{
 		Result res = (Result)result;
-		response.setContentType("text/xml");
-		out.println(res.toXml());
+		server.sendText(res.toXml(), "text/xml", request, response);
 	}
 	else if (result instanceof String)
 	{
 		response.setHeader("Content-disposition", "attachment; filename=valve3.csv");
-		out.println(result);
+		server.sendText((String)result, null, request, response);
 	}
 	
 %>